@@ -0,0 +1,54 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+// 簡單的microbenchmark工具：warmup後量測平均ns/op與每個op配置的bytes
+// （環境沒有JMH時使用，量測方式參考JMH的AverageTime mode）
+public class Bench {
+  static final int WARMUP_ROUNDS = 5;
+  static final int MEASURE_ROUNDS = 10;
+  // 防止JIT把結果當成dead code消除
+  static volatile long sink;
+  // BenchSuite設定：每個結果另外寫一行CSV（group,name,ns/op,best,B/op），兩次的CSV可以用BenchSuite compare比較
+  static PrintStream csv;
+  static String group = "";
+
+  // 回傳平均ns/op
+  public static double run(String name, int opsPerRound, LongSupplier op) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++)
+      round(opsPerRound, op);
+    double best = Double.MAX_VALUE;
+    double total = 0;
+    long allocated = 0;
+    for (int r = 0; r < MEASURE_ROUNDS; r++) {
+      long before = allocatedBytes();
+      double nsPerOp = round(opsPerRound, op);
+      allocated += allocatedBytes() - before;
+      best = Math.min(best, nsPerOp);
+      total += nsPerOp;
+    }
+    double bytesPerOp = allocated < 0 ? Double.NaN : (double) allocated / ((long) opsPerRound * MEASURE_ROUNDS);
+    System.out.printf("%-48s %10.1f ns/op (best %8.1f) %10.1f B/op%n", name, total / MEASURE_ROUNDS, best, bytesPerOp);
+    if (csv != null)
+      csv.printf(Locale.ROOT, "%s,%s,%.1f,%.1f,%.1f%n", group, name, total / MEASURE_ROUNDS, best, bytesPerOp);
+    return total / MEASURE_ROUNDS;
+  }
+
+  private static double round(int ops, LongSupplier op) {
+    long acc = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ops; i++)
+      acc += op.getAsLong();
+    long elapsed = System.nanoTime() - start;
+    sink += acc;
+    return (double) elapsed / ops;
+  }
+
+  // HotSpot的com.sun.management.ThreadMXBean可以取得目前thread配置的bytes
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    return Long.MIN_VALUE;
+  }
+}
@@ -0,0 +1,75 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 依序執行所有hot path的microbenchmark，結果另外寫成CSV；改動前後各跑一次再compare
+// make bench BENCH=BenchSuite BENCH_ARGS=before.csv
+// make bench BENCH=BenchSuite BENCH_ARGS="compare before.csv after.csv"
+public class BenchSuite {
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && args[0].equals("compare")) {
+      compare(args[1], args[2]);
+      return;
+    }
+    String csvFile = args.length > 0 ? args[0] : "bench-results.csv";
+    System.out.println("java " + System.getProperty("java.vm.version") + " (" + System.getProperty("java.vm.name")
+        + "), " + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", "
+        + Runtime.getRuntime().availableProcessors() + " cpus, max heap "
+        + Runtime.getRuntime().maxMemory() / 1048576 + " MB");
+    System.out.println("jvm args " + ManagementFactory.getRuntimeMXBean().getInputArguments());
+    try (PrintStream csv = new PrintStream(new FileOutputStream(csvFile), true)) {
+      csv.println("group,name,ns_per_op,best_ns_per_op,bytes_per_op");
+      Bench.csv = csv;
+      section("PacketCodecBench");
+      PacketCodecBench.main(new String[] { "1400" });
+      section("ChecksumBench");
+      ChecksumBench.main(new String[0]);
+      section("TimerBench");
+      TimerBench.main(new String[0]);
+      section("ReassemblyBench");
+      ReassemblyBench.main(new String[0]);
+      section("ReceiverBench");
+      ReceiverBench.main(new String[0]);
+      section("SendBatchBench");
+      SendBatchBench.main(new String[0]);
+    }
+    System.out.println("results written to " + csvFile);
+  }
+
+  private static void section(String name) {
+    Bench.group = name;
+    System.out.println("== " + name);
+  }
+
+  // 兩次結果中名稱相同的benchmark：平均ns/op的變化（負的是變快）
+  private static void compare(String before, String after) throws IOException {
+    Map<String, double[]> baseline = read(before);
+    Map<String, double[]> current = read(after);
+    System.out.printf("%-64s %12s %12s %8s%n", "benchmark", "before ns", "after ns", "change");
+    for (Map.Entry<String, double[]> entry : current.entrySet()) {
+      double[] old = baseline.get(entry.getKey());
+      double now = entry.getValue()[0];
+      if (old == null)
+        System.out.printf("%-64s %12s %12.1f %8s%n", entry.getKey(), "-", now, "new");
+      else
+        System.out.printf("%-64s %12.1f %12.1f %+7.1f%%%n", entry.getKey(), old[0], now, (now - old[0]) / old[0] * 100);
+    }
+  }
+
+  private static Map<String, double[]> read(String file) throws IOException {
+    Map<String, double[]> results = new LinkedHashMap<>();
+    List<String> lines = Files.readAllLines(Paths.get(file));
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(",");
+      results.put(fields[0] + " " + fields[1],
+          new double[] { Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), Double.parseDouble(fields[4]) });
+    }
+    return results;
+  }
+}
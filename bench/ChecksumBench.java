@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// 包裹checksum在不同大小的datagram上的開銷：原本一次加16 bits的loop、Checksum的scalar（一次8 bytes）、
+// VectorChecksum（make ext編譯，執行需要java --add-modules jdk.incubator.vector，make bench已經加上）與CRC32C；byte[]與direct ByteBuffer各一次
+// make bench BENCH=ChecksumBench BENCH_ARGS="64 576 1452 9000"（datagram大小，預設如左）
+public class ChecksumBench {
+  public static void main(String[] args) {
+    int[] sizes = { 64, 576, 1452, 9000 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++)
+        sizes[i] = Integer.parseInt(args[i]);
+    }
+    System.out.println("vector API: " + (Checksum.VECTOR_USABLE ? "yes" : "no"));
+    for (int size : sizes) {
+      byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      ByteBuffer heap = ByteBuffer.wrap(data);
+      ByteBuffer direct = ByteBuffer.allocateDirect(size);
+      direct.put(data).flip();
+      int ops = Math.max(10_000, 200_000_000 / size);
+      report(size, Bench.run("16-bit loop byte[] size=" + size, ops, () -> wordLoop(data, 0, size)));
+      report(size, Bench.run("scalar byte[] size=" + size, ops, () -> Checksum.scalarSum(data, 0, size)));
+      report(size, Bench.run("scalar direct size=" + size, ops, () -> Checksum.scalarSum(direct, 0, size)));
+      if (Checksum.VECTOR_USABLE) {
+        report(size, Bench.run("vector byte[] size=" + size, ops, () -> Checksum.VECTOR.sum(data, 0, size)));
+        report(size, Bench.run("vector direct size=" + size, ops, () -> Checksum.VECTOR.sum(direct, 0, size)));
+      }
+      report(size, Bench.run("crc32c byte[] size=" + size, ops,
+          () -> Checksum.crc32c(heap, 0, size, TCPpacket.crcOffset)));
+      report(size, Bench.run("crc32c direct size=" + size, ops,
+          () -> Checksum.crc32c(direct, 0, size, TCPpacket.crcOffset)));
+    }
+  }
+
+  // 改寫前的TCPpacket.calculateChecksum：每個16-bit word各自處理進位（比較用）
+  private static int wordLoop(byte[] data, int offset, int length) {
+    int end = offset + length;
+    int sum = 0;
+    for (int i = offset; i < end - 1; i += 2) {
+      sum += (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+      if ((sum & 0xFFFF0000) != 0)
+        sum = (sum & 0xFFFF) + 1;
+    }
+    if (length % 2 != 0) {
+      sum += (data[end - 1] & 0xFF) << 8;
+      if ((sum & 0xFFFF0000) != 0)
+        sum = (sum & 0xFFFF) + 1;
+    }
+    return ~sum & 0xFFFF;
+  }
+
+  private static void report(int size, double nsPerOp) {
+    System.out.printf("  %.2f GB/s%n", size / nsPerOp);
+  }
+}
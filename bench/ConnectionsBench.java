@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// N個同時的連線（loopback上的sender/receiver pair）：各階段的thread數、heap、direct buffer與CPU時間
+// nio：所有連線的接收共用EventLoop；socket：每個連線一個blocking receive thread
+// make bench BENCH=ConnectionsBench BENCH_ARGS="1000 nio 16"（連線數、engine、每個連線傳送的KB）
+public class ConnectionsBench {
+  static final int MTU = 1400 + 52;
+  // sender的startFileTransmission會等視窗，是應用程式的呼叫：用固定大小的pool執行
+  static final int APPLICATION_THREADS = 64;
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    String engine = args.length > 1 ? args[1] : TCPConfig.ENGINE_NIO;
+    int kb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+    File dir = Files.createTempDirectory("connections-bench").toFile();
+    File input = new File(dir, "in.bin");
+    byte[] data = new byte[kb * 1024];
+    new Random(1).nextBytes(data);
+    Files.write(input.toPath(), data);
+    TCPConfig config = new TCPConfig();
+    config.engine = engine;
+    config.trace = PacketTrace.OFF;
+    InetAddress local = InetAddress.getLoopbackAddress();
+    int port = 20000 + ThreadLocalRandom.current().nextInt(20000);
+
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); // 每個連線的統計
+    out.println("engine=" + engine + " connections=" + connections + " transfer=" + kb + " KB each");
+    Footprint phase = Footprint.sample();
+    Receiver[] receivers = new Receiver[connections];
+    Sender[] senders = new Sender[connections];
+    for (int i = 0; i < connections; i++) {
+      receivers[i] = new Receiver(port + i, MTU, 64, new File(dir, "out" + i).getPath(), config);
+      receivers[i].start();
+    }
+    for (int i = 0; i < connections; i++) {
+      senders[i] = new Sender(port + connections + i, local, port + i, input.getPath(), MTU, 64, config);
+      senders[i].start();
+    }
+    CompletableFuture.allOf(Arrays.stream(senders).map(s -> s.established).toArray(CompletableFuture[]::new))
+        .get(120, TimeUnit.SECONDS);
+    phase = phase.report(out, "open + handshake");
+
+    Thread.sleep(1000);
+    phase = phase.report(out, "idle 1 s");
+
+    ExecutorService application = Executors.newFixedThreadPool(APPLICATION_THREADS);
+    for (Sender sender : senders)
+      application.execute(sender::startFileTransmission);
+    CompletableFuture<?>[] closed = new CompletableFuture<?>[2 * connections];
+    for (int i = 0; i < connections; i++) {
+      closed[2 * i] = senders[i].closed;
+      closed[2 * i + 1] = receivers[i].closed;
+    }
+    CompletableFuture.allOf(closed).get(300, TimeUnit.SECONDS);
+    application.shutdown();
+    phase.report(out, "transfer + close");
+
+    int mismatched = 0;
+    for (int i = 0; i < connections; i++) {
+      File output = new File(dir, "out" + i);
+      if (!Arrays.equals(Files.readAllBytes(output.toPath()), data))
+        mismatched += 1;
+      output.delete();
+    }
+    input.delete();
+    dir.delete();
+    out.println(mismatched == 0 ? "all outputs match" : mismatched + " outputs differ");
+    System.exit(0);
+  }
+
+  // 一個時間點的process狀態；report印出和上一個時間點的差
+  static final class Footprint {
+    final long nanos;
+    final long cpuNanos;
+    final int threads;
+    final long heap;
+    final long direct;
+
+    private Footprint(long nanos, long cpuNanos, int threads, long heap, long direct) {
+      this.nanos = nanos;
+      this.cpuNanos = cpuNanos;
+      this.threads = threads;
+      this.heap = heap;
+      this.direct = direct;
+    }
+
+    static Footprint sample() {
+      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      long cpu = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+          .getProcessCpuTime();
+      System.gc();
+      long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      long direct = 0;
+      for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+        if (pool.getName().equals("direct"))
+          direct = pool.getMemoryUsed();
+      Footprint footprint = new Footprint(System.nanoTime(), cpu, threadBean.getThreadCount(), heap, direct);
+      threadBean.resetPeakThreadCount();
+      return footprint;
+    }
+
+    Footprint report(PrintStream out, String name) {
+      int peak = ManagementFactory.getThreadMXBean().getPeakThreadCount();
+      Footprint now = sample();
+      out.printf("%-18s %7d ms wall %7d ms CPU  threads %5d (peak %5d)  heap %7.1f MB  direct %6.1f MB%n", name,
+          (now.nanos - nanos) / 1_000_000, (now.cpuNanos - cpuNanos) / 1_000_000, now.threads, peak,
+          now.heap / 1048576.0, now.direct / 1048576.0);
+      return now;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// 比較原本serialize/deserialize/verifyChecksum的路徑與PacketCodec的pooled in-place路徑
+public class PacketCodecBench {
+  public static void main(String[] args) {
+    int payloadSize = args.length > 0 ? Integer.parseInt(args[0]) : 1400;
+    int ops = 200_000;
+    byte[] payload = new byte[payloadSize];
+    new Random(1).nextBytes(payload);
+    TCPpacket packet = new TCPpacket(1, 1, System.nanoTime(), new Boolean[] { false, false, true }, payload);
+    byte[] wire = packet.serialize();
+
+    System.out.println("payload " + payloadSize + " bytes");
+    // 原本的路徑：每次serialize都配置byte[]，verify時deserialize後再serialize一次
+    Bench.run("legacy serialize", ops, () -> packet.serialize().length);
+    Bench.run("legacy deserialize", ops, () -> new TCPpacket().deserialize(wire).seqNum);
+    Bench.run("legacy verify+deserialize", ops, () -> legacyVerify(wire) ? 1 : 0);
+    Bench.run("TCPpacket.verifyChecksum", ops, () -> new TCPpacket().verifyChecksum(wire) ? 1 : 0);
+
+    for (boolean direct : new boolean[] { false, true }) {
+      PacketCodec codec = new PacketCodec(payloadSize + TCPpacket.headerSize, direct);
+      String kind = direct ? "direct" : "heap";
+      Bench.run("codec encode (" + kind + ")", ops, () -> {
+        ByteBuffer buffer = codec.encode(packet);
+        int length = buffer.limit();
+        codec.release(buffer);
+        return length;
+      });
+      ByteBuffer received = codec.acquire();
+      received.put(wire).flip();
+      TCPpacket into = new TCPpacket();
+      Bench.run("codec verify+decode (" + kind + ")", ops, () -> codec.decode(received, into).payload.remaining());
+    }
+  }
+
+  // baseline verifyChecksum的實作方式：deserialize後把checksum清0再serialize一次比較
+  private static boolean legacyVerify(byte[] wire) {
+    TCPpacket packet = new TCPpacket();
+    packet.deserialize(wire);
+    short received = packet.checksum;
+    packet.serialize();
+    return received == packet.checksum;
+  }
+}
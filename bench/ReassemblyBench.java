@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// 嚴重亂序下的重組開銷：一個window的segment以隨機順序抵達（另有10%重複），全部寫出後結束一輪
+// legacy = 原本的PriorityQueue + inBuffer線性掃描 + 遞迴drain；ring = 現在的ReassemblyBuffer
+public class ReassemblyBench {
+  static final int MSS = 1400;
+
+  public static void main(String[] args) {
+    int[] windows = { 64, 1024, 4096 };
+    for (int window : windows) {
+      TCPpacket[] arrivals = arrivals(window, new Random(window));
+      int rounds = Math.max(1, 16384 / window);
+      long expected = (long) window * MSS;
+      Bench.run("legacy PriorityQueue window=" + window, rounds, () -> check(new LegacyReassembly().receive(arrivals), expected));
+      RingReassembly ring = new RingReassembly(window);
+      Bench.run("ReassemblyBuffer window=" + window, rounds, () -> check(ring.receive(arrivals), expected));
+      System.out.println("  (ns/op above are per window; divide by " + arrivals.length + " for per-arrival cost)");
+    }
+  }
+
+  static long check(long written, long expected) {
+    if (written != expected)
+      throw new IllegalStateException("wrote " + written + " bytes, expected " + expected);
+    return written;
+  }
+
+  // seq從1開始的window個segment，payload是共用buffer的view（跟收包時一樣），順序打亂並加入重複
+  static TCPpacket[] arrivals(int window, Random random) {
+    ByteBuffer datagrams = ByteBuffer.allocate(window * MSS);
+    random.nextBytes(datagrams.array());
+    TCPpacket[] segments = new TCPpacket[window + window / 10];
+    for (int i = 0; i < window; i++)
+      segments[i] = segment(datagrams, i);
+    for (int i = window; i < segments.length; i++)
+      segments[i] = segment(datagrams, random.nextInt(window));
+    for (int i = segments.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      TCPpacket tmp = segments[i];
+      segments[i] = segments[j];
+      segments[j] = tmp;
+    }
+    return segments;
+  }
+
+  static TCPpacket segment(ByteBuffer datagrams, int index) {
+    TCPpacket packet = new TCPpacket(1 + index * MSS, 1, 0, new Boolean[] { false, false, false }, null);
+    ByteBuffer view = datagrams.duplicate();
+    view.position(index * MSS).limit((index + 1) * MSS);
+    packet.payload = view.slice();
+    return packet;
+  }
+
+  static final WritableByteChannel NULL_CHANNEL = new WritableByteChannel() {
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      src.position(src.limit());
+      return length;
+    }
+
+    public boolean isOpen() {
+      return true;
+    }
+
+    public void close() {
+    }
+  };
+
+  static long write(ByteBuffer payload) {
+    try {
+      return NULL_CHANNEL.write(payload.duplicate());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // baseline Receiver.handlePacket的做法
+  static final class LegacyReassembly {
+    final PriorityQueue<TCPpacket> receiverBuffer = new PriorityQueue<>((packet1, packet2) -> packet1.seqNum - packet2.seqNum);
+    int ackNum = 1;
+    long written;
+
+    long receive(TCPpacket[] arrivals) {
+      for (TCPpacket packet : arrivals)
+        handlePacket(packet);
+      return written;
+    }
+
+    boolean inBuffer(TCPpacket packet) {
+      for (TCPpacket p : receiverBuffer) {
+        if (p.seqNum == packet.seqNum)
+          return true;
+      }
+      return false;
+    }
+
+    void handlePacket(TCPpacket packet) {
+      switch (Integer.compare(packet.seqNum, ackNum)) {
+        case -1:
+          break;
+        case 1:
+          if (inBuffer(packet))
+            return;
+          // receive buffer會被重用，暫存前必須複製payload（從buffer取出又放回的包裹已經是複製過的）
+          if (packet.data == null) {
+            byte[] data = new byte[packet.getDataLength()];
+            packet.payload.duplicate().get(data);
+            packet = new TCPpacket(packet.seqNum, packet.ackNum, packet.timestamp, packet.flags, data);
+          }
+          receiverBuffer.add(packet);
+          break;
+        case 0:
+          ackNum = packet.getReturnAck();
+          written += write(packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload);
+          if (receiverBuffer.size() > 0)
+            handlePacket(receiverBuffer.poll());
+          break;
+      }
+    }
+  }
+
+  // 現在Receiver.handlePacket的做法；ring在各輪之間重用（跟同一條連線一樣），seq依輪數往後平移
+  static final class RingReassembly {
+    final int window;
+    final ReassemblyBuffer reassembly;
+    int base = 1;
+
+    RingReassembly(int window) {
+      this.window = window;
+      this.reassembly = new ReassemblyBuffer(Math.max(4 << 20, window * MSS), base);
+    }
+
+    long receive(TCPpacket[] arrivals) {
+      int ackNum = base;
+      long written = 0;
+      try {
+        for (TCPpacket packet : arrivals) {
+          int seq = base + packet.seqNum - 1;
+          int end = seq + packet.getDataLength();
+          if (seq - ackNum < 0)
+            continue;
+          if (seq != ackNum) {
+            if (!reassembly.contains(seq, end))
+              reassembly.store(seq, packet.payload);
+            continue;
+          }
+          written += write(packet.payload);
+          ackNum = end;
+          int ready = reassembly.advance(ackNum);
+          if (ready > 0) {
+            reassembly.drainTo(NULL_CHANNEL, ready);
+            ackNum += ready;
+            written += ready;
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      base += window * MSS;
+      return written;
+    }
+  }
+}
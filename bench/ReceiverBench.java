@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// 實際的Receiver.handlePacket（ReassemblyBench量的是重組的模型）：in-order與亂序（打亂的window加上10%重複）
+// 輸出交給寫到/dev/null的WriteBehindFile；每一輪把arrivals的seq接在上一輪的ackNum之後
+public class ReceiverBench {
+  static final int MSS = ReassemblyBench.MSS;
+
+  public static void main(String[] args) throws IOException {
+    int[] windows = { 64, 1024, 4096 };
+    for (int window : windows) {
+      int rounds = Math.max(1, 16384 / window);
+      long expected = (long) window * MSS;
+      Random random = new Random(window);
+      TCPpacket[] inOrder = new TCPpacket[window];
+      ByteBuffer datagrams = ByteBuffer.allocate(window * MSS);
+      random.nextBytes(datagrams.array());
+      for (int i = 0; i < window; i++)
+        inOrder[i] = ReassemblyBench.segment(datagrams, i);
+      TCPpacket[] reordered = ReassemblyBench.arrivals(window, random);
+
+      Receiver receiver = receiver(window);
+      Bench.run("Receiver.handlePacket in-order window=" + window, rounds, () -> deliver(receiver, inOrder, expected));
+      receiver.output.close();
+      Receiver reordering = receiver(window);
+      Bench.run("Receiver.handlePacket reordered window=" + window, rounds,
+          () -> deliver(reordering, reordered, expected));
+      reordering.output.close();
+      System.out.println("  (ns/op above are per window; divide by " + reordered.length + " for per-arrival cost)");
+    }
+  }
+
+  // 已經接受連線的receiver：不送封包，輸出丟到/dev/null
+  static Receiver receiver(int window) throws IOException {
+    TCPConfig config = new TCPConfig();
+    config.trace = PacketTrace.OFF;
+    config.receiveWindow = Math.max(config.receiveWindow, 2 * window * MSS);
+    Receiver receiver = new Receiver(new TimerBench.IdleTransport(),
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 9), MSS + Sender.HEADER_SIZE, 64, null, config);
+    receiver.output = new WriteBehindFile(FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE), 0,
+        TCPConfig.FSYNC_NONE);
+    receiver.setAckNum(1);
+    return receiver;
+  }
+
+  // 送完一個window：arrivals的seq（從1開始）平移到目前的ackNum
+  static long deliver(Receiver receiver, TCPpacket[] arrivals, long expected) {
+    int base = receiver.getAckNum();
+    long before = receiver.metrics.bytesTransferred.sum();
+    for (TCPpacket packet : arrivals) {
+      int offset = packet.seqNum - 1;
+      packet.seqNum = base + offset;
+      receiver.handlePacket(packet);
+      packet.seqNum = 1 + offset;
+    }
+    return ReassemblyBench.check(receiver.metrics.bytesTransferred.sum() - before, expected);
+  }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// nio送出一批datagram的開銷：-e nio逐一DatagramChannel.write，-e mmsg一次sendmmsg
+// （需要先make mmsg，執行時加上NATIVE：make mmsg bench BENCH=SendBatchBench JAVA_FLAGS='$(NATIVE)'）
+// 在loopback上送給一個不讀的socket（收不下的由kernel丟掉），量的是送出端每個datagram的CPU
+// make bench BENCH=SendBatchBench BENCH_ARGS="1452 16 64"（datagram大小與batch大小，預設如左）
+public class SendBatchBench {
+  public static void main(String[] args) throws IOException {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 1452;
+    int[] batches = { 16, 64 };
+    if (args.length > 1) {
+      batches = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++)
+        batches[i - 1] = Integer.parseInt(args[i]);
+    }
+    try (DatagramChannel sink = DatagramChannel.open()) {
+      sink.bind(new InetSocketAddress("127.0.0.1", 0));
+      InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+      ChannelTransport loop = new ChannelTransport(0, size, false);
+      ChannelTransport mmsg = new ChannelTransport(0, size, true);
+      loop.connect(target);
+      mmsg.connect(target);
+      System.out.println("sendmmsg: " + (mmsg.batched() ? "yes" : "no"));
+      for (int batch : batches) {
+        ByteBuffer[] datagrams = new ByteBuffer[batch];
+        for (int i = 0; i < batch; i++)
+          datagrams[i] = ByteBuffer.allocateDirect(size);
+        int ops = Math.max(200, 400_000 / batch);
+        Bench.run("loop size=" + size + " batch=" + batch, ops, () -> {
+          long sent = 0;
+          try {
+            for (ByteBuffer datagram : datagrams) {
+              datagram.clear();
+              sent += loop.send(datagram, target) ? 1 : 0;
+            }
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+          return sent;
+        });
+        if (mmsg.batched())
+          Bench.run("sendmmsg size=" + size + " batch=" + batch, ops, () -> {
+            for (ByteBuffer datagram : datagrams)
+              datagram.clear();
+            try {
+              return mmsg.send(datagrams, batch, target);
+            } catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+          });
+        System.out.println("  (ns/op above are per batch; divide by " + batch + " for per-datagram cost)");
+      }
+      loop.close();
+      mmsg.close();
+    }
+  }
+}
@@ -0,0 +1,110 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// 重送timer的開銷：送出一個window的segment（arm）後逐一cumulative ACK（cancel）
+// legacy = 原本每個segment一個TimerTask + 每次ACK都timer.purge()；wheel = 現在的TimerManager
+public class TimerBench {
+  public static void main(String[] args) {
+    int[] windows = { 64, 1024, 16384, 65536 };
+    for (int window : windows) {
+      TCPpacket[] segments = segments(window);
+      int rounds = Math.max(1, 65536 / window);
+      // legacy每個ACK都purge整個queue（O(window²)），最大的window只量TimerManager
+      if (window <= 16384) {
+        LegacyTimerModel legacy = new LegacyTimerModel();
+        Bench.run("legacy Timer arm+ack window=" + window, rounds, () -> legacy.sendAndAck(segments) / window);
+        legacy.timer.cancel();
+      }
+
+      TimerManager manager = new TimerManager(new IdleHandler());
+      Bench.run("TimingWheel arm+ack window=" + window, rounds, () -> {
+        for (TCPpacket segment : segments)
+          manager.startTimerOnPacket(segment, 0);
+        for (TCPpacket segment : segments)
+          manager.removePacket(segment.getReturnAck());
+        return manager.packetBuffer.size();
+      });
+      System.out.println("  (ns/op above are per window; divide by " + window + " for per-segment cost)");
+    }
+  }
+
+  static TCPpacket[] segments(int window) {
+    TCPpacket[] segments = new TCPpacket[window];
+    for (int i = 0; i < window; i++)
+      segments[i] = new TCPpacket(1 + i * 1400, 1, 0, new Boolean[] { false, false, true }, new byte[1400]);
+    return segments;
+  }
+
+  // baseline TimerManager的做法
+  static final class LegacyTimerModel {
+    final PriorityQueue<LegacyTimerPacket> packetBuffer = new PriorityQueue<>();
+    final Timer timer = new Timer(true);
+
+    long sendAndAck(TCPpacket[] segments) {
+      for (TCPpacket segment : segments) {
+        LegacyTimerPacket timerPacket = new LegacyTimerPacket(segment);
+        packetBuffer.add(timerPacket);
+        timer.schedule(timerPacket, 1000);
+      }
+      for (TCPpacket segment : segments) {
+        int ackNum = segment.getReturnAck();
+        while (!packetBuffer.isEmpty() && packetBuffer.peek().tcpPacket.getReturnAck() <= ackNum)
+          packetBuffer.poll().cancel();
+        timer.purge();
+      }
+      return packetBuffer.size();
+    }
+  }
+
+  static final class LegacyTimerPacket extends TimerTask implements Comparable<LegacyTimerPacket> {
+    final TCPpacket tcpPacket;
+
+    LegacyTimerPacket(TCPpacket tcpPacket) {
+      this.tcpPacket = tcpPacket;
+    }
+
+    public void run() {
+    }
+
+    public int compareTo(LegacyTimerPacket other) {
+      return this.tcpPacket.seqNum - other.tcpPacket.seqNum;
+    }
+  }
+
+  // TimerManager需要一個handler；bench中不會真的timeout
+  static final class IdleHandler extends TCPHandler {
+    IdleHandler() {
+      super(new IdleTransport(), null, 1500, 64, new TCPConfig());
+    }
+
+    void handlePacket(TCPpacket packet) {
+    }
+  }
+
+  static final class IdleTransport implements DatagramTransport {
+    public void connect(InetSocketAddress remote) {
+    }
+
+    public boolean isConnected() {
+      return true;
+    }
+
+    public boolean send(ByteBuffer datagram, InetSocketAddress target) {
+      return true;
+    }
+
+    public int receive(Handler handler) {
+      return 0;
+    }
+
+    public boolean prefersDirectBuffers() {
+      return false;
+    }
+
+    public void close() {
+    }
+  }
+}
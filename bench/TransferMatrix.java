@@ -0,0 +1,183 @@
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// 在EmulatedTransport模擬的網路條件下跑Sender→Receiver的傳輸（同一個process、loopback），條件套用在兩個方向（RTT = 2 × delay）
+// 每個條件×擁塞控制一列：完成時間、goodput、重送、模擬丟掉的包裹、CPU時間、輸出是否正確；有失敗時exit code為1（可以放在CI）
+// make bench BENCH=TransferMatrix BENCH_ARGS="2048 newreno,cubic,bbr"（每次傳送的KB、擁塞控制，之後可以接自訂的條件）
+// 最前面可以加 -fec off|auto|<segments>：sender使用FEC（例如比較 "-fec auto 2048 newreno delay=10,loss=1%" 與沒有FEC的結果）
+// -compress off|on|<level>：sender壓縮；-input random|text：傳送隨機的bytes（預設）或可壓縮的log文字
+// MB/s是檔案的bytes除以完成時間
+public class TransferMatrix {
+  static final int MTU = 1400 + 52;
+  static final int SWS = 256;
+  static final long TIMEOUT_SECONDS = 120;
+  static final String[] CONDITIONS = {
+      "none",
+      "delay=20",
+      "delay=20,jitter=5",
+      "delay=10,loss=1%",
+      "delay=10,loss=5%",
+      // reorder的包裹比delay晚1 ms送出（不是跳過delay），RTT樣本不會低於真的RTT：
+      // 以前bbr的min_rtt會掉到~0.5 ms、cwnd卡在最小值（2 MB要7.6 s），現在約0.3 s；
+      // newreno/cubic會因為真的亂序產生dupack而重送，比沒有reorder的條件慢
+      "delay=10,reorder=5%",
+      "delay=5,dup=2%,corrupt=1%",
+      "delay=10,rate=20",
+  };
+
+  static int fec = TCPConfig.FEC_OFF;
+  static int compress = 0;
+  static String inputKind = "random";
+
+  public static void main(String[] args) throws Exception {
+    while (args.length >= 2 && args[0].startsWith("-")) {
+      String value = args[1];
+      switch (args[0]) {
+        case "-fec":
+          fec = "auto".equals(value) ? TCPConfig.FEC_AUTO : "off".equals(value) ? TCPConfig.FEC_OFF
+              : Integer.parseInt(value);
+          break;
+        case "-compress":
+          compress = "off".equals(value) ? 0 : "on".equals(value) ? 1 : Integer.parseInt(value);
+          break;
+        case "-input":
+          inputKind = value;
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[0]);
+      }
+      args = Arrays.copyOfRange(args, 2, args.length);
+    }
+    int kb = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+    String[] controllers = (args.length > 1 ? args[1] : "newreno,cubic,bbr").split(",");
+    String[] conditions = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : CONDITIONS;
+    File dir = Files.createTempDirectory("transfer-matrix").toFile();
+    File input = new File(dir, "in.bin");
+    byte[] data = "text".equals(inputKind) ? logText(kb * 1024) : new byte[kb * 1024];
+    if (!"text".equals(inputKind))
+      new Random(1).nextBytes(data);
+    Files.write(input.toPath(), data);
+    int port = 20000 + ThreadLocalRandom.current().nextInt(20000);
+
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream())); // 每個連線的log與統計
+    out.println("transfer=" + kb + " KB (" + inputKind + ") mtu=" + MTU + " sws=" + SWS + " fec="
+        + (fec == TCPConfig.FEC_AUTO ? "auto" : fec == TCPConfig.FEC_OFF ? "off" : String.valueOf(fec))
+        + " compress=" + (compress == 0 ? "off" : String.valueOf(compress)));
+    out.printf("%-28s %-8s %9s %9s %8s %8s %8s  %s%n", "conditions", "cc", "time(ms)", "MB/s", "retrans", "emulated",
+        "cpu(ms)", "result");
+    // 第一個傳輸包含JIT warmup：先跑一次不列出
+    transfer(new NetworkConditions(), controllers[0], input, new File(dir, "out.bin"), data, port);
+    port += 2;
+    List<String> failures = new ArrayList<>();
+    for (String spec : conditions) {
+      for (String cc : controllers) {
+        NetworkConditions network = NetworkConditions.parse(spec);
+        Result result = transfer(network, cc, input, new File(dir, "out.bin"), data, port);
+        port += 2;
+        out.printf("%-28s %-8s %9d %9.2f %8d %8d %8d  %s%n", network, cc, result.millis,
+            result.ok ? data.length / 1048576.0 / (result.millis / 1000.0) : 0.0, result.retransmissions,
+            result.emulated, result.cpuMillis, result.ok ? "ok" : result.failure);
+        if (!result.ok)
+          failures.add(network + " " + cc + ": " + result.failure);
+      }
+    }
+    input.delete();
+    dir.delete();
+    out.println(failures.isEmpty() ? "all transfers passed" : failures.size() + " transfers failed");
+    System.exit(failures.isEmpty() ? 0 : 1);
+  }
+
+  static final class Result {
+    long millis;
+    long cpuMillis;
+    long retransmissions;
+    long emulated; // 兩個方向被模擬丟掉、排隊丟掉、複製與損壞的包裹
+    boolean ok;
+    String failure;
+  }
+
+  static Result transfer(NetworkConditions network, String cc, File input, File output, byte[] data, int port)
+      throws Exception {
+    TCPConfig receiverConfig = new TCPConfig();
+    receiverConfig.trace = PacketTrace.OFF;
+    receiverConfig.network = network;
+    TCPConfig senderConfig = new TCPConfig();
+    senderConfig.trace = PacketTrace.OFF;
+    senderConfig.network = network;
+    senderConfig.congestionControl = cc;
+    senderConfig.fec = fec;
+    senderConfig.compress = compress;
+    Result result = new Result();
+    long cpu = processCpuNanos();
+    long start = System.nanoTime();
+    Receiver receiver = new Receiver(port, MTU, SWS, output.getPath(), receiverConfig);
+    receiver.start();
+    Sender sender = new Sender(port + 1, InetAddress.getLoopbackAddress(), port, input.getPath(), MTU, SWS,
+        senderConfig);
+    sender.start();
+    Thread transmission = new Thread(sender::startFileTransmission, "transmission");
+    transmission.setDaemon(true);
+    transmission.start();
+    try {
+      // receiver在收到FIN的最後一個ACK時關閉：所有資料都已寫出；sender之後還有TIME_WAIT
+      receiver.closed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      result.millis = (System.nanoTime() - start) / 1_000_000;
+      sender.closed.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      result.ok = Arrays.equals(Files.readAllBytes(output.toPath()), data);
+      if (!result.ok)
+        result.failure = "output differs";
+    } catch (TimeoutException e) {
+      result.millis = (System.nanoTime() - start) / 1_000_000;
+      result.failure = "timed out";
+      sender.endThread();
+      receiver.endThread();
+    }
+    result.cpuMillis = (processCpuNanos() - cpu) / 1_000_000;
+    result.retransmissions = sender.metrics.retransmissions.sum();
+    result.emulated = emulated(sender.transport) + emulated(receiver.transport);
+    output.delete();
+    return result;
+  }
+
+  // 類似access log的文字：Deflater level 1約壓到1/4
+  static byte[] logText(int length) {
+    Random random = new Random(1);
+    String[] levels = { "INFO", "INFO", "INFO", "WARN", "DEBUG" };
+    int[] statuses = { 200, 200, 200, 304, 404, 500 };
+    StringBuilder text = new StringBuilder(length + 200);
+    long millis = 0;
+    while (text.length() < length) {
+      millis += 1 + random.nextInt(500);
+      text.append(String.format(java.util.Locale.ROOT,
+          "2026-10-18T12:%02d:%02d.%03dZ %s [worker-%d] GET /api/v1/items/%d status=%d bytes=%d latency_ms=%d user=%08x%n",
+          millis / 60000 % 60, millis / 1000 % 60, millis % 1000, levels[random.nextInt(levels.length)],
+          1 + random.nextInt(16), 1 + random.nextInt(100000), statuses[random.nextInt(statuses.length)],
+          100 + random.nextInt(90000), 1 + random.nextInt(900), random.nextInt()));
+    }
+    return Arrays.copyOf(text.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII), length);
+  }
+
+  static long emulated(DatagramTransport transport) {
+    if (!(transport instanceof EmulatedTransport))
+      return 0;
+    EmulatedTransport emulated = (EmulatedTransport) transport;
+    return emulated.lost.sum() + emulated.queueDrops.sum() + emulated.duplicated.sum() + emulated.corrupted.sum();
+  }
+
+  static long processCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+        .getProcessCpuTime();
+  }
+}
@@ -0,0 +1,113 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAddress;
+import sun.nio.ch.DirectBuffer;
+import sun.nio.ch.SelChImpl;
+
+// sendmmsg(2)：一次system call送出多個datagram（Linux x86_64/aarch64），透過jdk.incubator.foreign呼叫libc
+// 不在預設的build裡：make mmsg另外編譯，只有JDK 17/18有這個incubator module（之後的JDK改成java.lang.foreign）
+// 執行需要java --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED --add-exports java.base/sun.nio.ch=ALL-UNNAMED
+// （Makefile的NATIVE）；ChannelTransport用reflection建立，沒有編譯或不能使用時-e mmsg就是-e nio
+// struct用native byte order的direct ByteBuffer填（JIT早就編譯好的路徑），foreign API只用在downcall本身
+final class SendMmsg implements ChannelTransport.BatchSender {
+  // 一次system call最多送出的datagram數（kernel的上限UIO_MAXIOV是1024）
+  static final int MAX_BATCH = 64;
+  // LP64的struct mmsghdr { struct msghdr msg_hdr; unsigned msg_len; }、struct iovec與struct sockaddr_in
+  private static final int MMSGHDR = 64;
+  private static final int MSG_NAME = 0;
+  private static final int MSG_NAMELEN = 8;
+  private static final int MSG_IOV = 16;
+  private static final int MSG_IOVLEN = 24;
+  private static final int IOVEC = 16;
+  private static final int SOCKADDR_IN = 16;
+  private static final short AF_INET = 2;
+
+  private static final MethodHandle SENDMMSG = CLinker.getInstance().downcallHandle(
+      CLinker.systemLookup().lookup("sendmmsg").orElseThrow(),
+      MethodType.methodType(int.class, int.class, MemoryAddress.class, int.class, int.class),
+      FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT, CLinker.C_INT));
+  // 每個thread一份mmsghdr/iovec/sockaddr陣列；thread結束、ThreadLocal被GC之後才釋放
+  private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(
+      () -> ByteBuffer.allocateDirect(MAX_BATCH * (MMSGHDR + IOVEC) + SOCKADDR_IN).order(ByteOrder.nativeOrder()));
+
+  private final int fd;
+
+  // 不是Linux x86_64/aarch64或拿不到channel的file descriptor時丟出UnsupportedOperationException
+  SendMmsg(DatagramChannel channel) {
+    if (!usable())
+      throw new UnsupportedOperationException("sendmmsg needs Linux on amd64 or aarch64");
+    fd = fd(channel);
+    if (fd < 0)
+      throw new UnsupportedOperationException("no file descriptor for " + channel);
+  }
+
+  private static boolean usable() {
+    String os = System.getProperty("os.name");
+    String arch = System.getProperty("os.arch");
+    return "Linux".equals(os) && ("amd64".equals(arch) || "aarch64".equals(arch));
+  }
+
+  // DatagramChannel的file descriptor；不是JDK的實作或拿不到時回傳-1
+  private static int fd(DatagramChannel channel) {
+    try {
+      return channel instanceof SelChImpl ? ((SelChImpl) channel).getFDVal() : -1;
+    } catch (IllegalAccessError e) {
+      return -1; // 沒有--add-exports java.base/sun.nio.ch
+    }
+  }
+
+  @Override
+  public int maxBatch() {
+    return MAX_BATCH;
+  }
+
+  // 送出datagrams[from, from + count)（count <= MAX_BATCH，都是direct buffer），回傳kernel收下的數量；
+  // target為null時socket必須已經connect；-1 = 錯誤（包括send buffer滿的EAGAIN），由呼叫者改用一般的send
+  @Override
+  public int send(ByteBuffer[] datagrams, int from, int count, InetSocketAddress target) {
+    ByteBuffer scratch = SCRATCH.get();
+    long base = ((DirectBuffer) scratch).address();
+    int iovs = MAX_BATCH * MMSGHDR;
+    int name = MAX_BATCH * (MMSGHDR + IOVEC);
+    if (target != null) {
+      scratch.putShort(name, AF_INET);
+      scratch.put(name + 2, (byte) (target.getPort() >>> 8));
+      scratch.put(name + 3, (byte) target.getPort());
+      scratch.put(name + 4, target.getAddress().getAddress());
+      scratch.putLong(name + 8, 0);
+    }
+    for (int i = 0; i < count; i++) {
+      ByteBuffer datagram = datagrams[from + i];
+      int iov = iovs + i * IOVEC;
+      int message = i * MMSGHDR;
+      scratch.putLong(iov, ((DirectBuffer) datagram).address() + datagram.position());
+      scratch.putLong(iov + 8, datagram.remaining());
+      for (int offset = 0; offset < MMSGHDR; offset += 8)
+        scratch.putLong(message + offset, 0);
+      if (target != null) {
+        scratch.putLong(message + MSG_NAME, base + name);
+        scratch.putInt(message + MSG_NAMELEN, SOCKADDR_IN);
+      }
+      scratch.putLong(message + MSG_IOV, base + iov);
+      scratch.putLong(message + MSG_IOVLEN, 1);
+    }
+    try {
+      return (int) SENDMMSG.invokeExact(fd, MemoryAddress.ofLong(base), count, 0);
+    } catch (Throwable e) {
+      return -1;
+    }
+  }
+
+  // 可以用sendmmsg送出的位址：connect過的socket不需要（null），未connect時只支援IPv4
+  @Override
+  public boolean supports(InetSocketAddress target) {
+    return target == null || target.getAddress() instanceof Inet4Address;
+  }
+}
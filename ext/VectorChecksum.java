@@ -0,0 +1,60 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Checksum的ones'-complement sum用Vector API（make ext另外編譯，預設的build不需要incubator module）
+// 只用JDK 17之後每一版都有的API：ByteVector.fromArray再reinterpret成native order的int lane，
+// 高低兩個16-bit word加到lane的累加器，最後整個vector加總成long再折回16 bits；
+// little-endian平台上加的是byte對調的word，折完再對調回來（RFC 1071：sum與byte order無關）
+// 不足一個vector的尾端交給Checksum的scalar loop
+// Checksum用reflection載入：沒有編譯、執行時沒有--add-modules jdk.incubator.vector或vector不到128 bits時都用scalar
+final class VectorChecksum implements Checksum.Backend {
+  private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED; // 同樣的shape
+  private static final int STEP = SPECIES.vectorByteSize();
+  private static final boolean SWAPPED = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+  // 每個lane每次最多加2 * 0xFFFF：累加這麼多次之後先加到long
+  // reduceLanesToLong也是以int加總各lane，所以所有lane的和都不能超過int
+  private static final int FLUSH = Integer.MAX_VALUE / (2 * 0xFFFF) / INTS.length();
+  // direct buffer先複製到這裡再加總（fromByteBuffer在新的JDK上已經移除）
+  private static final ThreadLocal<byte[]> COPY = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+  // 沒有SIMD的平台上Vector API是很慢的Java實作：至少要128-bit的vector
+  VectorChecksum() {
+    if (SPECIES.vectorBitSize() < 128)
+      throw new UnsupportedOperationException("vector too small: " + SPECIES.vectorBitSize() + " bits");
+  }
+
+  @Override
+  public int sum(byte[] data, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    long sum = 0;
+    while (end - i >= STEP) {
+      IntVector acc = IntVector.zero(INTS);
+      for (int n = 0; n < FLUSH && end - i >= STEP; n++, i += STEP) {
+        IntVector words = (IntVector) ByteVector.fromArray(SPECIES, data, i).reinterpretAsInts();
+        acc = acc.add(words.lanewise(VectorOperators.LSHR, 16)).add(words.and(0xFFFF));
+      }
+      sum += acc.reduceLanesToLong(VectorOperators.ADD);
+    }
+    int head = Checksum.fold(sum);
+    if (SWAPPED)
+      head = (head & 0xFF) << 8 | head >>> 8;
+    return Checksum.fold(Checksum.tail(data, i, end, head));
+  }
+
+  @Override
+  public int sum(ByteBuffer buffer, int offset, int length) {
+    if (buffer.hasArray())
+      return sum(buffer.array(), buffer.arrayOffset() + offset, length);
+    byte[] copy = COPY.get();
+    if (length > copy.length)
+      return Checksum.scalarSum(buffer, offset, length);
+    buffer.get(offset, copy, 0, length);
+    return sum(copy, 0, length);
+  }
+}
@@ -0,0 +1,224 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// BBR（v1）：由delivery rate sample估計bottleneck bandwidth（最近10個round的最大值）與min RTT（10秒內最小值，
+// 來自ACK的timestamp echo），以pacing_gain * btlBw的速率送出；cwnd只是上限（cwnd_gain * BDP）
+public class BbrController implements CongestionController {
+  static final double HIGH_GAIN = 2.885; // 2/ln2：startup每個round速率加倍
+  static final double[] PROBE_BW_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+  static final int BW_WINDOW_ROUNDS = 10;
+  static final long MIN_RTT_WINDOW = 10_000_000_000L; // 10s
+  static final long PROBE_RTT_DURATION = 200_000_000L; // 200ms
+  static final int MIN_CWND_SEGMENTS = 4;
+
+  enum Mode { STARTUP, DRAIN, PROBE_BW, PROBE_RTT }
+
+  final int mss;
+  long cwnd;
+  Mode mode = Mode.STARTUP;
+  double pacingGain = HIGH_GAIN;
+  double cwndGain = HIGH_GAIN;
+  long btlBw; // bytes/s
+  long minRtt = Long.MAX_VALUE;
+  private final long[] bwSamples = new long[BW_WINDOW_ROUNDS];
+  private long minRttStamp;
+  private long roundCount;
+  private long nextRoundDelivered;
+  private boolean roundStart;
+  private boolean filledPipe;
+  private long fullBw;
+  private int fullBwCount;
+  private int cycleIndex;
+  private long cycleStamp;
+  private long probeRttDoneStamp;
+  private long priorCwnd;
+
+  public BbrController(int mss) {
+    this.mss = mss;
+    this.cwnd = (long) NewRenoController.INITIAL_WINDOW_SEGMENTS * mss;
+  }
+
+  // cwnd由rate sample控制，cumulative ACK本身不需要另外處理
+  public void onAck(int ackedBytes, long rttNanos) {
+  }
+
+  public synchronized void onRateSample(DeliveryRateSampler.RateSample sample) {
+    long now = System.nanoTime();
+    updateRound(sample);
+    updateBtlBw(sample);
+    updateMinRtt(sample, now);
+    checkFullPipe(sample);
+    checkDrain(sample, now);
+    updateCycle(now);
+    updateProbeRtt(sample, now);
+    updateCwnd(sample);
+  }
+
+  // 每當被ACK的包裹是在上一個round開始之後送出的，就進入新的round
+  private void updateRound(DeliveryRateSampler.RateSample sample) {
+    roundStart = false;
+    if (sample.priorDelivered >= 0 && sample.priorDelivered >= nextRoundDelivered) {
+      nextRoundDelivered = sample.delivered;
+      roundCount += 1;
+      roundStart = true;
+      bwSamples[(int) (roundCount % BW_WINDOW_ROUNDS)] = 0;
+    }
+  }
+
+  // app-limited的sample只有在比目前估計還大時才採用
+  private void updateBtlBw(DeliveryRateSampler.RateSample sample) {
+    if (sample.deliveryRate <= 0 || (sample.appLimited && sample.deliveryRate < btlBw))
+      return;
+    int slot = (int) (roundCount % BW_WINDOW_ROUNDS);
+    bwSamples[slot] = Math.max(bwSamples[slot], sample.deliveryRate);
+    long max = 0;
+    for (long bw : bwSamples)
+      max = Math.max(max, bw);
+    btlBw = max;
+  }
+
+  private void updateMinRtt(DeliveryRateSampler.RateSample sample, long now) {
+    boolean expired = minRttStamp != 0 && now - minRttStamp > MIN_RTT_WINDOW;
+    if (sample.rttNanos > 0 && (sample.rttNanos <= minRtt || expired)) {
+      minRtt = sample.rttNanos;
+      minRttStamp = now;
+    }
+    if (expired && mode != Mode.PROBE_RTT) {
+      mode = Mode.PROBE_RTT;
+      pacingGain = 1;
+      cwndGain = 1;
+      priorCwnd = cwnd;
+      probeRttDoneStamp = 0;
+    }
+  }
+
+  // 連續3個round頻寬成長不到25%，代表已經填滿bottleneck
+  private void checkFullPipe(DeliveryRateSampler.RateSample sample) {
+    if (filledPipe || !roundStart || sample.appLimited)
+      return;
+    if (btlBw >= fullBw * 1.25) {
+      fullBw = btlBw;
+      fullBwCount = 0;
+      return;
+    }
+    fullBwCount += 1;
+    if (fullBwCount >= 3) {
+      filledPipe = true;
+      if (mode == Mode.STARTUP) {
+        mode = Mode.DRAIN;
+        pacingGain = 1 / HIGH_GAIN;
+        cwndGain = HIGH_GAIN;
+      }
+    }
+  }
+
+  private void checkDrain(DeliveryRateSampler.RateSample sample, long now) {
+    if (mode == Mode.DRAIN && sample.inFlightBytes <= bdp(1.0))
+      enterProbeBw(now);
+  }
+
+  private void enterProbeBw(long now) {
+    mode = Mode.PROBE_BW;
+    cwndGain = 2;
+    // 從0.75以外的隨機phase開始，避免多條flow同步
+    cycleIndex = ThreadLocalRandom.current().nextInt(PROBE_BW_GAINS.length - 1);
+    if (cycleIndex >= 1)
+      cycleIndex += 1;
+    pacingGain = PROBE_BW_GAINS[cycleIndex];
+    cycleStamp = now;
+  }
+
+  // PROBE_BW：每個min RTT換下一個gain
+  private void updateCycle(long now) {
+    if (mode != Mode.PROBE_BW || minRtt == Long.MAX_VALUE || now - cycleStamp <= minRtt)
+      return;
+    cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+    pacingGain = PROBE_BW_GAINS[cycleIndex];
+    cycleStamp = now;
+  }
+
+  // PROBE_RTT：cwnd降到4個segment，排空佇列後維持200ms重新量min RTT
+  private void updateProbeRtt(DeliveryRateSampler.RateSample sample, long now) {
+    if (mode != Mode.PROBE_RTT)
+      return;
+    if (probeRttDoneStamp == 0) {
+      if (sample.inFlightBytes <= minCwnd())
+        probeRttDoneStamp = now + PROBE_RTT_DURATION;
+    } else if (now - probeRttDoneStamp >= 0) {
+      minRttStamp = now;
+      cwnd = Math.max(cwnd, priorCwnd);
+      if (filledPipe) {
+        enterProbeBw(now);
+      } else {
+        mode = Mode.STARTUP;
+        pacingGain = HIGH_GAIN;
+        cwndGain = HIGH_GAIN;
+      }
+    }
+  }
+
+  private void updateCwnd(DeliveryRateSampler.RateSample sample) {
+    long target = bdp(cwndGain) + 3L * mss;
+    if (filledPipe)
+      cwnd = Math.min(cwnd + sample.ackedBytes, target);
+    else if (cwnd < target || sample.delivered < (long) NewRenoController.INITIAL_WINDOW_SEGMENTS * mss)
+      cwnd += sample.ackedBytes;
+    cwnd = Math.max(cwnd, minCwnd());
+    if (mode == Mode.PROBE_RTT)
+      cwnd = Math.min(cwnd, minCwnd());
+  }
+
+  private long bdp(double gain) {
+    if (btlBw == 0 || minRtt == Long.MAX_VALUE)
+      return (long) NewRenoController.INITIAL_WINDOW_SEGMENTS * mss;
+    return (long) (gain * btlBw * (minRtt / 1e9));
+  }
+
+  private long minCwnd() {
+    return (long) MIN_CWND_SEGMENTS * mss;
+  }
+
+  // 遺失時packet conservation：cwnd不超過還在路上的量，之後依ACK再長回來
+  public synchronized void onCongestionEvent(long inFlightBytes) {
+    priorCwnd = cwnd;
+    cwnd = Math.max(inFlightBytes, minCwnd());
+  }
+
+  public synchronized void onRetransmissionTimeout(long inFlightBytes) {
+    priorCwnd = cwnd;
+    cwnd = mss;
+  }
+
+  // 還沒有頻寬估計時用 HIGH_GAIN * cwnd / RTT；連RTT都沒有時不pacing（只受初始cwnd限制）
+  public synchronized long getPacingRate() {
+    if (btlBw > 0)
+      return (long) (pacingGain * btlBw);
+    if (minRtt != Long.MAX_VALUE && minRtt > 0)
+      return (long) (HIGH_GAIN * cwnd * 1e9 / minRtt);
+    return 0;
+  }
+
+  // 只沿用cwnd：頻寬與min RTT仍然從這條連線的rate sample估計
+  public synchronized void restore(long cwnd, long ssthresh) {
+    this.cwnd = Math.max(this.cwnd, cwnd);
+  }
+
+  public synchronized long getCwnd() {
+    return cwnd;
+  }
+
+  public long getSsthresh() {
+    return Long.MAX_VALUE;
+  }
+
+  public synchronized long getBtlBw() {
+    return btlBw;
+  }
+
+  public synchronized long getMinRtt() {
+    return minRtt;
+  }
+
+  public String getName() {
+    return BBR;
+  }
+}
@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+// sender的壓縮（-compress）：檔案以BLOCK_SIZE為單位壓縮之後才切成segment，seq空間是壓縮後的bytes
+// 每個block前面有8 bytes的header：{flags + 存的長度(32), 原始長度(32)}，flags的最高bit = deflate
+// 壓縮後沒有省下至少1/8的block直接存原始資料；連續幾個block都壓不下來時，之後只偶爾再試（隨機資料不浪費CPU）
+// 一個segment可以跨過block的邊界（複製成一個新的byte[]），segment都是滿的
+public class BlockDeflater implements AutoCloseable {
+  static final int BLOCK_SIZE = 64 * 1024;
+  static final int HEADER_SIZE = 8;
+  static final int DEFLATED = 0x80000000;
+  static final int MAX_STORED = 0x7FFFFFFF;
+  // 連續SKIP_AFTER個block壓不下來之後，每SKIP_INTERVAL個block才再試一次
+  static final int SKIP_AFTER = 4;
+  static final int SKIP_INTERVAL = 16;
+
+  private final Sender.MappedSource source;
+  private final Deflater deflater;
+  private final CRC32C checksum;
+  private ByteBuffer block = ByteBuffer.allocate(0);
+  private int incompressible;
+  private int skipped;
+  private final ConnectionMetrics metrics;
+
+  // checksum：striped transfer的範圍CRC32C（以原始bytes計算），不需要時為null
+  BlockDeflater(Sender.MappedSource source, int level, CRC32C checksum, ConnectionMetrics metrics) {
+    this.source = source;
+    this.deflater = new Deflater(level);
+    this.checksum = checksum;
+    this.metrics = metrics;
+  }
+
+  boolean hasRemaining() {
+    return block.hasRemaining() || source.remaining() > 0;
+  }
+
+  // 下一個最多mss bytes的segment
+  ByteBuffer next(int mss) throws java.io.IOException {
+    if (!block.hasRemaining())
+      nextBlock();
+    if (block.remaining() >= mss || source.remaining() == 0) {
+      ByteBuffer slice = block.slice(block.position(), Math.min(mss, block.remaining()));
+      block.position(block.position() + slice.remaining());
+      return slice;
+    }
+    // block剩下的不到一個segment：接上下一個block
+    byte[] joined = new byte[mss];
+    int length = 0;
+    while (length < mss && (block.hasRemaining() || source.remaining() > 0)) {
+      if (!block.hasRemaining())
+        nextBlock();
+      int n = Math.min(mss - length, block.remaining());
+      block.get(joined, length, n);
+      length += n;
+    }
+    return ByteBuffer.wrap(joined, 0, length);
+  }
+
+  // 壓縮下一個block；block的byte[]會被在路上的segment參考，每個block配置新的
+  private void nextBlock() throws java.io.IOException {
+    ByteBuffer raw = source.next(BLOCK_SIZE);
+    int rawLength = raw.remaining();
+    if (checksum != null)
+      checksum.update(raw.duplicate());
+    // 壓縮後最多可以用的空間：省不到1/8就不值得
+    int limit = rawLength - rawLength / 8;
+    byte[] encoded = new byte[HEADER_SIZE + rawLength];
+    int stored = -1;
+    if (incompressible < SKIP_AFTER || ++skipped % SKIP_INTERVAL == 0) {
+      deflater.reset();
+      deflater.setInput(raw.duplicate());
+      deflater.finish();
+      int n = 0;
+      while (!deflater.finished() && n < limit)
+        n += deflater.deflate(encoded, HEADER_SIZE + n, limit - n);
+      if (deflater.finished() && n < limit)
+        stored = n;
+    }
+    ByteBuffer header = ByteBuffer.wrap(encoded, 0, HEADER_SIZE);
+    if (stored >= 0) {
+      header.putInt(DEFLATED | stored).putInt(rawLength);
+      metrics.blocksDeflated.increment();
+      incompressible = 0;
+      skipped = 0;
+    } else {
+      stored = rawLength;
+      raw.duplicate().get(encoded, HEADER_SIZE, rawLength);
+      header.putInt(stored).putInt(rawLength);
+      metrics.blocksStored.increment();
+      incompressible += 1;
+    }
+    metrics.rawBytes.add(rawLength);
+    metrics.compressedBytes.add(HEADER_SIZE + stored);
+    block = ByteBuffer.wrap(encoded, 0, HEADER_SIZE + stored);
+  }
+
+  public void close() {
+    deflater.end();
+  }
+}
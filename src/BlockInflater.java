@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// receiver的解壓縮：in-order的bytes是BlockDeflater的block串（header + 存的資料），解開後寫到output
+// 以串流的方式處理：deflate的block邊收邊inflate，存原始資料的block直接交給output，不需要湊齊整個block
+// 只在network thread上呼叫（與Receiver寫output的路徑相同）
+public class BlockInflater implements WritableByteChannel {
+  private final WritableByteChannel output;
+  private final Inflater inflater = new Inflater();
+  private final ByteBuffer header = ByteBuffer.allocate(BlockDeflater.HEADER_SIZE);
+  private final byte[] inflated = new byte[BlockDeflater.BLOCK_SIZE];
+  private boolean deflated;
+  private int storedRemaining; // 目前block還沒收到的bytes；0 = 下一個是header
+  private int rawLength;
+  private boolean open = true;
+  private final ConnectionMetrics metrics;
+
+  BlockInflater(WritableByteChannel output, ConnectionMetrics metrics) {
+    this.output = output;
+    this.metrics = metrics;
+  }
+
+  // 目前block已經收到、但還沒解開的bytes（只有header的一部分會暫存）
+  int bufferedBytes() {
+    return header.position();
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    while (src.hasRemaining()) {
+      if (storedRemaining == 0) {
+        readHeader(src);
+        continue;
+      }
+      int n = Math.min(storedRemaining, src.remaining());
+      ByteBuffer part = src.duplicate();
+      part.limit(part.position() + n);
+      src.position(src.position() + n);
+      storedRemaining -= n;
+      if (deflated)
+        inflate(part);
+      else
+        writeFully(part);
+      if (storedRemaining == 0 && deflated)
+        finishBlock();
+    }
+    return length;
+  }
+
+  private void readHeader(ByteBuffer src) throws IOException {
+    while (header.hasRemaining() && src.hasRemaining())
+      header.put(src.get());
+    if (header.hasRemaining())
+      return;
+    int word = header.getInt(0);
+    deflated = (word & BlockDeflater.DEFLATED) != 0;
+    storedRemaining = word & BlockDeflater.MAX_STORED;
+    rawLength = header.getInt(4);
+    header.clear();
+    if (rawLength < 0 || rawLength > BlockDeflater.BLOCK_SIZE || (!deflated && storedRemaining != rawLength))
+      throw new IOException("corrupt compressed block header");
+    metrics.compressedBytes.add(BlockDeflater.HEADER_SIZE + storedRemaining);
+    if (deflated) {
+      inflater.reset();
+      metrics.blocksDeflated.increment();
+    } else {
+      metrics.blocksStored.increment();
+    }
+    if (storedRemaining == 0 && deflated)
+      finishBlock();
+  }
+
+  private void inflate(ByteBuffer part) throws IOException {
+    inflater.setInput(part);
+    try {
+      while (true) {
+        int n = inflater.inflate(inflated);
+        if (n > 0)
+          writeFully(ByteBuffer.wrap(inflated, 0, n));
+        else if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())
+          break;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("corrupt compressed block: " + e.getMessage());
+    }
+    if (part.hasRemaining() && !inflater.finished())
+      throw new IOException("corrupt compressed block");
+  }
+
+  // 整個block都收到了：解開的長度必須與header相同
+  private void finishBlock() throws IOException {
+    if (!inflater.finished() || inflater.getBytesWritten() != rawLength)
+      throw new IOException("corrupt compressed block: " + inflater.getBytesWritten() + " of " + rawLength + " bytes");
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    metrics.rawBytes.add(buffer.remaining());
+    while (buffer.hasRemaining())
+      output.write(buffer);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  // 只釋放Inflater，output由Receiver關閉
+  @Override
+  public void close() {
+    if (open) {
+      open = false;
+      inflater.end();
+    }
+  }
+}
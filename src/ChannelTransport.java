@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking DatagramChannel + Selector：一個I/O thread每次wakeup把socket buffer裡的datagram全部讀完
+// 一般的連線註冊到共用的EventLoop；只有直接呼叫receive()時（ConnectionListener）才開自己的selector
+// -e mmsg：一批datagram在Linux上用sendmmsg（ext/SendMmsg，make mmsg另外編譯）一次system call送出；不能使用時逐一send
+public class ChannelTransport implements DatagramTransport {
+  // send buffer滿時最多等這麼久讓它清出空間，之後才丟掉datagram（local drop）
+  static final long SEND_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final DatagramChannel channel;
+  private final int mtu;
+  private volatile Selector selector;
+  private ByteBuffer receiveBuffer;
+  // 只在send buffer滿時使用：等OP_WRITE的selector（不影響EventLoop上的OP_READ註冊）
+  private final Object writeLock = new Object();
+  private Selector writeSelector;
+  // -e mmsg：第一次送出一批時才建立batch（null = 逐一送出）；close時持有batchLock，關閉後fd號碼可能被重用
+  private boolean wantsBatch;
+  private BatchSender batch;
+  private final Object batchLock = new Object();
+
+  // 一次system call送出多個datagram的實作（ext/SendMmsg）：核心的build不依賴incubator module，用reflection載入
+  interface BatchSender {
+    // 送出datagrams[from, from + count)（count <= maxBatch()，都是direct buffer），回傳送出的數量，-1 = 錯誤
+    int send(ByteBuffer[] datagrams, int from, int count, InetSocketAddress target);
+
+    int maxBatch();
+
+    // target = null：connect過的socket
+    boolean supports(InetSocketAddress target);
+  }
+
+  public ChannelTransport(int port, int mtu) throws IOException {
+    this(port, mtu, false);
+  }
+
+  public ChannelTransport(int port, int mtu, boolean sendmmsg) throws IOException {
+    this.channel = DatagramChannel.open();
+    this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+    this.channel.bind(new InetSocketAddress(port));
+    this.channel.configureBlocking(false);
+    this.mtu = mtu;
+    this.wantsBatch = sendmmsg;
+  }
+
+  // 建立downcall handle要一百多ms：第一次送出一批（至少兩個）datagram時才載入，只收ACK的receiver不需要
+  private static final class Native {
+    static final Constructor<?> SENDMMSG = load();
+
+    // 沒有make mmsg（ClassNotFoundException）、沒有--add-modules jdk.incubator.foreign或--enable-native-access（LinkageError）
+    private static Constructor<?> load() {
+      try {
+        return Class.forName("SendMmsg").getDeclaredConstructor(DatagramChannel.class);
+      } catch (ReflectiveOperationException | LinkageError e) {
+        return null;
+      }
+    }
+
+    static BatchSender open(DatagramChannel channel) {
+      try {
+        return SENDMMSG != null ? (BatchSender) SENDMMSG.newInstance(channel) : null;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return null; // 不是Linux x86_64/aarch64或拿不到file descriptor
+      }
+    }
+  }
+
+  // 一批datagram是否用sendmmsg送出（-e mmsg且可以使用；第一次呼叫時決定）
+  boolean batched() {
+    synchronized (batchLock) {
+      if (wantsBatch) {
+        wantsBatch = false;
+        batch = Native.open(channel);
+      }
+      return batch != null;
+    }
+  }
+
+  public boolean register(EventLoop loop, Handler handler) {
+    loop.register(channel, handler);
+    return true;
+  }
+
+  public void connect(InetSocketAddress remote) throws IOException {
+    channel.connect(remote);
+  }
+
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  // DatagramChannel.send本身是thread-safe，這裡不需要再加monitor
+  // non-blocking channel在send buffer滿時回傳0、什麼都沒送：等它可以寫再試，不要當成網路上的遺失
+  public boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+    return write(datagram, target) > 0 || awaitWritable(datagram, target);
+  }
+
+  // 先用sendmmsg一次送出能送的（每次最多maxBatch()個），剩下的（send buffer滿、heap buffer、IPv6）逐一送出
+  public int send(ByteBuffer[] datagrams, int count, InetSocketAddress target) throws IOException {
+    int sent = count > 1 && batched() ? sendBatch(datagrams, count, channel.isConnected() ? null : target) : 0;
+    for (; sent < count; sent++)
+      if (!send(datagrams[sent], target))
+        return sent;
+    return sent;
+  }
+
+  private int sendBatch(ByteBuffer[] datagrams, int count, InetSocketAddress target) {
+    int sent = 0;
+    synchronized (batchLock) {
+      if (!batch.supports(target))
+        return 0;
+      while (sent < count && channel.isOpen()) {
+        int n = 0;
+        while (n < batch.maxBatch() && sent + n < count && datagrams[sent + n].isDirect())
+          n++;
+        int done = n > 0 ? batch.send(datagrams, sent, n, target) : -1;
+        for (int i = 0; i < done; i++)
+          datagrams[sent + i].position(datagrams[sent + i].limit());
+        if (done <= 0)
+          break;
+        sent += done;
+        if (done < n)
+          break;
+      }
+    }
+    return sent;
+  }
+
+  private int write(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+    return channel.isConnected() ? channel.write(datagram) : channel.send(datagram, target);
+  }
+
+  // 在自己的selector上等OP_WRITE再重送，最多SEND_WAIT_NANOS；同時只有一個thread在等
+  private boolean awaitWritable(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+    synchronized (writeLock) {
+      if (writeSelector == null) {
+        writeSelector = Selector.open();
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+      }
+      long deadline = System.nanoTime() + SEND_WAIT_NANOS;
+      while (true) {
+        if (write(datagram, target) > 0)
+          return true;
+        long left = deadline - System.nanoTime();
+        if (left <= 0 || !channel.isOpen())
+          return false;
+        writeSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+        writeSelector.selectedKeys().clear();
+      }
+    }
+  }
+
+  public int receive(Handler handler) throws IOException {
+    if (selector == null) {
+      selector = Selector.open();
+      channel.register(selector, SelectionKey.OP_READ);
+      receiveBuffer = ByteBuffer.allocateDirect(mtu);
+    }
+    int count = drain(handler);
+    if (count > 0)
+      return count;
+    selector.select();
+    if (!channel.isOpen())
+      throw new IOException("channel closed");
+    selector.selectedKeys().clear();
+    return drain(handler);
+  }
+
+  private int drain(Handler handler) throws IOException {
+    int count = 0;
+    while (true) {
+      receiveBuffer.clear();
+      SocketAddress from = channel.receive(receiveBuffer);
+      if (from == null)
+        return count;
+      receiveBuffer.flip();
+      handler.onDatagram(receiveBuffer, (InetSocketAddress) from);
+      count++;
+    }
+  }
+
+  public boolean prefersDirectBuffers() {
+    return true;
+  }
+
+  public void close() {
+    try {
+      synchronized (batchLock) {
+        channel.close();
+      }
+      Selector selector = this.selector;
+      if (selector != null) {
+        selector.wakeup();
+        selector.close();
+      }
+      synchronized (writeLock) {
+        if (writeSelector != null)
+          writeSelector.close();
+      }
+    } catch (IOException e) {
+      System.out.println("debug: channel could not be closed");
+    }
+  }
+}
@@ -0,0 +1,136 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
+
+// 包裹的checksum：預設是header中16-bit的ones'-complement sum（RFC 1071）；
+// 雙方在SYN上協商CRC32C（-checksum crc32c）時，每個包裹改帶第一個option中的32-bit CRC32C（x86/ARM上有intrinsic，偵測錯誤的能力也強得多）
+// ones'-complement sum可以用更大的單位加總再折回16 bits（RFC 1071）：預設一次加8 bytes的scalar loop；
+// -Dchecksum.vector=true且有ext/VectorChecksum時（make ext；java --add-modules jdk.incubator.vector）用它
+public final class Checksum {
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+  // 加速的實作：在ext/裡另外編譯，這裡只透過reflection載入，核心的build不依賴incubator module
+  interface Backend {
+    int sum(byte[] data, int offset, int length);
+
+    int sum(ByteBuffer buffer, int offset, int length);
+  }
+
+  static final Backend VECTOR = loadVector();
+  static final boolean VECTOR_USABLE = VECTOR != null;
+  // Vector API在C2編譯之前每個op都配置物件、比scalar慢上百倍：暖身要一秒多的CPU，
+  // 比一般傳送中省下的時間還多，所以只在-Dchecksum.vector=true時使用
+  static final boolean VECTORIZED = VECTOR_USABLE && "true".equals(System.getProperty("checksum.vector"));
+  // 連線一開始的包裹不能慢到觸發RTO：背景thread先暖身，完成之前用scalar
+  private static volatile boolean vectorReady;
+  private static final int WARMUP_OPS = 20_000;
+
+  static {
+    if (VECTORIZED) {
+      Thread warmup = new Thread(Checksum::warmUp, "checksum-warmup");
+      warmup.setDaemon(true);
+      warmup.setPriority(Thread.MIN_PRIORITY);
+      warmup.start();
+    }
+  }
+
+  private Checksum() {
+  }
+
+  // 沒有編譯（ClassNotFoundException）、沒有--add-modules jdk.incubator.vector（LinkageError）
+  // 或vector太小（UnsupportedOperationException）時回傳null
+  private static Backend loadVector() {
+    try {
+      Constructor<?> constructor = Class.forName("VectorChecksum").getDeclaredConstructor();
+      return (Backend) constructor.newInstance();
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static void warmUp() {
+    byte[] data = new byte[1500];
+    ByteBuffer direct = ByteBuffer.allocateDirect(1500);
+    long sink = 0;
+    for (int i = 0; i < WARMUP_OPS; i++) {
+      sink += VECTOR.sum(data, 0, data.length);
+      sink += VECTOR.sum(direct, 0, 1500);
+    }
+    vectorReady = sink >= 0;
+  }
+
+  // data[offset, offset + length)以big-endian 16-bit word加總、折成16 bits的ones'-complement sum（還沒取補數）
+  static int onesSum(byte[] data, int offset, int length) {
+    return vectorReady ? VECTOR.sum(data, offset, length) : scalarSum(data, offset, length);
+  }
+
+  static int onesSum(ByteBuffer buffer, int offset, int length) {
+    return vectorReady ? VECTOR.sum(buffer, offset, length) : scalarSum(buffer, offset, length);
+  }
+
+  static int scalarSum(byte[] data, int offset, int length) {
+    return fold(tail(data, offset, offset + length, 0));
+  }
+
+  static int scalarSum(ByteBuffer buffer, int offset, int length) {
+    return fold(tail(buffer, offset, offset + length, 0));
+  }
+
+  // 從i加到end：一次8 bytes（兩個32-bit的部分和），剩下的bytes每兩個一個word，奇數的最後一個byte是word的高位
+  // i - 包裹的開頭必須是偶數
+  static long tail(byte[] data, int i, int end, long sum) {
+    for (; i + 8 <= end; i += 8) {
+      long word = (long) LONGS.get(data, i);
+      sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+    }
+    for (; i + 1 < end; i += 2)
+      sum += (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+    if (i < end)
+      sum += (data[i] & 0xFF) << 8;
+    return sum;
+  }
+
+  static long tail(ByteBuffer buffer, int i, int end, long sum) {
+    if (buffer.order() != ByteOrder.BIG_ENDIAN)
+      buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    for (; i + 8 <= end; i += 8) {
+      long word = buffer.getLong(i);
+      sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+    }
+    for (; i + 1 < end; i += 2)
+      sum += buffer.getShort(i) & 0xFFFF;
+    if (i < end)
+      sum += (buffer.get(i) & 0xFF) << 8;
+    return sum;
+  }
+
+  // end-around carry：折到16 bits
+  static int fold(long sum) {
+    while ((sum >>> 16) != 0)
+      sum = (sum & 0xFFFF) + (sum >>> 16);
+    return (int) sum;
+  }
+
+  // buffer[offset, offset + length)的CRC32C，不包含[skip, skip + 4)（存放CRC的欄位）
+  static int crc32c(ByteBuffer buffer, int offset, int length, int skip) {
+    CRC32C crc = CRC.get();
+    crc.reset();
+    int end = offset + length;
+    if (buffer.hasArray()) {
+      byte[] array = buffer.array();
+      int base = buffer.arrayOffset();
+      crc.update(array, base + offset, skip - offset);
+      crc.update(array, base + skip + 4, end - skip - 4);
+    } else {
+      ByteBuffer view = buffer.duplicate();
+      view.limit(skip).position(offset);
+      crc.update(view);
+      view.limit(end).position(skip + 4);
+      crc.update(view);
+    }
+    return (int) crc.getValue();
+  }
+}
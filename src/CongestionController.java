@@ -0,0 +1,75 @@
+// 擁塞控制：Sender依cwnd決定還能送多少bytes，TCPHandler/TimerManager把ACK、重複ACK與timeout事件回報進來
+// 所有數值單位都是bytes
+public interface CongestionController {
+  String NONE = "none";
+  String NEWRENO = "newreno";
+  String CUBIC = "cubic";
+  String BBR = "bbr";
+
+  // 新的cumulative ACK（不在recovery中時才會呼叫）
+  void onAck(int ackedBytes, long rttNanos);
+
+  // 三次重複ACK偵測到遺失（每個recovery只呼叫一次）
+  void onCongestionEvent(long inFlightBytes);
+
+  // 重送timer到期
+  void onRetransmissionTimeout(long inFlightBytes);
+
+  long getCwnd();
+
+  long getSsthresh();
+
+  String getName();
+
+  // 每個新的ACK都會產生一個delivery rate sample（recovery期間也會）；rate-based的演算法在這裡更新
+  default void onRateSample(DeliveryRateSampler.RateSample sample) {
+  }
+
+  // -fastopen：連線開始前沿用上一條連到同一個peer的連線的cwnd（已經減半）與ssthresh（RFC 9040的temporal sharing）
+  default void restore(long cwnd, long ssthresh) {
+  }
+
+  // 送出速率（bytes/s），0 = 不pacing，只受cwnd限制
+  default long getPacingRate() {
+    return 0;
+  }
+
+  static CongestionController create(String name, int mss) {
+    switch (name) {
+      case NONE:
+        return new FixedWindow();
+      case CUBIC:
+        return new CubicController(mss);
+      case BBR:
+        return new BbrController(mss);
+      case NEWRENO:
+        return new NewRenoController(mss);
+      default:
+        throw new IllegalArgumentException("unknown congestion control: " + name);
+    }
+  }
+
+  // 不做擁塞控制，只受-c的sliding window限制（原本的行為）
+  final class FixedWindow implements CongestionController {
+    public void onAck(int ackedBytes, long rttNanos) {
+    }
+
+    public void onCongestionEvent(long inFlightBytes) {
+    }
+
+    public void onRetransmissionTimeout(long inFlightBytes) {
+    }
+
+    public long getCwnd() {
+      return Long.MAX_VALUE;
+    }
+
+    public long getSsthresh() {
+      return Long.MAX_VALUE;
+    }
+
+    public String getName() {
+      return NONE;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 一個UDP port同時接收多個連線：依 (remote address, port, connection id) 把datagram分派給各自的Receiver
+// 所有連線共用同一個transport與同一個I/O thread
+public class ConnectionListener extends Thread {
+  // 連線關閉後多久內不再接受同一個key的SYN（同TCP的2 MSL TIME_WAIT）：遲到或重複的SYN不會建立新的Receiver把寫完的檔案截斷
+  // 新的連線有新的隨機connection id，不受影響
+  static final long QUIET_NANOS = 60_000_000_000L;
+  private final DatagramTransport transport;
+  private final PacketCodec codec;
+  private final File outputDir;
+  private final int mtu;
+  private final int sws;
+  private final TCPConfig config;
+  private final ConcurrentHashMap<ConnectionKey, Receiver> connections = new ConcurrentHashMap<>();
+  // 最近關閉的連線與過期時間（System.nanoTime）
+  private final ConcurrentHashMap<ConnectionKey, Long> recentlyClosed = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+  int acceptedNum;
+  int droppedNum;
+
+  public ConnectionListener(int port, int mtu, int sws, String outputDir, TCPConfig config) throws IOException {
+    this.transport = config.openTransport(port, mtu);
+    this.codec = new PacketCodec(mtu, transport.prefersDirectBuffers());
+    this.outputDir = new File(outputDir);
+    this.mtu = mtu;
+    this.sws = sws;
+    this.config = config;
+    if (!this.outputDir.isDirectory() && !this.outputDir.mkdirs())
+      throw new IOException("cannot create output directory " + outputDir);
+  }
+
+  public void run() {
+    while (!closed) {
+      try {
+        transport.receive(this::dispatch);
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  public int activeConnections() {
+    return connections.size();
+  }
+
+  private void dispatch(ByteBuffer datagram, InetSocketAddress from) {
+    TCPpacket packet = codec.decode(datagram, new TCPpacket());
+    if (packet == null) {
+      droppedNum += 1;
+      return;
+    }
+    ConnectionKey key = new ConnectionKey(from, packet.connectionId);
+    Receiver connection = connections.get(key);
+    if (connection == null) {
+      // 只有新的SYN可以建立連線，其他不屬於任何連線的包裹直接丟棄
+      if (!packet.getSyn() || packet.getAck()) {
+        droppedNum += 1;
+        return;
+      }
+      Long quietUntil = recentlyClosed.get(key);
+      if (quietUntil != null && quietUntil - System.nanoTime() > 0) {
+        droppedNum += 1;
+        return;
+      }
+      connection = accept(key, from);
+    }
+    connection.metrics.packetsReceived.increment();
+    connection.onPacket(packet, from);
+  }
+
+  private Receiver accept(ConnectionKey key, InetSocketAddress from) {
+    String name = from.getAddress().getHostAddress() + "_" + from.getPort() + "_" + Integer.toHexString(key.connectionId);
+    Receiver connection = new Receiver(transport, from, mtu, sws, new File(outputDir, name).getPath(), config);
+    connection.onClose = () -> onClose(key, connection);
+    MetricsRegistry.shared().register(connection.metrics);
+    connections.put(key, connection);
+    acceptedNum += 1;
+    return connection;
+  }
+
+  private void onClose(ConnectionKey key, Receiver connection) {
+    if (!connections.remove(key, connection))
+      return;
+    long now = System.nanoTime();
+    recentlyClosed.values().removeIf(quietUntil -> quietUntil - now <= 0);
+    recentlyClosed.put(key, now + QUIET_NANOS);
+  }
+
+  public void close() {
+    closed = true;
+    for (Receiver connection : connections.values())
+      connection.endThread();
+    transport.close();
+  }
+
+  private static final class ConnectionKey {
+    final InetSocketAddress remote;
+    final int connectionId;
+
+    ConnectionKey(InetSocketAddress remote, int connectionId) {
+      this.remote = remote;
+      this.connectionId = connectionId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ConnectionKey))
+        return false;
+      ConnectionKey other = (ConnectionKey) o;
+      return connectionId == other.connectionId && remote.equals(other.remote);
+    }
+
+    @Override
+    public int hashCode() {
+      return remote.hashCode() * 31 + connectionId;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// 一個連線的counters、RTT/RTO histograms與gauges
+// counters是LongAdder：network、timer、sender等thread同時更新時不互相爭用，也不需要handler的monitor
+// gauges（cwnd、in-flight、goodput）讀取時才從handler取值
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+  private final TCPHandler handler;
+  final String name;
+  final LongAdder bytesTransferred = new LongAdder();
+  final LongAdder packetsSent = new LongAdder();
+  // 本地的send buffer一直是滿的、沒有交給kernel的datagram（不算在packetsSent）
+  final LongAdder localDrops = new LongAdder();
+  final LongAdder packetsReceived = new LongAdder();
+  final LongAdder outOfSequence = new LongAdder();
+  final LongAdder checksumErrors = new LongAdder();
+  final LongAdder retransmissions = new LongAdder();
+  final LongAdder duplicateAcks = new LongAdder();
+  final LongAdder windowDrops = new LongAdder();
+  final LongAdder windowUpdates = new LongAdder();
+  final LongAdder delayedAcks = new LongAdder();
+  final LongAdder sacked = new LongAdder();
+  final LongAdder windowProbes = new LongAdder();
+  final LongAdder paritySent = new LongAdder();
+  final LongAdder fecRecovered = new LongAdder();
+  // 壓縮：sender在壓縮block時、receiver在解開時更新
+  final LongAdder rawBytes = new LongAdder();
+  final LongAdder compressedBytes = new LongAdder();
+  final LongAdder blocksDeflated = new LongAdder();
+  final LongAdder blocksStored = new LongAdder();
+  // -resume：receiver已經有、sender沒有送的bytes
+  final LongAdder resumedBytes = new LongAdder();
+  // TimerManager.updateTO：每個RTT sample與算出來的RTO（microseconds）
+  final Histogram rtt = new Histogram();
+  final Histogram rto = new Histogram();
+
+  ConnectionMetrics(TCPHandler handler, String name) {
+    this.handler = handler;
+    this.name = name;
+  }
+
+  public String getRole() {
+    return handler.getClass().getSimpleName();
+  }
+
+  public int getConnectionId() {
+    return handler.connectionId;
+  }
+
+  public long getBytesTransferred() {
+    return bytesTransferred.sum();
+  }
+
+  public long getPacketsSent() {
+    return packetsSent.sum();
+  }
+
+  public long getLocalDrops() {
+    return localDrops.sum();
+  }
+
+  public long getPacketsReceived() {
+    return packetsReceived.sum();
+  }
+
+  public long getOutOfSequencePackets() {
+    return outOfSequence.sum();
+  }
+
+  public long getChecksumErrors() {
+    return checksumErrors.sum();
+  }
+
+  public long getRetransmissions() {
+    return retransmissions.sum();
+  }
+
+  public long getDuplicateAcks() {
+    return duplicateAcks.sum();
+  }
+
+  public long getCwnd() {
+    return handler.congestion.getCwnd();
+  }
+
+  // 不取TimerManager的lock：只是觀察用的近似值
+  public long getInFlightBytes() {
+    return handler.timerManager.inFlightBytes;
+  }
+
+  // 從連線開始算的平均goodput（in-order交付或第一次送出的資料bytes）
+  public double getGoodputBytesPerSecond() {
+    double seconds = (System.nanoTime() - handler.startTime) / 1e9;
+    return seconds > 0 ? bytesTransferred.sum() / seconds : 0;
+  }
+
+  public long getRttMeanMicros() {
+    return rtt.mean();
+  }
+
+  public long getRttP50Micros() {
+    return rtt.percentile(50);
+  }
+
+  public long getRttP99Micros() {
+    return rtt.percentile(99);
+  }
+
+  public long getRtoMicros() {
+    return handler.timerManager.getTO() / 1000;
+  }
+
+  public long getRtoP99Micros() {
+    return rto.percentile(99);
+  }
+
+  public long getTraceRecordsDropped() {
+    return handler.trace.dropped();
+  }
+
+  // periodic dump的一行
+  String snapshot() {
+    return name + " bytes=" + getBytesTransferred() + " sent=" + getPacketsSent() + " drops=" + getLocalDrops() + " rcvd=" + getPacketsReceived()
+        + " retrans=" + getRetransmissions() + " dupacks=" + getDuplicateAcks() + " cwnd=" + getCwnd()
+        + " inflight=" + getInFlightBytes() + " goodput=" + Math.round(getGoodputBytesPerSecond()) + "B/s"
+        + " rtt(mean/p50/p99)=" + getRttMeanMicros() + "/" + getRttP50Micros() + "/" + getRttP99Micros() + "us"
+        + " rto=" + getRtoMicros() + "us";
+  }
+}
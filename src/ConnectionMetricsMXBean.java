@@ -0,0 +1,40 @@
+// 一個連線在JMX上可以讀到的metrics（TCPend:type=Connection,name=...）
+public interface ConnectionMetricsMXBean {
+  String getRole();
+
+  int getConnectionId();
+
+  long getBytesTransferred();
+
+  long getPacketsSent();
+
+  long getLocalDrops();
+
+  long getPacketsReceived();
+
+  long getOutOfSequencePackets();
+
+  long getChecksumErrors();
+
+  long getRetransmissions();
+
+  long getDuplicateAcks();
+
+  long getCwnd();
+
+  long getInFlightBytes();
+
+  double getGoodputBytesPerSecond();
+
+  long getRttMeanMicros();
+
+  long getRttP50Micros();
+
+  long getRttP99Micros();
+
+  long getRtoMicros();
+
+  long getRtoP99Micros();
+
+  long getTraceRecordsDropped();
+}
@@ -0,0 +1,97 @@
+// RFC 8312 CUBIC：遺失後cwnd乘上beta，之後依距離上次遺失的時間以三次函數成長回W_max
+public class CubicController implements CongestionController {
+  static final double C = 0.4;
+  static final double BETA = 0.7;
+
+  final int mss;
+  long cwnd;
+  long ssthresh = Long.MAX_VALUE;
+  // 以下以segment為單位
+  private double wMax;
+  private double wLastMax;
+  private double k;
+  private double origin;
+  private long epochStart; // 0 = 還沒開始這一輪的congestion avoidance
+  private long minRtt = Long.MAX_VALUE;
+  private long bytesAckedInAvoidance;
+
+  public CubicController(int mss) {
+    this.mss = mss;
+    this.cwnd = (long) NewRenoController.INITIAL_WINDOW_SEGMENTS * mss;
+  }
+
+  public synchronized void onAck(int ackedBytes, long rttNanos) {
+    if (rttNanos > 0)
+      minRtt = Math.min(minRtt, rttNanos);
+    if (cwnd < ssthresh) {
+      cwnd += Math.min(ackedBytes, 2 * mss);
+      return;
+    }
+    long now = System.nanoTime();
+    double segments = (double) cwnd / mss;
+    if (epochStart == 0) {
+      epochStart = now;
+      if (segments < wMax) {
+        k = Math.cbrt((wMax - segments) / C);
+        origin = wMax;
+      } else {
+        k = 0;
+        origin = segments;
+      }
+    }
+    double rtt = minRtt == Long.MAX_VALUE ? 0 : minRtt / 1e9;
+    double t = (now - epochStart) / 1e9 + rtt;
+    double target = origin + C * Math.pow(t - k, 3);
+    // TCP-friendly region：不比同樣條件下的Reno慢
+    if (rtt > 0) {
+      double renoEstimate = wMax * BETA + 3 * (1 - BETA) / (1 + BETA) * (t / rtt);
+      target = Math.max(target, renoEstimate);
+    }
+    // 每個RTT最多讓cwnd增加到target（最多1.5倍）
+    target = Math.min(target, segments * 1.5);
+    bytesAckedInAvoidance += ackedBytes;
+    double increment = target > segments ? (target - segments) / segments : 0.01 / segments;
+    long grow = (long) (increment * bytesAckedInAvoidance);
+    if (grow > 0) {
+      cwnd += grow;
+      bytesAckedInAvoidance = 0;
+    }
+  }
+
+  public synchronized void onCongestionEvent(long inFlightBytes) {
+    reduce();
+    cwnd = ssthresh;
+  }
+
+  public synchronized void onRetransmissionTimeout(long inFlightBytes) {
+    reduce();
+    cwnd = mss;
+  }
+
+  private void reduce() {
+    double segments = (double) cwnd / mss;
+    // fast convergence：W_max比上一次還小代表有新的flow加入，讓出頻寬
+    wMax = segments < wLastMax ? segments * (1 + BETA) / 2 : segments;
+    wLastMax = segments;
+    ssthresh = Math.max((long) (cwnd * BETA), 2L * mss);
+    epochStart = 0;
+    bytesAckedInAvoidance = 0;
+  }
+
+  public synchronized void restore(long cwnd, long ssthresh) {
+    this.cwnd = Math.max(this.cwnd, cwnd);
+    this.ssthresh = Math.max(ssthresh, 2L * mss);
+  }
+
+  public synchronized long getCwnd() {
+    return cwnd;
+  }
+
+  public synchronized long getSsthresh() {
+    return ssthresh;
+  }
+
+  public String getName() {
+    return CUBIC;
+  }
+}
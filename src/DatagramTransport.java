@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// TCPHandler用來收送datagram的傳輸層，讓socket與NIO等不同的engine可以互換
+public interface DatagramTransport {
+  // 一個window的burst（或多個連線共用port時）不會讓kernel buffer溢出；kernel可能會再限制上限
+  int RECEIVE_BUFFER_SIZE = 4 << 20;
+
+  // 收到的datagram交給handler處理；datagram只在呼叫期間有效
+  interface Handler {
+    void onDatagram(ByteBuffer datagram, InetSocketAddress from);
+  }
+
+  void connect(InetSocketAddress remote) throws IOException;
+
+  boolean isConnected();
+
+  // 送出datagram的[position, limit)；回傳false代表本地的send buffer一直是滿的，datagram沒有交給kernel（local drop）
+  boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+
+  // 一次送出datagrams[0, count)（例如一個window的segment），回傳交給kernel的數量（前面連續的那些）；
+  // 預設逐一呼叫send，能用sendmmsg/UDP GSO一次送出多個datagram的backend可以override這個方法
+  default int send(ByteBuffer[] datagrams, int count, InetSocketAddress target) throws IOException {
+    for (int i = 0; i < count; i++)
+      if (!send(datagrams[i], target))
+        return i;
+    return count;
+  }
+
+  // 阻塞直到收到至少一個datagram，並把這次能讀到的都交給handler，回傳處理的數量
+  int receive(Handler handler) throws IOException;
+
+  // 把接收交給共用的EventLoop，不需要呼叫receive()的thread；不支援的engine回傳false，由呼叫者自己用receive()收
+  default boolean register(EventLoop loop, Handler handler) {
+    return false;
+  }
+
+  // 編碼時是否使用direct buffer
+  boolean prefersDirectBuffers();
+
+  void close();
+}
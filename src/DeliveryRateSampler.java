@@ -0,0 +1,83 @@
+// Delivery rate估計（draft-cheng-iccrg-delivery-rate-estimation）：
+// 送出時在TimerPacket記下當時的delivered狀態，ACK時以最新被ACK的包裹算出這段期間實際送達的速率
+// 所有方法都在持有TimerManager.packetBuffer時呼叫
+public class DeliveryRateSampler {
+  long delivered;       // 累計被ACK的bytes
+  long deliveredTime;   // 最近一次delivered增加的時間
+  long firstSentTime;   // 目前這段送出期間的開始時間
+  long appLimitedUntil; // 0 = 不是app-limited；否則delivered超過這個值之前的sample都標記為app-limited
+  private boolean hasPrior;
+  private long priorTime;
+  private long sendElapsed;
+  final RateSample sample = new RateSample();
+
+  public static final class RateSample {
+    public long deliveryRate;   // bytes/s，0 = 這次ACK沒有有效的sample
+    public long delivered;      // 這次ACK之後累計被ACK的bytes
+    public long priorDelivered; // 取樣的包裹送出時的delivered，-1 = 沒有
+    public long interval;       // 取樣期間（ns）
+    public int ackedBytes;      // 這次ACK新確認的bytes
+    public long inFlightBytes;  // ACK之後還在路上的bytes
+    public long rttNanos;       // 由ACK的timestamp echo算出
+    public boolean appLimited;
+  }
+
+  void onSent(TimerPacket packet, long inFlightBytes, long now) {
+    if (inFlightBytes == 0) {
+      firstSentTime = now;
+      deliveredTime = now;
+    }
+    packet.sentTime = now;
+    packet.delivered = delivered;
+    packet.deliveredTime = deliveredTime;
+    packet.firstSentTime = firstSentTime;
+    packet.appLimited = appLimitedUntil != 0;
+  }
+
+  void begin() {
+    hasPrior = false;
+    sample.ackedBytes = 0;
+    sample.priorDelivered = -1;
+  }
+
+  void onAcked(TimerPacket packet, long now) {
+    int length = packet.tcpPacket.getDataLength();
+    delivered += length;
+    deliveredTime = now;
+    sample.ackedBytes += length;
+    // 重送過的包裹無法確定是哪一次送出被ACK，不拿來取樣
+    if (packet.curNumRetrans > 0)
+      return;
+    if (!hasPrior || packet.delivered >= sample.priorDelivered) {
+      hasPrior = true;
+      sample.priorDelivered = packet.delivered;
+      sample.appLimited = packet.appLimited;
+      priorTime = packet.deliveredTime;
+      sendElapsed = packet.sentTime - packet.firstSentTime;
+      firstSentTime = packet.sentTime;
+    }
+  }
+
+  RateSample generate(long inFlightBytes) {
+    if (appLimitedUntil != 0 && delivered > appLimitedUntil)
+      appLimitedUntil = 0;
+    sample.delivered = delivered;
+    sample.inFlightBytes = inFlightBytes;
+    sample.deliveryRate = 0;
+    sample.interval = 0;
+    if (hasPrior) {
+      // 取送出與ACK兩段期間較長者，避免ACK壓縮造成高估
+      long interval = Math.max(sendElapsed, deliveredTime - priorTime);
+      if (interval > 0) {
+        sample.interval = interval;
+        sample.deliveryRate = (long) ((delivered - sample.priorDelivered) * 1e9 / interval);
+      }
+    }
+    return sample;
+  }
+
+  // sender沒有資料可送或被sws限制：這段期間的sample不代表網路的頻寬
+  void markAppLimited(long inFlightBytes) {
+    appLimitedUntil = Math.max(delivered + inFlightBytes, 1);
+  }
+}
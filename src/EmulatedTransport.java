@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 在process裡模擬有損的網路（-netem）：包在真正的transport外面，只處理送出的方向，接收直接交給原本的transport
+// 每個datagram依序經過：loss -> token bucket（頻寬與queue）-> delay/jitter（reorder再多留REORDER_HOLD）-> corrupt -> dup
+// 需要延遲的datagram先複製一份（send回傳後codec會重用buffer），由共用的scheduler thread在到期時從真正的transport送出
+public class EmulatedTransport implements DatagramTransport {
+  // reorder的datagram照樣經過delay，再多等這麼久：之後送出的datagram超過它（亂序），但沒有包裹比路徑的delay更早到
+  // （直接送出的話RTT sample比真正的RTT小得多，BBR的min_rtt被拉低、cwnd卡在最小值）
+  static final long REORDER_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static Scheduler scheduler;
+
+  private final DatagramTransport transport;
+  private final NetworkConditions conditions;
+  private final Random random;
+  // token bucket：credit是可以立刻送出的bytes，負的代表排隊中的bytes；最多累積一個MTU（不允許burst）
+  private final double bytesPerNano;
+  private final long burstBytes;
+  private final long queueBytes;
+  private double credit;
+  private long bucketTime = System.nanoTime();
+  // 模擬出來的事件數
+  final LongAdder lost = new LongAdder();
+  final LongAdder queueDrops = new LongAdder();
+  final LongAdder duplicated = new LongAdder();
+  final LongAdder corrupted = new LongAdder();
+  final LongAdder reordered = new LongAdder();
+
+  // port：讓同一個seed下兩端的亂數序列不同
+  public EmulatedTransport(DatagramTransport transport, NetworkConditions conditions, int port, int mtu) {
+    this.transport = transport;
+    this.conditions = conditions;
+    this.random = new Random(conditions.seed * 31 + port);
+    this.bytesPerNano = conditions.rateMbps * 1e6 / 8 / 1e9;
+    this.burstBytes = mtu;
+    this.credit = mtu;
+    this.queueBytes = (long) conditions.queuePackets * mtu;
+  }
+
+  public void connect(InetSocketAddress remote) throws IOException {
+    transport.connect(remote);
+  }
+
+  public boolean isConnected() {
+    return transport.isConnected();
+  }
+
+  // 模擬的loss與queue drop算是網路上的遺失：回傳true，只有真正的transport送不出去時才是local drop
+  public boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+    double loss;
+    boolean reorder;
+    double jitter;
+    boolean corrupt;
+    boolean duplicate;
+    synchronized (random) {
+      loss = random.nextDouble();
+      reorder = random.nextDouble() < conditions.reorder;
+      jitter = (random.nextDouble() * 2 - 1) * conditions.jitterMillis;
+      corrupt = random.nextDouble() < conditions.corrupt;
+      duplicate = random.nextDouble() < conditions.duplicate;
+    }
+    if (loss < conditions.loss) {
+      lost.increment();
+      return true;
+    }
+    // 沒有延遲：在呼叫的thread上直接送出，保持原本的順序
+    if (conditions.immediate()) {
+      ByteBuffer out = corrupt ? ByteBuffer.wrap(copy(datagram, true)) : datagram;
+      if (duplicate) {
+        duplicated.increment();
+        transport.send(out.duplicate(), target);
+      }
+      return transport.send(out, target);
+    }
+    long departure = departure(System.nanoTime(), datagram.remaining());
+    if (departure < 0) {
+      queueDrops.increment();
+      return true;
+    }
+    long delivery = departure + (long) (Math.max(0, conditions.delayMillis + jitter) * 1e6);
+    if (reorder) {
+      reordered.increment();
+      delivery += REORDER_HOLD_NANOS;
+    }
+    byte[] copy = copy(datagram, corrupt);
+    scheduler().schedule(this, copy, target, delivery);
+    if (duplicate) {
+      duplicated.increment();
+      scheduler().schedule(this, copy, target, delivery);
+    }
+    return true;
+  }
+
+  // 複製datagram；corrupt時翻轉其中隨機的一個bit
+  private byte[] copy(ByteBuffer datagram, boolean corrupt) {
+    byte[] copy = new byte[datagram.remaining()];
+    datagram.duplicate().get(copy);
+    if (corrupt) {
+      corrupted.increment();
+      int bit;
+      synchronized (random) {
+        bit = random.nextInt(copy.length * 8);
+      }
+      copy[bit >> 3] ^= 1 << (bit & 7);
+    }
+    return copy;
+  }
+
+  // token bucket：回傳datagram可以離開的時間；queue滿時回傳-1
+  private long departure(long now, int length) {
+    if (bytesPerNano <= 0)
+      return now;
+    synchronized (this) {
+      credit = Math.min(burstBytes, credit + (now - bucketTime) * bytesPerNano);
+      bucketTime = now;
+      if (credit < 0 && length - credit > queueBytes)
+        return -1;
+      credit -= length;
+      return credit >= 0 ? now : now + (long) (-credit / bytesPerNano);
+    }
+  }
+
+  private void deliver(byte[] datagram, InetSocketAddress target) {
+    try {
+      transport.send(ByteBuffer.wrap(datagram), target);
+    } catch (IOException e) {
+      // transport已經關閉：在路上的包裹就丟掉
+    }
+  }
+
+  public int receive(Handler handler) throws IOException {
+    return transport.receive(handler);
+  }
+
+  public boolean register(EventLoop loop, Handler handler) {
+    return transport.register(loop, handler);
+  }
+
+  public boolean prefersDirectBuffers() {
+    return transport.prefersDirectBuffers();
+  }
+
+  public void close() {
+    transport.close();
+  }
+
+  private static synchronized Scheduler scheduler() {
+    if (scheduler == null)
+      scheduler = new Scheduler();
+    return scheduler;
+  }
+
+  // 所有EmulatedTransport共用的送出thread：依到期時間（相同時依排入的順序）送出
+  private static final class Scheduler {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Delivery> queue = new PriorityQueue<>();
+    private long sequence;
+
+    Scheduler() {
+      Thread thread = new Thread(this::run, "network-emulator");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void schedule(EmulatedTransport transport, byte[] datagram, InetSocketAddress target, long time) {
+      lock.lock();
+      try {
+        Delivery delivery = new Delivery(transport, datagram, target, time, sequence++);
+        queue.add(delivery);
+        if (queue.peek() == delivery)
+          changed.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void run() {
+      while (true) {
+        Delivery next;
+        lock.lock();
+        try {
+          next = queue.peek();
+          long wait = next == null ? Long.MAX_VALUE : next.time - System.nanoTime();
+          if (wait > 0) {
+            changed.awaitNanos(Math.min(wait, TimeUnit.SECONDS.toNanos(1)));
+            continue;
+          }
+          queue.poll();
+        } catch (InterruptedException e) {
+          continue;
+        } finally {
+          lock.unlock();
+        }
+        next.transport.deliver(next.datagram, next.target);
+      }
+    }
+  }
+
+  private static final class Delivery implements Comparable<Delivery> {
+    final EmulatedTransport transport;
+    final byte[] datagram;
+    final InetSocketAddress target;
+    final long time;
+    final long sequence;
+
+    Delivery(EmulatedTransport transport, byte[] datagram, InetSocketAddress target, long time, long sequence) {
+      this.transport = transport;
+      this.datagram = datagram;
+      this.target = target;
+      this.time = time;
+      this.sequence = sequence;
+    }
+
+    // nanoTime以差值比較
+    public int compareTo(Delivery other) {
+      if (time != other.time)
+        return time - other.time < 0 ? -1 : 1;
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 多個連線共用的I/O thread：每個EventLoop一個Selector，註冊的DatagramChannel可讀時把datagram交給各自的handler
+// 連線數再多也只有固定數量的I/O thread（nio engine）；socket engine的blocking receive仍然需要每個連線一個thread
+public class EventLoop {
+  private static final int LOOPS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+  private static final EventLoop[] SHARED = new EventLoop[LOOPS];
+  private static final AtomicInteger NEXT = new AtomicInteger();
+  // 最大的UDP datagram：同一個loop上的連線MTU可以不同
+  private static final int RECEIVE_BUFFER_SIZE = 65536;
+  // 一次wakeup每個channel最多讀幾個datagram，一個忙碌的連線不會讓同一個loop上的其他連線等太久
+  private static final int MAX_READS_PER_CHANNEL = 64;
+
+  private final Selector selector;
+  private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+  // 註冊在loop的thread上進行，不和select()搶selector
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  // 輪流分配共用的loop
+  public static EventLoop next() {
+    int index = Math.floorMod(NEXT.getAndIncrement(), LOOPS);
+    synchronized (SHARED) {
+      if (SHARED[index] == null)
+        SHARED[index] = new EventLoop("event-loop-" + index);
+      return SHARED[index];
+    }
+  }
+
+  private EventLoop(String name) {
+    try {
+      this.selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException("cannot open selector", e);
+    }
+    Thread thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // channel必須是non-blocking；channel關閉時selector自動取消註冊
+  public void register(DatagramChannel channel, DatagramTransport.Handler handler) {
+    tasks.add(() -> {
+      try {
+        channel.register(selector, SelectionKey.OP_READ, handler);
+      } catch (IOException e) {
+        System.out.println("debug: channel could not be registered");
+      }
+    });
+    selector.wakeup();
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        selector.select();
+      } catch (IOException e) {
+        System.out.println("debug: select failed");
+        return;
+      }
+      Runnable task;
+      while ((task = tasks.poll()) != null)
+        task.run();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (key.isValid())
+          drain(key);
+      }
+    }
+  }
+
+  private void drain(SelectionKey key) {
+    DatagramChannel channel = (DatagramChannel) key.channel();
+    DatagramTransport.Handler handler = (DatagramTransport.Handler) key.attachment();
+    try {
+      for (int i = 0; i < MAX_READS_PER_CHANNEL && channel.isOpen(); i++) {
+        receiveBuffer.clear();
+        SocketAddress from = channel.receive(receiveBuffer);
+        if (from == null)
+          return;
+        receiveBuffer.flip();
+        handler.onDatagram(receiveBuffer, (InetSocketAddress) from);
+      }
+    } catch (IOException e) {
+      key.cancel();
+    } catch (RuntimeException e) {
+      System.out.println("debug: datagram handler failed: " + e);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// receiver端的FEC：依資料包上的FEC option記錄每個group收到的segment並累積它們的XOR
+// parity到了而group只少一個segment時，XOR就是那個segment（後面補的0截掉），當作收到的資料包交給handlePacket
+// 只在network thread上呼叫
+public class FecDecoder {
+  static final int MAX_GROUPS = 64;
+
+  private final int mss;
+  // 依建立的順序；已經交付完的group在建立新的group時清掉，最多保留MAX_GROUPS個
+  private final LinkedHashMap<Long, Group> groups = new LinkedHashMap<>();
+
+  FecDecoder(int mss) {
+    this.mss = mss;
+  }
+
+  private final class Group {
+    final int start;
+    final byte[] xor = new byte[mss];
+    // 收到的segment，依seq排序
+    final int[] seqs = new int[FecEncoder.MAX_GROUP];
+    final int[] lengths = new int[FecEncoder.MAX_GROUP];
+    int received;
+    boolean parity;
+    int end;
+    int count;
+    boolean done;
+
+    Group(int start) {
+      this.start = start;
+    }
+
+    // 回傳false：重複的segment或不屬於這個group
+    boolean add(int seq, int length) {
+      if (received == seqs.length || length > mss || seq - start < 0)
+        return false;
+      int i = received;
+      while (i > 0 && seqs[i - 1] - seq > 0)
+        i--;
+      if (i > 0 && seqs[i - 1] == seq)
+        return false;
+      System.arraycopy(seqs, i, seqs, i + 1, received - i);
+      System.arraycopy(lengths, i, lengths, i + 1, received - i);
+      seqs[i] = seq;
+      lengths[i] = length;
+      received += 1;
+      return true;
+    }
+  }
+
+  // 收到資料包：回傳因此補回的segment（parity先到的情況），否則null
+  TCPpacket onData(TCPpacket packet, int ack) {
+    if (packet.fecGroup < 0)
+      return null;
+    Group group = group(packet.fecGroup, ack);
+    if (group.done || !group.add(packet.seqNum, packet.getDataLength()))
+      return null;
+    xor(group, packet);
+    return recover(group, packet.timestamp, ack);
+  }
+
+  // 收到parity segment：回傳補回的segment，否則null
+  TCPpacket onParity(TCPpacket parity, int ack) {
+    Group group = group(parity.fecGroup, ack);
+    if (group.done || group.parity || parity.fecCount > FecEncoder.MAX_GROUP || parity.getDataLength() > mss)
+      return null;
+    group.parity = true;
+    group.end = parity.fecEnd;
+    group.count = parity.fecCount;
+    xor(group, parity);
+    return recover(group, parity.timestamp, ack);
+  }
+
+  private void xor(Group group, TCPpacket packet) {
+    FecEncoder.xor(group.xor, packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload.duplicate());
+  }
+
+  private Group group(long id, int ack) {
+    Group group = groups.get(id);
+    if (group != null)
+      return group;
+    Iterator<Group> old = groups.values().iterator();
+    while (old.hasNext()) {
+      Group next = old.next();
+      if (groups.size() >= MAX_GROUPS || next.done || (next.parity && next.end - ack <= 0))
+        old.remove();
+    }
+    group = new Group((int) id);
+    groups.put(id, group);
+    return group;
+  }
+
+  // parity與count - 1個segment都到了：依序走過收到的segment找到唯一的洞（已經在ack之前的不用補）
+  private TCPpacket recover(Group group, long timestamp, int ack) {
+    if (!group.parity || group.received < group.count - 1)
+      return null;
+    group.done = true;
+    if (group.received >= group.count)
+      return null;
+    int seq = group.start;
+    int i = 0;
+    while (i < group.received && group.seqs[i] == seq)
+      seq += group.lengths[i++];
+    int length = (i < group.received ? group.seqs[i] : group.end) - seq;
+    if (length <= 0 || length > mss || seq + length - ack <= 0)
+      return null;
+    // 洞之後的bytes應該都是0：不是的話group的資訊與收到的資料不一致，不交付
+    for (int j = length; j < mss; j++) {
+      if (group.xor[j] != 0)
+        return null;
+    }
+    return new TCPpacket(seq, 0, timestamp, new Boolean[] { false, false, false }, Arrays.copyOf(group.xor, length));
+  }
+}
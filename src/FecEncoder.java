@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// sender端的FEC（-fec）：每groupSize個資料segment之後送一個parity segment，payload是這些segment的XOR（短的補0）
+// group中只少一個segment時receiver可以直接用parity補回（FecDecoder），不需要等重送的round trip
+// auto：group大小依觀察到的遺失率調整（SACK顯示的洞 / 送出的segment），幾乎沒有遺失時不送parity
+public class FecEncoder {
+  static final int MIN_GROUP = 4;
+  static final int MAX_GROUP = 32;
+  static final int ESTIMATE_SEGMENTS = 256; // 每送出這麼多segment更新一次遺失率
+  static final double LOSS_OFF = 0.002;     // 估計的遺失率低於這個時不送parity
+
+  private final int fixedGroup; // 0 = auto
+  private final int maxGroup;
+  private final byte[] parity;
+  private int groupSize;
+  private int groupStart;
+  private int groupEnd;
+  private int count;
+  private int length; // group中最長的segment：parity的長度
+  // 遺失率：每ESTIMATE_SEGMENTS個segment以這段期間的 洞 / 送出 做EWMA，-1 = 還沒有估計
+  private double lossRate = -1;
+  private int sentSinceEstimate;
+  private int lostSinceEstimate;
+  private long paritySent;
+
+  // mss：資料segment最大的payload；fixedGroup：固定的group大小，0 = auto
+  // maxGroup：group不能超過sws的一半，否則group中有洞時sender可能送不完這個group（parity永遠不會送出）
+  FecEncoder(int mss, int fixedGroup, int maxGroup) {
+    this.parity = new byte[mss];
+    this.maxGroup = Math.max(1, Math.min(maxGroup, MAX_GROUP));
+    this.fixedGroup = Math.min(fixedGroup, this.maxGroup);
+    this.groupSize = fixedGroup > 0 ? this.fixedGroup : this.maxGroup;
+  }
+
+  // 遺失率p時的group大小：約1/(3p)個segment一個parity，group中兩個以上遺失（無法補回）的機率維持在幾%以下
+  static int groupSize(double lossRate) {
+    if (lossRate < LOSS_OFF)
+      return 0;
+    return (int) Math.max(MIN_GROUP, Math.min(MAX_GROUP, Math.round(1 / (3 * lossRate))));
+  }
+
+  // 第一次送出的資料segment（已經填好seq）：加入目前的group，填上segment的FEC option
+  synchronized void add(TCPpacket segment) {
+    if (++sentSinceEstimate >= ESTIMATE_SEGMENTS)
+      estimate();
+    if (count == 0) {
+      if (groupSize == 0) {
+        segment.fecGroup = -1;
+        return;
+      }
+      Arrays.fill(parity, 0, length, (byte) 0);
+      length = 0;
+      groupStart = segment.seqNum;
+    }
+    segment.fecGroup = groupStart & 0xFFFFFFFFL;
+    ByteBuffer payload = segment.data != null ? ByteBuffer.wrap(segment.data) : segment.payload.duplicate();
+    length = Math.max(length, payload.remaining());
+    xor(parity, payload);
+    groupEnd = segment.getReturnAck();
+    count += 1;
+  }
+
+  synchronized boolean groupFull() {
+    return count > 0 && count >= groupSize;
+  }
+
+  // 結束目前的group並回傳它的parity segment（沒有segment時回傳null）；payload在下一個add之前有效
+  synchronized TCPpacket parity(int ack, long time) {
+    if (count == 0)
+      return null;
+    TCPpacket packet = new TCPpacket(groupStart, ack, time, new Boolean[] { false, false, false }, null);
+    packet.payload = ByteBuffer.wrap(parity, 0, length);
+    packet.fecGroup = groupStart & 0xFFFFFFFFL;
+    packet.fecEnd = groupEnd;
+    packet.fecCount = count;
+    count = 0;
+    paritySent += 1;
+    // 新的group大小從下一個group開始
+    if (fixedGroup == 0 && lossRate >= 0)
+      groupSize = Math.min(maxGroup, groupSize(lossRate));
+    return packet;
+  }
+
+  // TimerManager由SACK發現一個洞（持有packetBuffer時呼叫）
+  synchronized void onLoss() {
+    lostSinceEstimate += 1;
+  }
+
+  private void estimate() {
+    double sample = Math.min(1.0, (double) lostSinceEstimate / sentSinceEstimate);
+    lossRate = lossRate < 0 ? sample : (lossRate + sample) / 2;
+    sentSinceEstimate = 0;
+    lostSinceEstimate = 0;
+    if (fixedGroup == 0 && count == 0)
+      groupSize = Math.min(maxGroup, groupSize(lossRate));
+  }
+
+  synchronized long paritySent() {
+    return paritySent;
+  }
+
+  synchronized int currentGroupSize() {
+    return groupSize;
+  }
+
+  synchronized double lossRate() {
+    return Math.max(0, lossRate);
+  }
+
+  // into[0, src.remaining()) ^= src；一次處理8 bytes
+  static void xor(byte[] into, ByteBuffer src) {
+    int length = src.remaining();
+    int position = src.position();
+    ByteBuffer target = ByteBuffer.wrap(into);
+    int i = 0;
+    for (; i + 8 <= length; i += 8)
+      target.putLong(i, target.getLong(i) ^ src.getLong(position + i));
+    for (; i < length; i++)
+      into[i] ^= src.get(position + i);
+  }
+}
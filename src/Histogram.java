@@ -0,0 +1,71 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// log-linear histogram（HdrHistogram的低精度版本）：小於16的值各自一格，之後每個2的次方分8格（誤差 < 12.5%）
+// record是lock-free的，可以在ACK thread上記錄，同時從JMX或dump thread讀取
+public class Histogram {
+  private static final int LINEAR = 16;
+  private static final int SUB_BUCKETS = 8;
+  private static final int MAX_EXPONENT = 40; // 更大的值都算在最後一格
+  private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  private static int bucket(long value) {
+    if (value < LINEAR)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT)
+      return BUCKETS - 1;
+    int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+  }
+
+  // bucket的中間值
+  private static long midpoint(int bucket) {
+    if (bucket < LINEAR)
+      return bucket;
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub) << (exponent - 3)) + (1L << (exponent - 4));
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public long mean() {
+    long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  // 第p百分位（0 < p <= 100）所在bucket的中間值（不超過max）；沒有資料時回傳0
+  public long percentile(double p) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(n * p / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(midpoint(i), max.get());
+    }
+    return max.get();
+  }
+}
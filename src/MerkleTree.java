@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+// 檔案的Merkle tree（-resume）：葉子是每個BLOCK_SIZE block的SHA-256，節點的結構同RFC 6962
+// （leaf = H(0x00 || block)，node = H(0x01 || left || right)，n個葉子從最大的2^k < n分成左右兩邊）
+// 葉子可以依序邊傳邊算（update），也可以從檔案平行地算（hashFile）；已經知道的葉子不再計算
+public class MerkleTree {
+  static final int BLOCK_SHIFT = 20;
+  static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  static final int HASH_LENGTH = 32;
+  // SYN-ACK上最多報告幾個subtree的digest（一個option最長255 bytes）
+  static final int MAX_GROUPS = 30;
+
+  private final long length;
+  private final byte[][] leaves;
+  private final MessageDigest digest = sha256();
+  private int current = -1; // update正在計算的block；-1 = 沒有
+  private long fed;         // current已經算進digest的bytes
+
+  MerkleTree(long length) {
+    this.length = length;
+    this.leaves = new byte[blocks(length)][];
+  }
+
+  static int blocks(long length) {
+    return (int) ((length + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // 每個JDK都有SHA-256
+    }
+  }
+
+  long length() {
+    return length;
+  }
+
+  int size() {
+    return leaves.length;
+  }
+
+  void set(int block, byte[] hash) {
+    leaves[block] = hash;
+  }
+
+  byte[] leaf(int block) {
+    return leaves[block];
+  }
+
+  // 檔案[offset, offset + data.remaining())的bytes：同一個block內必須依序，已經知道的block跳過
+  void update(long offset, ByteBuffer data) {
+    data = data.duplicate();
+    while (data.hasRemaining()) {
+      int block = (int) (offset >> BLOCK_SHIFT);
+      long blockStart = (long) block << BLOCK_SHIFT;
+      int n = (int) Math.min(data.remaining(), Math.min(blockStart + BLOCK_SIZE, length) - offset);
+      if (n <= 0)
+        throw new IllegalArgumentException("data beyond the end of the file");
+      if (leaves[block] == null) {
+        if (current != block) {
+          if (offset != blockStart)
+            throw new IllegalArgumentException("block " + block + " not hashed from its start");
+          digest.reset();
+          digest.update((byte) 0);
+          current = block;
+          fed = 0;
+        } else if (offset != blockStart + fed) {
+          throw new IllegalArgumentException("block " + block + " not hashed in order");
+        }
+        ByteBuffer part = data.duplicate();
+        part.limit(part.position() + n);
+        digest.update(part);
+        fed += n;
+        if (blockStart + fed == Math.min(blockStart + BLOCK_SIZE, length)) {
+          leaves[block] = digest.digest();
+          current = -1;
+        }
+      }
+      data.position(data.position() + n);
+      offset += n;
+    }
+  }
+
+  // 從檔案平行地計算[from, to)的葉子：每個task map一個Sender.MAP_REGION_SIZE的範圍
+  void hashFile(FileChannel channel, int from, int to) throws IOException {
+    int perRegion = (int) (Sender.MAP_REGION_SIZE >> BLOCK_SHIFT);
+    try {
+      IntStream.range(0, (to - from + perRegion - 1) / perRegion).parallel().forEach(region -> {
+        int first = from + region * perRegion;
+        int last = Math.min(to, first + perRegion);
+        long start = (long) first << BLOCK_SHIFT;
+        long end = Math.min((long) last << BLOCK_SHIFT, length);
+        MessageDigest regionDigest = sha256();
+        try {
+          MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+          for (int block = first; block < last; block++) {
+            int position = (int) (((long) block << BLOCK_SHIFT) - start);
+            regionDigest.update((byte) 0);
+            regionDigest.update(mapped.slice(position, (int) Math.min(BLOCK_SIZE, end - start - position)));
+            leaves[block] = regionDigest.digest();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  boolean complete() {
+    for (byte[] leaf : leaves) {
+      if (leaf == null)
+        return false;
+    }
+    return true;
+  }
+
+  // 整個檔案的root；還有不知道的葉子時回傳null
+  byte[] root() {
+    return complete() ? hash(0, leaves.length) : null;
+  }
+
+  // 葉子[from, to)的Merkle hash（RFC 6962的MTH）
+  byte[] hash(int from, int to) {
+    if (to - from == 1)
+      return leaves[from];
+    MessageDigest node = sha256();
+    if (to == from)
+      return node.digest();
+    int split = Integer.highestOneBit(to - from - 1);
+    node.update((byte) 1);
+    node.update(hash(from, from + split));
+    node.update(hash(from + split, to));
+    return node.digest();
+  }
+
+  // 前blocks個block分成每2^shift個一組（Merkle subtree），組數不超過maxGroups（SYN-ACK放得下的digest數）
+  static int groupShift(int blocks, int maxGroups) {
+    int shift = 0;
+    while (((long) blocks + (1L << shift) - 1) >> shift > maxGroups)
+      shift++;
+    return shift;
+  }
+
+  static int groups(int blocks, int shift) {
+    return (int) (((long) blocks + (1L << shift) - 1) >> shift);
+  }
+
+  // 第group組（限前blocks個block）subtree hash的前8 bytes：SYN-ACK上的manifest
+  long groupDigest(int group, int shift, int blocks) {
+    int from = group << shift;
+    return ByteBuffer.wrap(hash(from, Math.min(blocks, from + (1 << shift)))).getLong();
+  }
+
+  static String hex(byte[] hash, int bytes) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < bytes && i < hash.length; i++)
+      text.append(String.format("%02x", hash[i]));
+    return text.toString();
+  }
+}
@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// 目前開著的連線的metrics：登記在platform MBeanServer上（jconsole等可以即時讀取），
+// 也可以用-metrics每隔一段時間把所有連線的snapshot印出來
+public class MetricsRegistry {
+  private static final MetricsRegistry SHARED = new MetricsRegistry();
+
+  private final ConcurrentHashMap<String, ConnectionMetrics> connections = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+  private volatile long dumpIntervalNanos;
+
+  public static MetricsRegistry shared() {
+    return SHARED;
+  }
+
+  // 名稱是角色加上這個process裡的流水號，例如sender-1
+  ConnectionMetrics create(TCPHandler handler) {
+    return new ConnectionMetrics(handler,
+        handler.getClass().getSimpleName().toLowerCase() + "-" + nextId.incrementAndGet());
+  }
+
+  void register(ConnectionMetrics metrics) {
+    if (connections.putIfAbsent(metrics.name, metrics) != null)
+      return;
+    try {
+      server.registerMBean(metrics, objectName(metrics));
+    } catch (JMException e) {
+      System.out.println("debug: metrics could not be registered: " + e.getMessage());
+    }
+  }
+
+  void unregister(ConnectionMetrics metrics) {
+    if (!connections.remove(metrics.name, metrics))
+      return;
+    try {
+      server.unregisterMBean(objectName(metrics));
+    } catch (JMException e) {
+    }
+  }
+
+  private static ObjectName objectName(ConnectionMetrics metrics) throws JMException {
+    return new ObjectName("TCPend:type=Connection,name=" + metrics.name);
+  }
+
+  public int size() {
+    return connections.size();
+  }
+
+  public String snapshot() {
+    StringBuilder snapshot = new StringBuilder();
+    for (ConnectionMetrics metrics : connections.values())
+      snapshot.append("metrics ").append(metrics.snapshot()).append('\n');
+    return snapshot.toString();
+  }
+
+  // 在共用的TimingWheel上定期印出snapshot，不另外開thread
+  public void startDump(long intervalMillis) {
+    boolean started = dumpIntervalNanos > 0;
+    dumpIntervalNanos = intervalMillis * 1_000_000L;
+    if (!started && intervalMillis > 0)
+      TimingWheel.shared().schedule(this::dump, dumpIntervalNanos);
+  }
+
+  private void dump() {
+    if (!connections.isEmpty())
+      System.out.print(snapshot());
+    TimingWheel.shared().schedule(this::dump, dumpIntervalNanos);
+  }
+}
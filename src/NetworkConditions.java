@@ -0,0 +1,97 @@
+// EmulatedTransport模擬的網路條件（-netem）：只影響這個endpoint送出的方向，兩端都指定才是雙向
+// 格式與Linux netem類似，以逗號分隔：delay=20,jitter=5,loss=1%,dup=0.1%,corrupt=0.1%,reorder=2%,rate=50,queue=1000,seed=7
+//   delay/jitter：毫秒（jitter在±jitter之間均勻分佈，會造成亂序）
+//   loss/dup/corrupt/reorder：機率，可以寫成百分比或小數；reorder的包裹在delay之外再晚1 ms送出，讓之後的包裹超過它
+//   rate：token bucket的頻寬（Mbit/s，0 = 不限制），queue：等待token的包裹上限，超過時tail drop
+public class NetworkConditions {
+  public double delayMillis;
+  public double jitterMillis;
+  public double loss;
+  public double duplicate;
+  public double corrupt;
+  public double reorder;
+  public double rateMbps;
+  public int queuePackets = 1000;
+  public long seed = 1;
+
+  public static NetworkConditions parse(String spec) {
+    NetworkConditions conditions = new NetworkConditions();
+    if (spec == null || spec.isEmpty() || spec.equals("none"))
+      return conditions;
+    for (String option : spec.split(",")) {
+      int equals = option.indexOf('=');
+      if (equals < 0)
+        throw new IllegalArgumentException("bad network condition: " + option);
+      String name = option.substring(0, equals).trim();
+      String value = option.substring(equals + 1).trim();
+      switch (name) {
+        case "delay":
+          conditions.delayMillis = Double.parseDouble(value);
+          break;
+        case "jitter":
+          conditions.jitterMillis = Double.parseDouble(value);
+          break;
+        case "loss":
+          conditions.loss = probability(value);
+          break;
+        case "dup":
+          conditions.duplicate = probability(value);
+          break;
+        case "corrupt":
+          conditions.corrupt = probability(value);
+          break;
+        case "reorder":
+          conditions.reorder = probability(value);
+          break;
+        case "rate":
+          conditions.rateMbps = Double.parseDouble(value);
+          break;
+        case "queue":
+          conditions.queuePackets = Integer.parseInt(value);
+          break;
+        case "seed":
+          conditions.seed = Long.parseLong(value);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown network condition: " + name);
+      }
+    }
+    return conditions;
+  }
+
+  private static double probability(String value) {
+    if (value.endsWith("%"))
+      return Double.parseDouble(value.substring(0, value.length() - 1)) / 100;
+    return Double.parseDouble(value);
+  }
+
+  // 沒有任何延遲時送出的包裹不需要排隊
+  boolean immediate() {
+    return delayMillis <= 0 && jitterMillis <= 0 && reorder <= 0 && rateMbps <= 0;
+  }
+
+  public String toString() {
+    StringBuilder spec = new StringBuilder();
+    append(spec, "delay", delayMillis, "");
+    append(spec, "jitter", jitterMillis, "");
+    append(spec, "loss", loss * 100, "%");
+    append(spec, "dup", duplicate * 100, "%");
+    append(spec, "corrupt", corrupt * 100, "%");
+    append(spec, "reorder", reorder * 100, "%");
+    append(spec, "rate", rateMbps, "");
+    return spec.length() == 0 ? "none" : spec.toString();
+  }
+
+  private static void append(StringBuilder spec, String name, double value, String unit) {
+    if (value <= 0)
+      return;
+    if (spec.length() > 0)
+      spec.append(',');
+    spec.append(name).append('=');
+    if (value == Math.rint(value))
+      spec.append((long) value);
+    else
+      spec.append(value);
+    spec.append(unit);
+  }
+}
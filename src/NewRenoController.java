@@ -0,0 +1,57 @@
+// RFC 5681/6582：slow start + congestion avoidance，遺失時cwnd減半
+public class NewRenoController implements CongestionController {
+  static final int INITIAL_WINDOW_SEGMENTS = 10; // RFC 6928
+
+  final int mss;
+  long cwnd;
+  long ssthresh = Long.MAX_VALUE;
+  private long bytesAckedInAvoidance;
+
+  public NewRenoController(int mss) {
+    this.mss = mss;
+    this.cwnd = (long) INITIAL_WINDOW_SEGMENTS * mss;
+  }
+
+  public synchronized void onAck(int ackedBytes, long rttNanos) {
+    if (cwnd < ssthresh) {
+      // slow start：appropriate byte counting，每個ACK最多增加2*mss（RFC 3465）
+      cwnd += Math.min(ackedBytes, 2 * mss);
+    } else {
+      // congestion avoidance：每個RTT增加一個mss
+      bytesAckedInAvoidance += ackedBytes;
+      if (bytesAckedInAvoidance >= cwnd) {
+        bytesAckedInAvoidance -= cwnd;
+        cwnd += mss;
+      }
+    }
+  }
+
+  public synchronized void onCongestionEvent(long inFlightBytes) {
+    ssthresh = Math.max(inFlightBytes / 2, 2L * mss);
+    cwnd = ssthresh;
+    bytesAckedInAvoidance = 0;
+  }
+
+  public synchronized void onRetransmissionTimeout(long inFlightBytes) {
+    ssthresh = Math.max(inFlightBytes / 2, 2L * mss);
+    cwnd = mss;
+    bytesAckedInAvoidance = 0;
+  }
+
+  public synchronized void restore(long cwnd, long ssthresh) {
+    this.cwnd = Math.max(this.cwnd, cwnd);
+    this.ssthresh = Math.max(ssthresh, 2L * mss);
+  }
+
+  public synchronized long getCwnd() {
+    return cwnd;
+  }
+
+  public synchronized long getSsthresh() {
+    return ssthresh;
+  }
+
+  public String getName() {
+    return NEWRENO;
+  }
+}
@@ -0,0 +1,37 @@
+import java.util.concurrent.locks.LockSupport;
+
+// 依pacing rate把送出時間平均分散，避免一次把整個window的包裹打進網路造成佇列與遺失
+// 新資料由Sender thread依序排隊等待自己的送出時間；重送不等待，但一樣佔用pacing的額度
+public class Pacer {
+  static final long SLACK_NANOS = 100_000;      // 離送出時間不到100us就直接送（parkNanos的解析度有限）
+  static final long MAX_CREDIT_NANOS = 200_000; // 閒置之後最多累積200us的額度，限制burst大小
+
+  private long nextSendTime = System.nanoTime();
+  long pacedNum;
+
+  // rate單位為bytes/s，0代表不pacing
+  public void await(int bytes, long rate) {
+    if (rate <= 0)
+      return;
+    long sendAt = reserve(bytes, rate);
+    long delay;
+    while ((delay = sendAt - System.nanoTime()) > SLACK_NANOS)
+      LockSupport.parkNanos(delay);
+  }
+
+  public void charge(int bytes, long rate) {
+    if (rate > 0)
+      reserve(bytes, rate);
+  }
+
+  private synchronized long reserve(int bytes, long rate) {
+    long now = System.nanoTime();
+    if (nextSendTime - now < -MAX_CREDIT_NANOS)
+      nextSendTime = now - MAX_CREDIT_NANOS;
+    long sendAt = nextSendTime;
+    nextSendTime += (long) (bytes * 1e9 / rate);
+    if (sendAt - now > SLACK_NANOS)
+      pacedNum += 1;
+    return sendAt;
+  }
+}
@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// 以pool重用的ByteBuffer來編碼/解碼TCPpacket，讓每個包裹不需要配置新的byte[]
+public class PacketCodec {
+  private static final int MAX_IDLE = 256;
+
+  private final int bufferSize;
+  private final boolean direct;
+  private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+  public PacketCodec(int bufferSize, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  public ByteBuffer acquire() {
+    ByteBuffer buffer;
+    synchronized (pool) {
+      buffer = pool.poll();
+    }
+    if (buffer == null)
+      buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    buffer.clear();
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+      return;
+    synchronized (pool) {
+      if (pool.size() < MAX_IDLE)
+        pool.push(buffer);
+    }
+  }
+
+  // 編碼到pool中的buffer，回傳的buffer已flip好可以直接送出；送完後要release
+  public ByteBuffer encode(TCPpacket packet) {
+    ByteBuffer buffer = packet.encodedLength() <= bufferSize ? acquire() : ByteBuffer.allocate(packet.encodedLength());
+    packet.writeTo(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  // 驗證checksum後把header解到into，payload是datagram的slice；checksum錯誤回傳null
+  public TCPpacket decode(ByteBuffer datagram, TCPpacket into) {
+    if (!TCPpacket.checksumValid(datagram))
+      return null;
+    return into.readFrom(datagram);
+  }
+}
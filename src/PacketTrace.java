@@ -0,0 +1,172 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// 每個送出/收到的包裹一行log："snd 1.234 S A - - seq length ack"
+// text：在收送的thread上直接格式化並印出（原本的行為）
+// off：不記錄
+// ring：收送的thread只把固定大小的binary record放進ring buffer，背景thread批次格式化後印出；
+//       ring滿的時候丟掉record並計數，不會擋住收送
+public abstract class PacketTrace {
+  public static final String TEXT = "text";
+  public static final String OFF = "off";
+  public static final String RING = "ring";
+  // record的flags
+  static final int SENT = 1;
+  static final int SYN = 2;
+  static final int ACK = 4;
+  static final int FIN = 8;
+  static final int DATA = 16;
+  static final int PARITY = 32; // FEC parity segment（不算DATA）
+
+  private static final PacketTrace TEXT_TRACE = new TextTrace();
+  private static final PacketTrace OFF_TRACE = new PacketTrace() {
+    void record(int flags, long millis, int seq, int length, int ack) {
+    }
+  };
+  private static volatile RingTrace ringTrace;
+
+  static PacketTrace create(String mode) {
+    if (OFF.equals(mode))
+      return OFF_TRACE;
+    if (!RING.equals(mode))
+      return TEXT_TRACE;
+    // 所有連線共用一個ring與一個背景thread
+    synchronized (PacketTrace.class) {
+      if (ringTrace == null)
+        ringTrace = new RingTrace(1 << 16);
+      return ringTrace;
+    }
+  }
+
+  // millis：從連線開始算的毫秒
+  final void record(boolean sent, long millis, TCPpacket packet) {
+    int flags = (sent ? SENT : 0) | (packet.getSyn() ? SYN : 0) | (packet.getAck() ? ACK : 0)
+        | (packet.getFin() ? FIN : 0) | flag(packet);
+    record(flags, millis, packet.seqNum, packet.getDataLength(), packet.ackNum);
+  }
+
+  // 資料包是DATA，parity segment是PARITY
+  static int flag(TCPpacket packet) {
+    if (packet.fecCount > 0)
+      return PARITY;
+    return packet.isDataPacket() ? DATA : 0;
+  }
+
+  abstract void record(int flags, long millis, int seq, int length, int ack);
+
+  // 等到已經記錄的都輸出（例如印出統計之前）
+  void flush() {
+  }
+
+  long dropped() {
+    return 0;
+  }
+
+  // 與原本DecimalFormat("##.###")相同的時間格式：1.5、0.005、12
+  static StringBuilder format(StringBuilder line, int flags, long millis, int seq, int length, int ack) {
+    line.append((flags & SENT) != 0 ? "snd " : "rcv ");
+    long seconds = millis / 1000;
+    int fraction = (int) (millis % 1000);
+    line.append(seconds);
+    if (fraction != 0) {
+      int digits = 3;
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+        digits--;
+      }
+      line.append('.');
+      for (int threshold = digits == 3 ? 100 : digits == 2 ? 10 : 1; fraction < threshold; threshold /= 10)
+        line.append('0');
+      line.append(fraction);
+    }
+    line.append((flags & SYN) != 0 ? " S " : " - ").append((flags & (ACK | DATA | PARITY)) != 0 ? "A " : "- ")
+        .append((flags & FIN) != 0 ? "F " : "- ").append((flags & DATA) != 0 ? "D " : (flags & PARITY) != 0 ? "P " : "- ").append(seq).append(' ')
+        .append(length).append(' ').append(ack);
+    return line;
+  }
+
+  private static final class TextTrace extends PacketTrace {
+    void record(int flags, long millis, int seq, int length, int ack) {
+      System.out.println(format(new StringBuilder(64), flags, millis, seq, length, ack));
+    }
+  }
+
+  // multi-producer、single-consumer的ring：每個slot 3個long，published[i]記錄slot裡是第幾個record
+  private static final class RingTrace extends PacketTrace {
+    private static final int WORDS = 3;
+    private final long[] slots;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile long printed; // 已經印出的record數
+    private final LongAdder droppedNum = new LongAdder();
+
+    RingTrace(int capacity) {
+      this.slots = new long[capacity * WORDS];
+      this.published = new AtomicLongArray(capacity);
+      this.mask = capacity - 1;
+      for (int i = 0; i < capacity; i++)
+        published.set(i, -1);
+      Thread consumer = new Thread(this::consume, "packet-trace");
+      consumer.setDaemon(true);
+      consumer.start();
+    }
+
+    void record(int flags, long millis, int seq, int length, int ack) {
+      long claim;
+      do {
+        claim = tail.get();
+        if (claim - head > mask) {
+          droppedNum.increment();
+          return;
+        }
+      } while (!tail.compareAndSet(claim, claim + 1));
+      int slot = (int) (claim & mask);
+      slots[slot * WORDS] = millis << 8 | flags;
+      slots[slot * WORDS + 1] = (long) seq << 32 | (length & 0xFFFFFFFFL);
+      slots[slot * WORDS + 2] = ack;
+      published.set(slot, claim); // volatile write：slot的內容對consumer可見
+    }
+
+    private void consume() {
+      StringBuilder batch = new StringBuilder(1 << 16);
+      while (true) {
+        long next = head;
+        int slot = (int) (next & mask);
+        if (published.get(slot) != next) {
+          if (batch.length() > 0) {
+            System.out.print(batch);
+            batch.setLength(0);
+          }
+          printed = next;
+          LockSupport.parkNanos(1_000_000L);
+          continue;
+        }
+        long word0 = slots[slot * WORDS];
+        long word1 = slots[slot * WORDS + 1];
+        int ack = (int) slots[slot * WORDS + 2];
+        head = next + 1;
+        format(batch, (int) (word0 & 0xFF), word0 >>> 8, (int) (word1 >> 32), (int) word1, ack).append('\n');
+        if (batch.length() > 60_000) {
+          System.out.print(batch);
+          batch.setLength(0);
+        }
+      }
+    }
+
+    // 等consumer把目前為止的record都印出（最多1秒）
+    void flush() {
+      long target = tail.get();
+      long deadline = System.nanoTime() + 1_000_000_000L;
+      while (printed - target < 0 && System.nanoTime() - deadline < 0)
+        LockSupport.parkNanos(500_000L);
+    }
+
+    long dropped() {
+      return droppedNum.sum();
+    }
+  }
+}
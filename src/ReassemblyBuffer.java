@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Receiver的重組緩衝區：以seq offset索引的byte ring，超前的payload直接複製到ring中對應的位置，
+// 收到的區段記錄在SackBlocks（interval map）中；補上洞之後從ackNum開始把連續的bytes一次寫出
+// ring從小容量開始，需要時加倍，最多到maxCapacity（receiver通告的視窗）
+public class ReassemblyBuffer {
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  private final int maxCapacity;
+  private final SackBlocks blocks = new SackBlocks();
+  private byte[] ring;
+  private int mask;
+  private int head; // base在ring中的index
+  private int base; // head對應的seq（= receiver的ackNum）
+
+  public ReassemblyBuffer(int maxCapacity, int initialSeq) {
+    this.maxCapacity = maxCapacity;
+    this.base = initialSeq;
+  }
+
+  public SackBlocks blocks() {
+    return blocks;
+  }
+
+  public boolean isEmpty() {
+    return blocks.size() == 0;
+  }
+
+  // [seq, end) 是否已經完整收到
+  public boolean contains(int seq, int end) {
+    return blocks.covers(seq, end);
+  }
+
+  // 暫存超前的包裹；超出maxCapacity時回傳false（呼叫者丟棄）
+  public boolean store(int seq, ByteBuffer payload) {
+    int length = payload.remaining();
+    int offset = seq - base;
+    if (offset < 0 || (long) offset + length > maxCapacity)
+      return false;
+    ensureCapacity(offset + length);
+    int index = (head + offset) & mask;
+    int first = Math.min(length, ring.length - index);
+    ByteBuffer src = payload.duplicate();
+    src.get(ring, index, first);
+    if (first < length)
+      src.get(ring, 0, length - first);
+    blocks.add(seq, seq + length);
+    return true;
+  }
+
+  // ackNum前進到newBase（in-order的包裹已經直接寫出）；回傳緊接在後、可以一起寫出的bytes數
+  public int advance(int newBase) {
+    int delta = newBase - base;
+    if (delta <= 0)
+      return 0;
+    base = newBase;
+    head = (head + delta) & mask;
+    blocks.advance(newBase);
+    return blocks.contiguousFrom(newBase);
+  }
+
+  // 把base開始的length bytes寫到out，ackNum隨之前進
+  public void drainTo(WritableByteChannel out, int length) throws IOException {
+    int first = Math.min(length, ring.length - head);
+    ByteBuffer chunk = ByteBuffer.wrap(ring, head, first);
+    while (chunk.hasRemaining())
+      out.write(chunk);
+    if (first < length) {
+      chunk = ByteBuffer.wrap(ring, 0, length - first);
+      while (chunk.hasRemaining())
+        out.write(chunk);
+    }
+    base += length;
+    head = (head + length) & mask;
+    blocks.advance(base);
+  }
+
+  private void ensureCapacity(int needed) {
+    if (ring != null && needed <= ring.length)
+      return;
+    int capacity = ring == null ? INITIAL_CAPACITY : ring.length;
+    while (capacity < needed)
+      capacity <<= 1;
+    byte[] grown = new byte[capacity];
+    if (ring != null) {
+      // 依邏輯順序搬到新的ring，head歸零
+      int first = ring.length - head;
+      System.arraycopy(ring, head, grown, 0, first);
+      System.arraycopy(ring, 0, grown, first, head);
+    }
+    ring = grown;
+    mask = capacity - 1;
+    head = 0;
+  }
+}
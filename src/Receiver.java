@@ -1,53 +1,234 @@
-import java.io.FileOutputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.util.PriorityQueue;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Receives file from sender using TCP from base class
 public class Receiver extends TCPHandler {
-  PriorityQueue<TCPpacket> receiverBuffer;
-  FileOutputStream fileOutputStream;
+  // 超前的包裹暫存在這裡，第一次出現亂序時才配置
+  ReassemblyBuffer reassembly;
+  // 最近一次通告的視窗右緣；超出的包裹直接丟棄，暫存的資料因此不會超過config.receiveWindow
+  private int advertisedEdge;
+  private boolean advertised;
+  // 不使用handler的monitor：endThread持有它的時候，writer thread的window update不能卡住
+  private final Object windowLock = new Object();
+  // in-order的資料交給write-behind writer，network thread不等disk
+  WriteBehindFile output;
+  // 最近收到的資料包的timestamp：writer送window update時回傳
+  private volatile long lastTimestamp;
+  // delayed ACK（RFC 5681/1122）：in-order的包裹每config.ackEvery個ACK一次，或config.ackDelay後由timer ACK；
+  // 超前、補洞、重複的包裹立刻ACK。狀態以ackLock保護（network thread與timer thread）
+  private final Object ackLock = new Object();
+  private boolean ackNow; // handlePacket設定：這個包裹需要立刻ACK
+  private int unackedSegments;
+  private long unackedTimestamp; // 第一個還沒ACK的包裹的timestamp：RFC 7323，RTT包含ACK延遲
+  private volatile TimingWheel.Timeout delayedAck;
+  // 多個stream（SYN帶OPT_STREAMS）：fileName是輸出目錄，每個stream寫到自己的檔案
+  // 連線層只記錄收到的seq區段（決定ACK與SACK），資料直接交給各自的stream重組，一個stream的遺失不會擋住其他stream
+  private SackBlocks received;
+  private final ConcurrentHashMap<Integer, InboundStream> streams = new ConcurrentHashMap<>();
+  private final HashSet<String> streamNames = new HashSet<>();
+  private volatile boolean outputClosed;
+  // striped transfer：所有stripe的Receiver共用的輸出檔，各自從自己範圍的offset開始寫（由StripedTransfer設定）
+  FileChannel stripeOutput;
+  // FEC：sender在SYN上要求時建立，在handlePacket之前用parity補回遺失的segment
+  FecDecoder fecDecoder;
+  // 壓縮：in-order的bytes先解開再交給output（第一次寫出時建立）
+  private BlockInflater inflater;
+  // -resume：start時打開（不截斷）並算出已經存在的block的葉子；sender沒有要求續傳時關閉，改用一般的output
+  private ResumableFile resumeFile;
 
   public Receiver(int port, int mtu, int sws, String fileName){
-    super(port, fileName, mtu, sws);
-    receiverBuffer = new PriorityQueue<TCPpacket>((packet1, packet2) -> packet1.seqNum - packet2.seqNum);
+    this(port, mtu, sws, fileName, new TCPConfig());
+  }
+
+  public Receiver(int port, int mtu, int sws, String fileName, TCPConfig config){
+    super(port, fileName, mtu, sws, config);
+  }
+
+  // ConnectionListener用：共用listener的transport，回應給remote
+  Receiver(DatagramTransport transport, InetSocketAddress remote, int mtu, int sws, String fileName, TCPConfig config){
+    super(transport, fileName, mtu, sws, config);
+    this.ownsTransport = false;
+    this.remoteIP = remote.getAddress();
+    this.remotePort = remote.getPort();
+  }
 
+  // -resume：在等SYN之前算好部分檔案的葉子，handshake不用等hash
+  @Override
+  public void start() {
+    if (config.resume && stripeOutput == null && new File(fileName).isFile()) {
+      try {
+        resumeFile = new ResumableFile(fileName, config.fsync, metrics);
+      } catch (IOException ex) {
+        System.out.println(ex.getMessage());
+      }
+    }
+    super.start();
+  }
+
+  // 收到SYN之後才知道是單一檔案還是多個stream
+  void acceptConnection(){
+    // 不是striped模式時不接受stripe：SYN-ACK不帶OPT_STRIPE，sender不會送這個範圍
+    if (stripeOutput == null)
+      stripeOffset = -1;
+    if (fecEnabled)
+      fecDecoder = new FecDecoder(mtu - Sender.HEADER_SIZE);
+    resume = resume && config.resume && stripeOutput == null;
     try{
-      fileOutputStream = new FileOutputStream(fileName);
-    }catch(FileNotFoundException ex){
+      if (resume && resumeFile == null) {
+        try {
+          resumeFile = new ResumableFile(fileName, config.fsync, metrics); // 還沒有部分檔案
+        } catch (IOException ex) {
+          System.out.println(ex.getMessage());
+          resume = false;
+        }
+      }
+      // manifest要放進一個SYN-ACK：組數依其他options用掉之後剩下的空間，一組都放不下時不續傳
+      int maxGroups = resume ? resumeGroupsRoom() : 0;
+      if (resume && maxGroups < 1 && resumeFile.blocks > 0) {
+        System.out.println("Resume refused: the SYN-ACK has no room for the manifest with mtu " + mtu);
+        resume = false;
+      }
+      if (resume) {
+        resumeDigests = resumeFile.digests(maxGroups);
+        resumeBlocks = resumeFile.blocks;
+        resumeShift = resumeFile.shift;
+        resumeFile.onDrain = this::onOutputDrained;
+        if (compression) {
+          inflater = new BlockInflater(resumeFile.data(), metrics);
+          resumeFile.downstream = inflater;
+        }
+        return;
+      }
+      if (resumeFile != null) {
+        resumeFile.close();
+        resumeFile = null;
+      }
+      if (stripeOutput != null) {
+        output = new WriteBehindFile(stripeOutput, Math.max(0, stripeOffset), config.fsync);
+        output.onDrain = this::onOutputDrained;
+        return;
+      }
+      if (multiStream) {
+        received = new SackBlocks();
+        File dir = new File(fileName);
+        if (!dir.isDirectory() && !dir.mkdirs())
+          throw new IOException("cannot create output directory " + fileName);
+        return;
+      }
+      output = new WriteBehindFile(fileName, config.fsync);
+      output.onDrain = this::onOutputDrained;
+    }catch(IOException ex){
       System.out.println(ex.getMessage());
     }
   }
 
-  public boolean inBuffer(TCPpacket packet){
-    for (TCPpacket p : receiverBuffer){
-      if(p.seqNum == packet.seqNum)
-        return true;
-    }
-    return false;
+  // SYN-ACK在mtu內還能放幾個resume digest（不超過MerkleTree.MAX_GROUPS）
+  private int resumeGroupsRoom() {
+    TCPpacket synAck = new TCPpacket(getSeqNum(), getAckNum(), 0, new Boolean[] { true, false, true }, new byte[0]);
+    resumeDigests = new long[0];
+    addOptions(synAck);
+    int room = mtu - TCPpacket.headerSize - synAck.optionsLength();
+    return Math.min(MerkleTree.MAX_GROUPS, room / 8);
+  }
+
+  // SYN data：單一檔案的一般輸出才接受（續傳的計畫、壓縮的block與stream都不會在SYN上）
+  void acceptSynData(TCPpacket syn) {
+    if (multiStream || resume || compression || stripeOffset >= 0 || output == null)
+      return;
+    TCPpacket data = new TCPpacket(syn.seqNum + 1, syn.ackNum, syn.timestamp, new Boolean[] { false, false, false }, null);
+    data.payload = syn.payload;
+    handlePacket(data);
+    synDataLength = syn.getDataLength();
+    synDataAccepted = getAckNum() == syn.seqNum + 1 + synDataLength;
+  }
+
+  // 已經收到但還沒寫到檔案的bytes：會從通告的視窗扣除
+  // 多個stream時連線的ackNum不等stream的重組，stream中暫存的bytes也要算進來
+  long undeliveredBytes() {
+    long bytes = output != null ? output.pendingBytes() : 0;
+    ResumableFile resumed = resumeFile;
+    if (resumed != null)
+      bytes += resumed.pendingBytes();
+    BlockInflater blocks = inflater;
+    if (blocks != null)
+      bytes += blocks.bufferedBytes();
+    for (InboundStream stream : streams.values())
+      bytes += stream.undeliveredBytes();
+    return bytes;
   }
 
   public void handlePacket(TCPpacket packet){
-    byte[] data = packet.data;
-    switch (Integer.compare(packet.seqNum, getAckNum())) {
+    // 資料也交給FEC decoder記錄：parity先到、這個segment讓group只剩一個洞時，補回的segment接著處理
+    TCPpacket recovered = fecDecoder != null ? fecDecoder.onData(packet, getAckNum()) : null;
+    receivePacket(packet);
+    if (recovered != null)
+      receiveRecovered(recovered);
+  }
+
+  // parity到了：補回group中唯一遺失的segment，當作收到的資料包處理並ACK
+  void handleParity(TCPpacket parity) {
+    TCPpacket recovered = fecDecoder != null ? fecDecoder.onParity(parity, getAckNum()) : null;
+    if (recovered == null)
+      return;
+    receiveRecovered(recovered);
+    acknowledge(recovered);
+  }
+
+  // 補回的segment填上洞：立刻ACK
+  private void receiveRecovered(TCPpacket recovered) {
+    metrics.fecRecovered.increment();
+    receivePacket(recovered);
+    ackNow = true;
+  }
+
+  private void receivePacket(TCPpacket packet){
+    lastTimestamp = packet.timestamp;
+    ackNow = true;
+    if (advertised && packet.getReturnAck() - advertisedEdge > 0 && packet.seqNum - getAckNum() >= 0) {
+      metrics.windowDrops.increment();
+      return;
+    }
+    if (multiStream) {
+      handleStreamPacket(packet);
+      return;
+    }
+    switch (Integer.signum(packet.seqNum - getAckNum())) { // 差值比較：seq wrap之後仍然正確
       case -1: // packet.seqNum < ackNum 這個包裹之前已經收過：丟棄
-        //outOfSeqPackets += 1;
+        //metrics.outOfSequence.increment();
         break;
-      case 1: // packet.seqNum > ackNum 這個包裹超前了：先緩存起來
-        outOfSeqPackets += 1;
-        if (inBuffer(packet)) return;// check for packet already in buffer
-        receiverBuffer.add(packet);// add packet into buffer if not in there
+      case 1: // packet.seqNum > ackNum 這個包裹超前了：複製到重組緩衝區中對應的位置
+        metrics.outOfSequence.increment();
+        if (reassembly == null)
+          reassembly = new ReassemblyBuffer(config.receiveWindow, getAckNum());
+        if (reassembly.contains(packet.seqNum, packet.getReturnAck())) return;// 已經收過的包裹
+        if (!reassembly.store(packet.seqNum, packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload))
+          metrics.windowDrops.increment();
         break;
       case 0: // packet.seqNum == ackNum 正確的包裹：更新ackNum並處理
         //ackNum = packet.seqNum + packet.data.length;
-        setAckNum(packet.seqNum + packet.data.length);
+        setAckNum(packet.getReturnAck());
         if(DE_BUG) System.out.println("receiver 46 ack number" + getAckNum() );
-        dataTransferred += packet.data.length;
+        metrics.bytesTransferred.add(packet.getDataLength());
+        // 有亂序的資料暫存時，這個包裹補上了（部分的）洞：立刻ACK
+        ackNow = reassembly != null && !reassembly.isEmpty();
 
         try {
-          fileOutputStream.write(data);
-          if (receiverBuffer.size() > 0) {
-            handlePacket(receiverBuffer.poll());
+          writePayload(packet);
+          // 補上洞之後，緩衝區中接續的bytes一次寫出
+          if (reassembly != null) {
+            int ready = reassembly.advance(getAckNum());
+            if (ready > 0) {
+              reassembly.drainTo(sink(), ready);
+              setAckNum(getAckNum() + ready);
+              metrics.bytesTransferred.add(ready);
+            }
           }
         } catch (IOException ex) {
           System.out.println(ex.getMessage());
@@ -56,12 +237,258 @@ public class Receiver extends TCPHandler {
     }
   }
 
+  void acknowledge(TCPpacket packet) {
+    synchronized (ackLock) {
+      if (unackedSegments == 0)
+        unackedTimestamp = packet.timestamp;
+      unackedSegments += 1;
+      if (!ackNow && unackedSegments < config.ackEvery) {
+        if (delayedAck == null)
+          delayedAck = TimingWheel.shared().schedule(this::onDelayedAckTimeout, config.ackDelay * 1_000_000L);
+        return;
+      }
+      // 立刻ACK的包裹echo自己的timestamp，累積的in-order包裹echo最早的那個
+      long echo = ackNow ? packet.timestamp : unackedTimestamp;
+      cancelDelayedAck();
+      sendACK(echo);
+    }
+  }
+
+  // timer thread：ackDelay內沒有湊滿ackEvery個包裹
+  // 排程時沒有亂序的資料，而SACK blocks只由network thread維護，所以不帶SACK
+  private void onDelayedAckTimeout() {
+    synchronized (ackLock) {
+      if (unackedSegments == 0 || !running())
+        return;
+      delayedAck = null;
+      unackedSegments = 0;
+      metrics.delayedAcks.increment();
+      sendTCP(new TCPpacket(getSeqNum(), getAckNum(), unackedTimestamp, new Boolean[] { false, false, true }, new byte[0]));
+    }
+  }
+
+  // 呼叫時需持有ackLock
+  private void cancelDelayedAck() {
+    unackedSegments = 0;
+    TimingWheel.Timeout timeout = delayedAck;
+    if (timeout != null) {
+      timeout.cancel();
+      delayedAck = null;
+    }
+  }
+
+  // FIN+ACK已經包含累積的ACK
+  void sendFinAck() {
+    synchronized (ackLock) {
+      cancelDelayedAck();
+    }
+    super.sendFinAck();
+  }
+
+  // 通告緩衝區剩餘的空間，回傳寫進header的值
+  // 右緣不往回縮（RFC 9293）；空間增加不到min(mss, 緩衝區/2)時不移動右緣，避免silly window（RFC 1122）
+  // network thread與writer thread都會送出：advertisedEdge以windowLock保護
+  int windowField(boolean syn) {
+    synchronized (windowLock) {
+      return advertise(syn);
+    }
+  }
+
+  private int advertise(boolean syn) {
+    int ack = getAckNum();
+    long free = Math.max(0, config.receiveWindow - undeliveredBytes());
+    if (advertised && (ack + free) - advertisedEdge < Math.min(mtu - Sender.HEADER_SIZE, config.receiveWindow / 2))
+      free = Math.max(0, advertisedEdge - ack);
+    int shift = syn ? 0 : windowShift;
+    long value = Math.min(free >> shift, 0xFFFF);
+    advertisedEdge = ack + (int) (value << shift);
+    advertised = true;
+    return (int) value;
+  }
+
+  // 多個stream：連線層的seq只用來決定ACK；payload依stream offset交給stream，stream內in-order的部分立刻寫出
+  private void handleStreamPacket(TCPpacket packet) {
+    int seq = packet.seqNum;
+    int end = packet.getReturnAck();
+    int ack = getAckNum();
+    if (seq - ack < 0 || received.covers(seq, end) || packet.streamId < 0)
+      return; // 重複的包裹
+    InboundStream stream = streams.get(packet.streamId);
+    if (stream == null) {
+      stream = new InboundStream(packet.streamId);
+      streams.put(packet.streamId, stream);
+      streamsNum += 1;
+    }
+    try {
+      if (!stream.receive(packet))
+        return; // 超出stream的緩衝區：不記錄為收到，sender會重送
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+    }
+    if ((packet.streamFlags & TCPpacket.STREAM_OPEN) == 0)
+      metrics.bytesTransferred.add(packet.getDataLength());
+    // 有亂序的包裹時：超前的包裹或補洞的包裹都立刻ACK
+    ackNow = seq != ack || received.size() > 0;
+    if (seq == ack) {
+      received.advance(end);
+      setAckNum(end + received.contiguousFrom(end));
+      received.advance(getAckNum());
+    } else {
+      received.add(seq, end);
+    }
+  }
+
+  // sender在SYN上表示支援SACK時，ACK帶上目前缺少的區段之後收到的部分
+  void addAckOptions(TCPpacket ack) {
+    if (!sackEnabled)
+      return;
+    if (received != null)
+      received.fill(ack, TCPpacket.MAX_SACK_BLOCKS);
+    else if (reassembly != null)
+      reassembly.blocks().fill(ack, TCPpacket.MAX_SACK_BLOCKS);
+  }
+
+  // 一個stream：OPEN包裹帶檔名，資料依stream offset重組後寫到自己的檔案，FIN之前的bytes都寫出後關閉
+  private final class InboundStream {
+    final int id;
+    WriteBehindFile file;
+    ReassemblyBuffer reassembly; // 超前的資料（或OPEN之前就到的資料）
+    long delivered;              // 已經交給file的stream offset
+    long finOffset = -1;
+    volatile long held;          // reassembly中的bytes
+
+    InboundStream(int id) {
+      this.id = id;
+    }
+
+    long undeliveredBytes() {
+      WriteBehindFile out = file;
+      return held + (out != null ? out.pendingBytes() : 0);
+    }
+
+    // 回傳false：緩衝區放不下
+    boolean receive(TCPpacket packet) throws IOException {
+      if ((packet.streamFlags & TCPpacket.STREAM_FIN) != 0)
+        finOffset = (packet.streamFlags & TCPpacket.STREAM_OPEN) != 0 ? 0 : packet.streamOffset + packet.getDataLength();
+      if ((packet.streamFlags & TCPpacket.STREAM_OPEN) != 0) {
+        open(packet.payload != null ? StandardCharsets.UTF_8.decode(packet.payload.duplicate()).toString()
+            : new String(packet.data, StandardCharsets.UTF_8));
+      } else if (file != null && packet.streamOffset == delivered) {
+        file.write(packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload.duplicate());
+        delivered += packet.getDataLength();
+        if (reassembly != null)
+          reassembly.advance((int) delivered);
+      } else {
+        if (reassembly == null)
+          reassembly = new ReassemblyBuffer(config.receiveWindow, (int) delivered);
+        if (!reassembly.store((int) packet.streamOffset, packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload))
+          return false;
+        held += packet.getDataLength();
+      }
+      drain();
+      return true;
+    }
+
+    private void open(String name) throws IOException {
+      // 只使用檔名部分，不讓sender寫到輸出目錄以外；同一個連線中重複的檔名加上stream id
+      String safe = new File(name).getName();
+      if (safe.isEmpty() || safe.equals(".") || safe.equals(".."))
+        safe = "stream-" + id;
+      if (!streamNames.add(safe))
+        safe = id + "_" + safe;
+      file = new WriteBehindFile(new File(fileName, safe).getPath(), config.fsync);
+      file.onDrain = Receiver.this::onOutputDrained;
+    }
+
+    // 把reassembly中接在delivered之後的bytes寫出；FIN之前的都寫出後關閉檔案
+    private void drain() throws IOException {
+      if (file == null)
+        return;
+      if (reassembly != null) {
+        int ready = reassembly.blocks().contiguousFrom((int) delivered);
+        if (ready > 0) {
+          reassembly.drainTo(file, ready);
+          delivered += ready;
+          held -= ready;
+        }
+      }
+      if (finOffset >= 0 && delivered == finOffset) {
+        finOffset = -1;
+        file.closeLater(() -> streams.remove(id, this));
+      }
+    }
+
+    void close() {
+      try {
+        if (file != null)
+          file.close();
+      } catch (IOException ex) {
+        System.out.println(ex.getMessage());
+      }
+    }
+  }
+
+  // in-order的payload複製到writer的staging chunk，回傳時receive buffer就可以重用
+  private void writePayload(TCPpacket packet) throws IOException {
+    sink().write(packet.data != null ? ByteBuffer.wrap(packet.data) : packet.payload.duplicate());
+  }
+
+  // in-order的bytes寫到哪裡：壓縮時經過inflater；續傳時先經過ResumableFile（計畫之後才是檔案的資料）
+  private WritableByteChannel sink() {
+    if (resumeFile != null)
+      return resumeFile;
+    if (!compression)
+      return output;
+    if (inflater == null)
+      inflater = new BlockInflater(output, metrics);
+    return inflater;
+  }
+
+  // writer寫完一批（writer thread）：sender看到的視窗快用完、而新的視窗至少是它的兩倍時送window update
+  // （同Linux的規則），sender不用等到persist timer才知道視窗打開了；視窗還很大時等下一個ACK順便帶上
+  private void onOutputDrained() {
+    synchronized (windowLock) {
+      if (!advertised || !syn_rec || outputClosed)
+        return;
+      int ack = getAckNum();
+      long remaining = advertisedEdge - ack;
+      long free = Math.max(0, config.receiveWindow - undeliveredBytes());
+      if (free < 2 * remaining || (ack + free) - advertisedEdge < Math.min(mtu - Sender.HEADER_SIZE, config.receiveWindow / 2))
+        return;
+    }
+    // SACK blocks只由network thread維護，window update不帶SACK
+    sendTCP(new TCPpacket(getSeqNum(), getAckNum(), lastTimestamp, new Boolean[] { false, false, true }, new byte[0]));
+    metrics.windowUpdates.increment();
+  }
+
   public void closeConnection(){
+    outputClosed = true;
     super.closeConnection();
+    // 不取ackLock：timer thread可能持有它並等待handler的monitor
+    TimingWheel.Timeout timeout = delayedAck;
+    if (timeout != null)
+      timeout.cancel();
+    if (inflater != null)
+      inflater.close();
+  }
+
+  // drain剩下的staging、依-fsync force之後關閉：可能要等disk，由TCPHandler在closer thread上呼叫
+  @Override
+  protected void closeFiles() {
+    for (InboundStream stream : streams.values())
+      stream.close();
     try{
-      fileOutputStream.close();
+      if (output != null)
+        output.close();
+      if (resumeFile != null)
+        resumeFile.close();
     }catch(IOException ex){
       System.out.println(ex.getMessage());
     }
+    // sender在FIN上帶的root與寫出時算的root比對：整個檔案（包含沿用的block）的驗證
+    if (resumeFile != null && merkleRoot != null) {
+      System.out.println(resumeFile.verify(merkleRoot)
+          ? "Integrity check passed (Merkle root " + MerkleTree.hex(merkleRoot, 8) + ")" : "Integrity check FAILED");
+    }
   }
 }
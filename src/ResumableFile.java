@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// receiver端的-resume：不截斷已經存在的輸出檔，開始前算出其中完整block的葉子，SYN-ACK報告各subtree的digest
+// sender跳過digest相同的subtree；資料的最前面是PLAN_SIZE bytes的計畫 {檔案長度(64), 跳過的subtree bitmap(32)}，
+// 之後的bytes（壓縮時先經過inflater）依序填進沒有跳過的範圍，每個範圍一個WriteBehindFile（共用channel、positional write）
+// 寫出的同時計算葉子，FIN帶的root與自己的root比對就是整個檔案的驗證，不需要再讀一次
+// write只在network thread上呼叫
+public class ResumableFile implements WritableByteChannel {
+  static final int PLAN_SIZE = 12;
+
+  private final FileChannel channel;
+  private final String fsync;
+  private final ConnectionMetrics metrics;
+  // 已經存在的完整block與它們的葉子
+  private final MerkleTree existing;
+  final int blocks;
+  int shift; // digests()決定，之後的計畫依同樣的分組
+  private final ByteBuffer plan = ByteBuffer.allocate(PLAN_SIZE);
+  private MerkleTree tree;
+  private long[] ranges; // 要收的範圍 start0, end0, start1, end1 ...
+  private int range;
+  private long position;
+  private WriteBehindFile writer;
+  private final CopyOnWriteArrayList<WriteBehindFile> writers = new CopyOnWriteArrayList<>();
+  // 計畫之後的bytes交給誰：壓縮時是inflater（再寫回data()），否則直接是data()
+  WritableByteChannel downstream = data();
+  Runnable onDrain;
+  private boolean open = true;
+
+  ResumableFile(String fileName, String fsync, ConnectionMetrics metrics) throws IOException {
+    this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    this.fsync = fsync;
+    this.metrics = metrics;
+    this.blocks = (int) Math.min(Integer.MAX_VALUE, channel.size() >> MerkleTree.BLOCK_SHIFT);
+    this.existing = new MerkleTree((long) blocks << MerkleTree.BLOCK_SHIFT);
+    existing.hashFile(channel, 0, blocks);
+  }
+
+  // SYN-ACK的manifest：最多maxGroups個subtree digest，block多時每組變大
+  long[] digests(int maxGroups) {
+    shift = MerkleTree.groupShift(blocks, maxGroups);
+    long[] digests = new long[MerkleTree.groups(blocks, shift)];
+    for (int group = 0; group < digests.length; group++)
+      digests[group] = existing.groupDigest(group, shift, blocks);
+    return digests;
+  }
+
+  // 寫出計畫之後的bytes的channel（依檔案位置），inflater的output
+  WritableByteChannel data() {
+    return new WritableByteChannel() {
+      public int write(ByteBuffer src) throws IOException {
+        return writeData(src);
+      }
+
+      public boolean isOpen() {
+        return open;
+      }
+
+      public void close() {
+      }
+    };
+  }
+
+  // 已經收到但還沒寫到檔案的bytes（writer thread也會呼叫）
+  long pendingBytes() {
+    long bytes = plan.position();
+    for (WriteBehindFile file : writers)
+      bytes += file.pendingBytes();
+    return bytes;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    if (tree == null) {
+      while (plan.hasRemaining() && src.hasRemaining())
+        plan.put(src.get());
+      if (plan.hasRemaining())
+        return length;
+      start(plan.getLong(0), plan.getInt(8));
+      plan.clear();
+    }
+    if (src.hasRemaining())
+      downstream.write(src);
+    return length;
+  }
+
+  // 收到計畫：跳過的subtree沿用已經算好的葉子，其餘的範圍依序接收
+  private void start(long fileLength, int skipped) throws IOException {
+    if (fileLength < 0)
+      throw new IOException("corrupt resume plan");
+    tree = new MerkleTree(fileLength);
+    long[] list = new long[2 * (MerkleTree.MAX_GROUPS + 1)];
+    int count = 0;
+    long next = 0;
+    for (int group = 0; group < MerkleTree.groups(blocks, shift); group++) {
+      if ((skipped & (1 << group)) == 0)
+        continue;
+      int from = group << shift;
+      int to = Math.min(blocks, from + (1 << shift));
+      long start = (long) from << MerkleTree.BLOCK_SHIFT;
+      long end = (long) to << MerkleTree.BLOCK_SHIFT;
+      if (end > fileLength)
+        throw new IOException("corrupt resume plan");
+      for (int block = from; block < to; block++)
+        tree.set(block, existing.leaf(block));
+      metrics.resumedBytes.add(end - start);
+      if (start > next) {
+        list[count++] = next;
+        list[count++] = start;
+      }
+      next = end;
+    }
+    if (fileLength > next) {
+      list[count++] = next;
+      list[count++] = fileLength;
+    }
+    ranges = Arrays.copyOf(list, count);
+    range = -2;
+    nextRange();
+  }
+
+  // 換到下一個要收的範圍：前一個範圍的writer寫完之後自己結束（不關閉共用的channel）
+  private void nextRange() {
+    if (writer != null)
+      writer.closeLater(null);
+    range += 2;
+    writer = null;
+    if (range >= ranges.length)
+      return;
+    position = ranges[range];
+    writer = new WriteBehindFile(channel, position, fsync);
+    writer.onDrain = onDrain;
+    writers.add(writer);
+  }
+
+  private int writeData(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    while (src.hasRemaining()) {
+      if (writer == null)
+        throw new IOException("data beyond the end of the file");
+      int n = (int) Math.min(src.remaining(), ranges[range + 1] - position);
+      ByteBuffer part = src.duplicate();
+      part.limit(part.position() + n);
+      src.position(src.position() + n);
+      tree.update(position, part);
+      writer.write(part);
+      position += n;
+      if (position == ranges[range + 1])
+        nextRange();
+    }
+    return length;
+  }
+
+  // sender在FIN上帶的root與收到的資料算出的root比對；還沒收完時回傳false
+  boolean verify(byte[] root) {
+    byte[] own = tree != null ? tree.root() : null;
+    return own != null && Arrays.equals(own, root);
+  }
+
+  byte[] root() {
+    return tree != null ? tree.root() : null;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  // 寫完所有的範圍後關閉檔案；收完整個檔案時截斷到sender的長度（原本的部分檔案可能比較長）
+  @Override
+  public void close() throws IOException {
+    if (!open)
+      return;
+    open = false;
+    try {
+      for (WriteBehindFile file : writers)
+        file.close();
+      if (tree != null && writer == null && channel.size() > tree.length())
+        channel.truncate(tree.length());
+    } finally {
+      channel.close();
+    }
+  }
+}
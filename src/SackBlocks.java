@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+// Receiver端：記錄ackNum之後已經收到的不連續區段，用來產生ACK的SACK option（RFC 2018）
+// 區段依seq遞增排列，相鄰或重疊的區段會合併
+public class SackBlocks {
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int count;
+  private int recentSeq;
+  private boolean hasRecent;
+
+  public int size() {
+    return count;
+  }
+
+  // 加入收到的 [start, end)
+  public void add(int start, int end) {
+    int i = 0;
+    while (i < count && ends[i] - start < 0)
+      i++;
+    int j = i;
+    int mergedStart = start;
+    int mergedEnd = end;
+    while (j < count && starts[j] - end <= 0) {
+      if (starts[j] - mergedStart < 0)
+        mergedStart = starts[j];
+      if (ends[j] - mergedEnd > 0)
+        mergedEnd = ends[j];
+      j++;
+    }
+    int removed = j - i;
+    if (removed == 0) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      System.arraycopy(starts, i, starts, i + 1, count - i);
+      System.arraycopy(ends, i, ends, i + 1, count - i);
+      count += 1;
+    } else if (removed > 1) {
+      System.arraycopy(starts, j, starts, i + 1, count - j);
+      System.arraycopy(ends, j, ends, i + 1, count - j);
+      count -= removed - 1;
+    }
+    starts[i] = mergedStart;
+    ends[i] = mergedEnd;
+    recentSeq = start;
+    hasRecent = true;
+  }
+
+  // [start, end) 是否完整落在某個區段中（binary search）
+  public boolean covers(int start, int end) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (ends[mid] - start < 0) {
+        low = mid + 1;
+      } else if (starts[mid] - start > 0) {
+        high = mid - 1;
+      } else {
+        return end - ends[mid] <= 0;
+      }
+    }
+    return false;
+  }
+
+  // 從seq開始連續收到的bytes數（第一個區段正好從seq開始時）
+  public int contiguousFrom(int seq) {
+    if (count == 0 || starts[0] != seq)
+      return 0;
+    return ends[0] - seq;
+  }
+
+  // ackNum前進：移除已經被cumulative ACK涵蓋的區段
+  public void advance(int ackNum) {
+    int i = 0;
+    while (i < count && ends[i] - ackNum <= 0)
+      i++;
+    if (i > 0) {
+      System.arraycopy(starts, i, starts, 0, count - i);
+      System.arraycopy(ends, i, ends, 0, count - i);
+      count -= i;
+    }
+    if (count > 0 && starts[0] - ackNum < 0)
+      starts[0] = ackNum;
+  }
+
+  public void clear() {
+    count = 0;
+    hasRecent = false;
+  }
+
+  // 把最多max個區段寫進ACK：包含最近收到的包裹的區段放第一個，其餘依seq遞增
+  public void fill(TCPpacket ack, int max) {
+    int n = Math.min(count, max);
+    if (n == 0)
+      return;
+    if (ack.sackBlocks == null || ack.sackBlocks.length < 2 * n)
+      ack.sackBlocks = new int[2 * TCPpacket.MAX_SACK_BLOCKS];
+    int first = -1;
+    if (hasRecent) {
+      for (int i = 0; i < count; i++) {
+        if (recentSeq - starts[i] >= 0 && recentSeq - ends[i] < 0) {
+          first = i;
+          break;
+        }
+      }
+    }
+    int written = 0;
+    if (first >= 0) {
+      ack.sackBlocks[0] = starts[first];
+      ack.sackBlocks[1] = ends[first];
+      written = 1;
+    }
+    for (int i = 0; i < count && written < n; i++) {
+      if (i == first)
+        continue;
+      ack.sackBlocks[2 * written] = starts[i];
+      ack.sackBlocks[2 * written + 1] = ends[i];
+      written++;
+    }
+    ack.sackCount = written;
+  }
+}
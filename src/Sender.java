@@ -1,21 +1,100 @@
 import java.net.InetAddress;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.Math;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
 
 // Sends file to receiver using TCP from base class
 public class Sender extends TCPHandler {
-  private static final int HEADER_SIZE = 52;
+  static final int HEADER_SIZE = 52;
+  // 每次map的檔案範圍；更大的檔案依序重新map
+  static final long MAP_REGION_SIZE = 64L << 20;
+  // 同時在傳送中的stream數上限：其餘的檔案等前面的stream送完再開始
+  static final int MAX_ACTIVE_STREAMS = 16;
+  // 多個檔案時每個檔案是一個stream
+  private final List<String> files;
+  // 還在送的stream，ACK時用來更新各stream在路上的bytes
+  private final ConcurrentHashMap<Integer, SendStream> sendStreams = new ConcurrentHashMap<>();
+  // striped transfer：送出的範圍的CRC32C，在FIN上交給receiver比對
+  private CRC32C rangeChecksum;
+  // -resume：整個檔案的Merkle tree，FIN帶它的root
+  private MerkleTree tree;
   public Sender(int port, InetAddress ip, int remotePort, String fileName, int mtu, int sws){
-    super(port, fileName, mtu, sws);
+    this(port, ip, remotePort, fileName, mtu, sws, new TCPConfig());
+  }
+
+  public Sender(int port, InetAddress ip, int remotePort, String fileName, int mtu, int sws, TCPConfig config){
+    super(port, fileName, mtu, sws, config);
     this.remoteIP = ip;
     this.remotePort = remotePort;
+    // 讓receiver端的ConnectionListener可以區分同一個address:port上的不同連線
+    while (this.connectionId == 0)
+      this.connectionId = ThreadLocalRandom.current().nextInt();
+    this.files = listFiles(fileName);
+    this.multiStream = files.size() > 1 || new File(fileName).isDirectory();
+  }
+
+  // -f 可以是一個檔案、以逗號分隔的多個檔案，或一個目錄（其中所有的一般檔案）
+  static List<String> listFiles(String fileName) {
+    List<String> files = new ArrayList<>();
+    File dir = new File(fileName);
+    if (dir.isDirectory()) {
+      File[] entries = dir.listFiles(File::isFile);
+      if (entries != null) {
+        Arrays.sort(entries);
+        for (File entry : entries)
+          files.add(entry.getPath());
+      }
+      return files;
+    }
+    for (String name : fileName.split(","))
+      if (!name.isEmpty())
+        files.add(name);
+    return files;
+  }
+
+  // 只送檔案的[offset, offset + length)：在start()之前呼叫（StripedTransfer）
+  void stripe(long offset, long length) {
+    this.stripeOffset = offset;
+    this.stripeLength = length;
+    this.rangeChecksum = new CRC32C();
+  }
+
+  // -fastopen且有receiver的cookie：SYN帶檔案最前面的bytes（一般的單一檔案傳送），填滿options之後剩下的空間
+  @Override
+  byte[] synPayload() {
+    if (fastOpenCookie == 0 || multiStream || stripeOffset >= 0 || requestsResume() || config.compress > 0
+        || TCPConfig.READ_STREAM.equals(config.readMode))
+      return new byte[0];
+    TCPpacket syn = new TCPpacket(getSeqNum(), getAckNum(), 0, new Boolean[] { true, false, false }, new byte[0]);
+    addOptions(syn);
+    int room = mtu - HEADER_SIZE - syn.optionsLength();
+    try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min(room, file.size())));
+      while (data.hasRemaining() && file.read(data, data.position()) > 0) {
+      }
+      return Arrays.copyOf(data.array(), data.position());
+    } catch (IOException e) {
+      return new byte[0]; // handshake之後的傳送會回報錯誤
+    }
   }
 
-  //wait for establishing connection
+  //wait for establishing connection：等handshake的future，不busy-spin
   private void establishConnection() {
-    while (!established);
+    established.join();
   }
 
   public void startFileTransmission(){
@@ -23,31 +102,21 @@ public class Sender extends TCPHandler {
     if(!running())
       return;
 
-    FileInputStream file_stream = null;
-    
-    try{
-      file_stream = new FileInputStream(fileName);
-    }catch(FileNotFoundException ex){
-      System.out.println(ex.getMessage());
-    }
-
-    try{
-      while(true){
-        assert file_stream != null;
-        if (!(file_stream.available() > 0))
-          break;
-        timerManager.waitForMoreBufferSpace(sws-1);
-        byte[] data = new byte [Math.min(this.mtu - HEADER_SIZE, file_stream.available())];
-        int numread = file_stream.read(data, 0, data.length);
-        if(!running())
-          return;
-        dataTransferred += numread;
-        Boolean[] tcpFlags = {false, false, false};
-        sendTCP(data, tcpFlags);
-      }
-
-      file_stream.close();
-    }catch(IOException ex){
+    try {
+      if (multiStream && streamsRefused)
+        System.out.println("Receiver does not support multiple streams");
+      else if (stripeRefused)
+        System.out.println("Receiver does not support striped transfer");
+      else if (multiStream)
+        sendStreams();
+      else if (compression)
+        sendCompressed();
+      else if (stripeOffset < 0 && !resume && TCPConfig.READ_STREAM.equals(config.readMode))
+        sendStream();
+      else
+        sendMapped();
+      timerManager.markAppLimited();
+    } catch (IOException ex) {
       System.out.println(ex.getMessage());
     }
 
@@ -56,10 +125,347 @@ public class Sender extends TCPHandler {
       return;
 
     initiatedClose = true;
+    if (rangeChecksum != null)
+      stripeChecksum = rangeChecksum.getValue();
+    if (tree != null)
+      merkleRoot = tree.root();
     //sendFIN 送出第一包ＦＩＮ
     this.sendTCP(new byte[0], new Boolean[] { false, true, false }); // { - F - }
   }
 
+  // 等到sws、cwnd、對方視窗與pacing都允許送出length bytes
+  private void awaitSendSlot(int length) {
+    timerManager.waitForSendWindow(sws, length, getSeqNum());
+    if (running())
+      pacer.await(length, congestion.getPacingRate());
+  }
+
+  // batch版本：回傳現在可以一起送出的segment數（最多maxSegments）
+  // 有pacing時一批最多約1ms的量（同Linux的TSO autosizing），整批一起等pacing
+  private int awaitSendSlots(int length, int maxSegments) {
+    int mss = this.mtu - HEADER_SIZE;
+    long rate = congestion.getPacingRate();
+    if (rate > 0)
+      maxSegments = (int) Math.min(maxSegments, Math.max(2, rate / 1000 / mss));
+    int count = timerManager.waitForSendWindow(sws, length, getSeqNum(), Math.max(1, maxSegments));
+    if (running())
+      pacer.await(length + (count - 1) * mss, rate);
+    return count;
+  }
+
+  // 檔案分段map進來，每個segment是mapping的slice：不用每個segment配置byte[]，
+  // 在路上的包裹只保留view，重送時從mapping重新讀取（page cache），heap上不留副本
+  // striped transfer時只map自己的範圍，第一次送出時順便計算範圍的CRC32C
+  // FEC時segment帶FEC option，payload少FEC_OPTION_LENGTH；CRC32C時再少CRC32C_OPTION_LENGTH
+  private void sendMapped() throws IOException {
+    try (MappedSource source = openSource()) {
+      int mss = this.mtu - HEADER_SIZE - (fec != null ? TCPpacket.FEC_OPTION_LENGTH : 0) - checksumOptionLength();
+      TCPpacket[] batch = new TCPpacket[Math.max(1, config.sendBatch)];
+      while (source.remaining() > 0) {
+        int count = awaitSendSlots((int) Math.min(mss, source.remaining()),
+            (int) Math.min(batch.length, (source.remaining() + mss - 1) / mss));
+        if (!running())
+          return;
+        for (int i = 0; i < count; i++) {
+          ByteBuffer slice = source.next(mss);
+          if (rangeChecksum != null)
+            rangeChecksum.update(slice.duplicate());
+          batch[i] = dataSegment(slice);
+          metrics.bytesTransferred.add(batch[i].getDataLength());
+        }
+        sendSegments(batch, count);
+      }
+      flushParity();
+    }
+  }
+
+  // striped transfer只map自己的範圍；-resume時先送出計畫；SYN data被接受時跳過那些bytes
+  private MappedSource openSource() throws IOException {
+    MappedSource source = stripeOffset >= 0 ? new MappedSource(fileName, stripeOffset, stripeLength)
+        : new MappedSource(fileName);
+    if (synDataAccepted)
+      source.skip(0, synDataLength);
+    if (resume) {
+      try {
+        sendResumePlan(source);
+      } catch (IOException | RuntimeException e) {
+        source.close();
+        throw e;
+      }
+    }
+    return source;
+  }
+
+  // -resume：receiver在SYN-ACK上報告了部分檔案中各subtree的digest，相同的subtree不送
+  // 比對時平行算出的葉子留在tree中，傳送時只計算其餘的block；計畫是資料最前面的ResumableFile.PLAN_SIZE bytes
+  private void sendResumePlan(MappedSource source) throws IOException {
+    tree = new MerkleTree(source.size());
+    int comparable = (int) Math.min(resumeBlocks, source.size() >> MerkleTree.BLOCK_SHIFT);
+    tree.hashFile(source.channel(), 0, comparable);
+    int skipped = 0;
+    for (int group = 0; group < resumeDigests.length; group++) {
+      int from = group << resumeShift;
+      int to = Math.min(resumeBlocks, from + (1 << resumeShift));
+      if (to > comparable)
+        break; // 部分檔案比這個檔案長：之後的subtree不可能相同
+      if (tree.groupDigest(group, resumeShift, resumeBlocks) != resumeDigests[group])
+        continue;
+      skipped |= 1 << group;
+      source.skip((long) from << MerkleTree.BLOCK_SHIFT, (long) to << MerkleTree.BLOCK_SHIFT);
+      metrics.resumedBytes.add((long) (to - from) << MerkleTree.BLOCK_SHIFT);
+    }
+    source.tree = tree;
+    ByteBuffer plan = ByteBuffer.allocate(ResumableFile.PLAN_SIZE).putLong(source.size()).putInt(skipped).flip();
+    awaitSendSlots(plan.remaining(), 1);
+    if (!running())
+      return;
+    metrics.bytesTransferred.add(plan.remaining());
+    sendSegments(new TCPpacket[] { dataSegment(plan) }, 1);
+  }
+
+  // 壓縮：與sendMapped相同，但segment從BlockDeflater壓縮後的block串切出
+  private void sendCompressed() throws IOException {
+    try (MappedSource source = openSource();
+        BlockDeflater blocks = new BlockDeflater(source, config.compress, rangeChecksum, metrics)) {
+      int mss = this.mtu - HEADER_SIZE - (fec != null ? TCPpacket.FEC_OPTION_LENGTH : 0) - checksumOptionLength();
+      TCPpacket[] batch = new TCPpacket[Math.max(1, config.sendBatch)];
+      while (blocks.hasRemaining()) {
+        int count = awaitSendSlots(mss, batch.length);
+        if (!running())
+          return;
+        int n = 0;
+        while (n < count && blocks.hasRemaining()) {
+          batch[n] = dataSegment(blocks.next(mss));
+          metrics.bytesTransferred.add(batch[n].getDataLength());
+          n++;
+        }
+        sendSegments(batch, n);
+      }
+      flushParity();
+    }
+  }
+
+  // 多個檔案：每個檔案一個stream，輪流從各個stream取segment（round robin），共用連線的擁塞控制與視窗
+  // 每個stream在路上的bytes不超過config.streamWindow，一個stream的遺失或大檔案不會佔滿整個連線
+  private void sendStreams() throws IOException {
+    ArrayDeque<String> waiting = new ArrayDeque<>(files);
+    ArrayDeque<SendStream> active = new ArrayDeque<>();
+    int mss = this.mtu - HEADER_SIZE - TCPpacket.STREAM_OPTION_LENGTH - checksumOptionLength();
+    TCPpacket[] batch = new TCPpacket[Math.max(1, config.sendBatch)];
+    int nextId = 1;
+    streamsNum = files.size();
+    try {
+      while (!waiting.isEmpty() || !active.isEmpty()) {
+        while (active.size() < MAX_ACTIVE_STREAMS && !waiting.isEmpty()) {
+          SendStream stream = new SendStream(nextId++, waiting.poll());
+          sendStreams.put(stream.id, stream);
+          active.add(stream);
+        }
+        int count = awaitSendSlots(mss, batch.length);
+        if (!running())
+          return;
+        // 輪流從每個stream取一個segment；stream window滿了的stream跳過，連續跳過所有stream時停止
+        // 沒有任何bytes在路上的stream一定可以送一個segment（同TCP在視窗小於一個segment時），不會所有stream都送不出去
+        int n = 0;
+        int skipped = 0;
+        while (n < count && !active.isEmpty() && skipped < active.size()) {
+          SendStream stream = active.poll();
+          if (stream.inFlight() > 0 && stream.inFlight() + mss > config.streamWindow) {
+            active.add(stream);
+            skipped += 1;
+            continue;
+          }
+          skipped = 0;
+          TCPpacket segment = stream.next(mss);
+          if ((segment.streamFlags & TCPpacket.STREAM_OPEN) == 0)
+            metrics.bytesTransferred.add(segment.getDataLength());
+          batch[n++] = segment;
+          if (stream.done()) {
+            stream.close();
+            sendStreams.remove(stream.id, stream);
+          } else {
+            active.add(stream);
+          }
+        }
+        if (n > 0) {
+          sendSegments(batch, n);
+        } else {
+          // 所有stream都被自己的window擋住：等任何一個包裹被ACK
+          int outstanding = timerManager.outstandingPackets();
+          if (outstanding > 0)
+            timerManager.waitForMoreBufferSpace(outstanding - 1);
+        }
+      }
+    } finally {
+      for (SendStream stream : active)
+        stream.close();
+    }
+  }
+
+  private static TCPpacket dataSegment(ByteBuffer payload) {
+    TCPpacket segment = new TCPpacket(0, 0, 0, new Boolean[] { false, false, false }, null);
+    segment.payload = payload;
+    return segment;
+  }
+
+  // stream的segment被確認：在TimerManager的lock中呼叫；已經送完的stream不再需要計算
+  void onSegmentAcked(TCPpacket tcpPacket) {
+    if (tcpPacket.streamId < 0)
+      return;
+    SendStream stream = sendStreams.get(tcpPacket.streamId);
+    if (stream != null)
+      stream.acked(tcpPacket.getDataLength());
+  }
+
+  // 以64 MB為單位map的唯讀檔案，依序切出segment
+  // -resume：skip的範圍不切出（receiver已經有），切出的bytes順便算進Merkle tree的葉子
+  static final class MappedSource implements AutoCloseable {
+    private final FileChannel channel;
+    private final long size;
+    private long position;
+    private long regionStart;
+    private MappedByteBuffer region;
+    private final ArrayDeque<long[]> skips = new ArrayDeque<>();
+    private long skipped; // skips中還沒經過的bytes
+    MerkleTree tree;
+
+    MappedSource(String fileName) throws IOException {
+      this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+      this.size = channel.size();
+    }
+
+    // 只讀[offset, offset + length)
+    MappedSource(String fileName, long offset, long length) throws IOException {
+      this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+      this.size = Math.min(channel.size(), offset + length);
+      this.position = Math.min(offset, size);
+    }
+
+    long remaining() {
+      return size - position - skipped;
+    }
+
+    long position() {
+      return position;
+    }
+
+    long size() {
+      return size;
+    }
+
+    FileChannel channel() {
+      return channel;
+    }
+
+    // 不送[start, end)：依檔案位置的順序加入，在開始切segment之前呼叫
+    void skip(long start, long end) {
+      skips.add(new long[] { start, end });
+      skipped += end - start;
+    }
+
+    ByteBuffer next(int mss) throws IOException {
+      while (!skips.isEmpty() && skips.peek()[0] <= position) {
+        long[] skip = skips.poll();
+        skipped -= skip[1] - skip[0];
+        position = Math.max(position, skip[1]);
+      }
+      long end = skips.isEmpty() ? size : skips.peek()[0];
+      int length = (int) Math.min(mss, end - position);
+      if (region == null || position + length - regionStart > region.capacity()) {
+        // 舊的region在它的包裹都被ACK、view被GC之後才會unmap
+        regionStart = position;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(MAP_REGION_SIZE, size - regionStart));
+      }
+      ByteBuffer slice = region.slice((int) (position - regionStart), length);
+      if (tree != null)
+        tree.update(position, slice);
+      position += length;
+      return slice;
+    }
+
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  // 一個檔案的stream：第一個segment是OPEN（payload為檔名），最後一個segment帶FIN
+  private static final class SendStream {
+    final int id;
+    final String name;
+    final MappedSource source;
+    boolean opened;
+    private boolean finished;
+    private long inFlight; // sender thread送出時增加，TimerManager確認時減少
+
+    SendStream(int id, String fileName) throws IOException {
+      this.id = id;
+      this.name = new File(fileName).getName();
+      this.source = new MappedSource(fileName);
+    }
+
+    TCPpacket next(int mss) throws IOException {
+      TCPpacket segment;
+      if (!opened) {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        segment = dataSegment(ByteBuffer.wrap(encodedName, 0, Math.min(encodedName.length, mss)));
+        segment.streamOffset = 0;
+        segment.streamFlags = TCPpacket.STREAM_OPEN;
+        opened = true;
+      } else {
+        long offset = source.position();
+        segment = dataSegment(source.next(mss));
+        segment.streamOffset = offset;
+      }
+      segment.streamId = id;
+      if (source.remaining() == 0 && (segment.streamFlags != TCPpacket.STREAM_OPEN || source.size == 0)) {
+        segment.streamFlags |= TCPpacket.STREAM_FIN;
+        finished = true;
+      }
+      synchronized (this) {
+        inFlight += segment.getDataLength();
+      }
+      return segment;
+    }
+
+    boolean done() {
+      return finished;
+    }
+
+    synchronized long inFlight() {
+      return inFlight;
+    }
+
+    synchronized void acked(int bytes) {
+      inFlight -= bytes;
+    }
+
+    void close() {
+      try {
+        source.close();
+      } catch (IOException e) {
+        System.out.println(e.getMessage());
+      }
+    }
+  }
+
+  // 舊的讀法：每個segment讀進一個新的byte[]
+  private void sendStream() throws IOException {
+    try (FileInputStream file_stream = new FileInputStream(fileName)) {
+      long remaining = file_stream.getChannel().size();
+      while (remaining > 0) {
+        int length = (int) Math.min(this.mtu - HEADER_SIZE, remaining);
+        awaitSendSlot(length);
+        byte[] data = new byte[length];
+        int numread = file_stream.readNBytes(data, 0, length);
+        if (!running() || numread < length)
+          return;
+        metrics.bytesTransferred.add(numread);
+        sendTCP(data, new Boolean[] { false, false, false });
+        remaining -= numread;
+      }
+    }
+  }
+
   public void handlePacket(TCPpacket packet){
 
   }
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// -fastopen：同一個peer（address:port）的連線之間沿用的參數，類似Linux的tcp_metrics與TCP Fast Open的cookie cache
+// sender在TIME_WAIT開始時記下RTT、cwnd/ssthresh與對方的視窗，下一條連線以它們作為RTO與cwnd的初始值；
+// receiver在SYN-ACK上發的cookie也記在這裡，之後的SYN直接帶檔案的第一個segment
+// receiver端的cookie是peer address的HMAC（secret每個process一個），不需要記錄發過哪些cookie
+// -session <file>：從檔案載入，每次更新時寫回（包含receiver的secret），每次重新啟動的TCPend也能沿用
+public class SessionCache {
+  static final long EXPIRY_MILLIS = 60 * 60 * 1000L; // 同Linux tcp_metrics：一小時
+  static final int MAX_ENTRIES = 1024;
+  private static final String SECRET_KEY = "secret";
+  private static final SessionCache SHARED = new SessionCache();
+
+  static final class Entry {
+    long cookie;                   // 0 = 沒有cookie
+    long srtt;                     // ns，0 = 沒有RTT
+    long rttvar;
+    long cwnd;                     // 0 = 沒有
+    long ssthresh = Long.MAX_VALUE;
+    long window;                   // 對方最後通告的視窗（bytes），0 = 不知道
+    long updated;                  // System.currentTimeMillis()
+
+    Entry copy() {
+      Entry entry = new Entry();
+      entry.cookie = cookie;
+      entry.srtt = srtt;
+      entry.rttvar = rttvar;
+      entry.cwnd = cwnd;
+      entry.ssthresh = ssthresh;
+      entry.window = window;
+      entry.updated = updated;
+      return entry;
+    }
+  }
+
+  // access order：超過MAX_ENTRIES時丟掉最久沒用的
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private byte[] secret;
+  private Path file;
+
+  static SessionCache shared() {
+    return SHARED;
+  }
+
+  private static String key(InetSocketAddress peer) {
+    return peer.getAddress().getHostAddress() + ":" + peer.getPort();
+  }
+
+  // -session：第一次指定時載入；讀不到（例如還不存在）時從空的開始
+  synchronized void open(String path) {
+    Path target = Paths.get(path).toAbsolutePath();
+    if (target.equals(file))
+      return;
+    file = target;
+    if (!Files.isRegularFile(file))
+      return;
+    Properties saved = new Properties();
+    try (Reader reader = Files.newBufferedReader(file)) {
+      saved.load(reader);
+    } catch (IOException e) {
+      System.out.println("debug: session cache could not be read: " + e.getMessage());
+      return;
+    }
+    for (String name : saved.stringPropertyNames()) {
+      String value = saved.getProperty(name);
+      try {
+        if (SECRET_KEY.equals(name)) {
+          secret = HexFormat.of().parseHex(value);
+          continue;
+        }
+        String[] fields = value.split(",");
+        Entry entry = new Entry();
+        entry.cookie = Long.parseUnsignedLong(fields[0], 16);
+        entry.srtt = Long.parseLong(fields[1]);
+        entry.rttvar = Long.parseLong(fields[2]);
+        entry.cwnd = Long.parseLong(fields[3]);
+        entry.ssthresh = Long.parseLong(fields[4]);
+        entry.window = Long.parseLong(fields[5]);
+        entry.updated = Long.parseLong(fields[6]);
+        entries.put(name, entry);
+      } catch (RuntimeException e) {
+        // 格式不對的項目略過
+      }
+    }
+  }
+
+  // 還沒過期的參數（副本），沒有時回傳null
+  synchronized Entry get(InetSocketAddress peer) {
+    Entry entry = entries.get(key(peer));
+    if (entry == null)
+      return null;
+    if (System.currentTimeMillis() - entry.updated > EXPIRY_MILLIS) {
+      entries.remove(key(peer));
+      return null;
+    }
+    return entry.copy();
+  }
+
+  synchronized void putCookie(InetSocketAddress peer, long cookie) {
+    Entry entry = entries.computeIfAbsent(key(peer), k -> new Entry());
+    entry.cookie = cookie;
+    entry.updated = System.currentTimeMillis();
+    save();
+  }
+
+  // 連線結束時的參數；cookie沿用已經記下的
+  synchronized void putParameters(InetSocketAddress peer, long srtt, long rttvar, long cwnd, long ssthresh, long window) {
+    Entry entry = entries.computeIfAbsent(key(peer), k -> new Entry());
+    entry.srtt = srtt;
+    entry.rttvar = rttvar;
+    entry.cwnd = cwnd;
+    entry.ssthresh = ssthresh;
+    entry.window = window;
+    entry.updated = System.currentTimeMillis();
+    save();
+  }
+
+  // receiver：發給peer的cookie，address的HMAC-SHA256前8 bytes（不會是0）
+  synchronized long cookie(InetAddress peer) {
+    if (secret == null) {
+      secret = new byte[32];
+      new SecureRandom().nextBytes(secret);
+      save();
+    }
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+      long cookie = ByteBuffer.wrap(mac.doFinal(peer.getAddress())).getLong();
+      return cookie != 0 ? cookie : 1;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e); // 每個JDK都有HmacSHA256
+    }
+  }
+
+  // 寫到暫存檔再換掉，其他process讀到的不會是寫到一半的檔案
+  private void save() {
+    if (file == null)
+      return;
+    Properties saved = new Properties();
+    if (secret != null)
+      saved.setProperty(SECRET_KEY, HexFormat.of().formatHex(secret));
+    for (Map.Entry<String, Entry> item : entries.entrySet()) {
+      Entry entry = item.getValue();
+      saved.setProperty(item.getKey(), Long.toHexString(entry.cookie) + "," + entry.srtt + "," + entry.rttvar + ","
+          + entry.cwnd + "," + entry.ssthresh + "," + entry.window + "," + entry.updated);
+    }
+    try {
+      Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".session", ".tmp");
+      try (Writer writer = Files.newBufferedWriter(temp)) {
+        saved.store(writer, "TCPend session cache");
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("debug: session cache could not be written: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+// 原本的blocking DatagramSocket路徑
+public class SocketTransport implements DatagramTransport {
+  private final DatagramSocket socket;
+  private final byte[] receiveData;
+  private final ByteBuffer receiveBuffer;
+  private final DatagramPacket receivedDatagram;
+  private byte[] sendScratch;
+
+  public SocketTransport(int port, int mtu) throws SocketException {
+    this.socket = new DatagramSocket(port);
+    this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+    this.receiveData = new byte[mtu];
+    this.receiveBuffer = ByteBuffer.wrap(receiveData);
+    this.receivedDatagram = new DatagramPacket(receiveData, receiveData.length);
+  }
+
+  public void connect(InetSocketAddress remote) throws SocketException {
+    socket.connect(remote);
+  }
+
+  public boolean isConnected() {
+    return socket.isConnected();
+  }
+
+  // blocking socket：send buffer滿時kernel會等，不會有local drop
+  public synchronized boolean send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+    int length = datagram.remaining();
+    DatagramPacket packet;
+    if (datagram.hasArray()) {
+      packet = new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(), length, target);
+    } else {
+      if (sendScratch == null || sendScratch.length < length)
+        sendScratch = new byte[length];
+      datagram.duplicate().get(sendScratch, 0, length);
+      packet = new DatagramPacket(sendScratch, 0, length, target);
+    }
+    socket.send(packet);
+    return true;
+  }
+
+  // 整批只取一次monitor，其他thread的ACK/重送不會插進一個batch中間
+  public synchronized int send(ByteBuffer[] datagrams, int count, InetSocketAddress target) throws IOException {
+    for (int i = 0; i < count; i++)
+      send(datagrams[i], target);
+    return count;
+  }
+
+  public int receive(Handler handler) throws IOException {
+    receivedDatagram.setLength(receiveData.length);
+    socket.receive(receivedDatagram);
+    receiveBuffer.limit(receivedDatagram.getLength()).position(0);
+    handler.onDatagram(receiveBuffer, (InetSocketAddress) receivedDatagram.getSocketAddress());
+    return 1;
+  }
+
+  public boolean prefersDirectBuffers() {
+    return false;
+  }
+
+  public void close() {
+    socket.close();
+  }
+}
@@ -0,0 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.zip.CRC32C;
+
+// 一個大檔案切成N個連續的範圍，每個範圍一條獨立的連線（自己的port、transport、sender thread與receive loop），
+// 傳輸不再受單一sender thread與單一receive loop的限制
+// sender的第i條連線從port + i連到remotePort + i；receiver在port + i等第i條連線，
+// 各自用positional write把範圍寫進同一個輸出檔，全部結束後讀回每個範圍比對sender在FIN上帶的CRC32C
+public class StripedTransfer {
+  private StripedTransfer() {
+  }
+
+  // 每條連線的範圍大小：對齊WriteBehindFile的chunk，各條連線的寫入不會落在同一個chunk上
+  static long stripeSize(long fileSize, int stripes) {
+    long size = (fileSize + stripes - 1) / stripes;
+    return (size + WriteBehindFile.CHUNK_SIZE - 1) / WriteBehindFile.CHUNK_SIZE * WriteBehindFile.CHUNK_SIZE;
+  }
+
+  public static void send(int port, InetAddress remoteIP, int remotePort, String fileName, int mtu, int sws,
+      TCPConfig config) {
+    File file = new File(fileName);
+    if (!file.isFile()) {
+      System.out.println("Striped transfer needs a single file: " + fileName);
+      return;
+    }
+    int stripes = config.stripes;
+    long fileSize = file.length();
+    long range = stripeSize(fileSize, stripes);
+    Sender[] senders = new Sender[stripes];
+    Thread[] transmissions = new Thread[stripes];
+    long start = System.nanoTime();
+    for (int i = 0; i < stripes; i++) {
+      long offset = Math.min(fileSize, i * range);
+      Sender sender = new Sender(port + i, remoteIP, remotePort + i, fileName, mtu, sws, config);
+      sender.stripe(offset, Math.min(range, fileSize - offset));
+      sender.start();
+      senders[i] = sender;
+      transmissions[i] = new Thread(sender::startFileTransmission, "stripe-" + i);
+      transmissions[i].start();
+    }
+    try {
+      // startFileTransmission在所有資料被ACK之後才送FIN
+      for (Thread transmission : transmissions)
+        transmission.join();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      for (Sender sender : senders)
+        sender.join();
+      DecimalFormat df = new DecimalFormat("0.0");
+      System.out.println("Striped transfer: " + stripes + " connections, " + fileSize + " bytes, throughput: "
+          + df.format(fileSize / 1048576.0 / seconds) + " MB/s");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static void receive(int port, int mtu, int sws, String fileName, TCPConfig config) {
+    int stripes = config.stripes;
+    try (FileChannel output = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      Receiver[] receivers = new Receiver[stripes];
+      for (int i = 0; i < stripes; i++) {
+        receivers[i] = new Receiver(port + i, mtu, sws, fileName, config);
+        receivers[i].stripeOutput = output;
+        receivers[i].start();
+      }
+      // Receiver的thread在連線關閉（output寫完）之後結束
+      for (Receiver receiver : receivers)
+        receiver.join();
+      System.out.println(verify(output, receivers) ? "Integrity check passed" : "Integrity check FAILED");
+    } catch (IOException e) {
+      System.out.println(e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // 讀回每條連線寫的範圍，與sender在FIN上帶的CRC32C及範圍長度比對
+  private static boolean verify(FileChannel output, Receiver[] receivers) throws IOException {
+    boolean passed = true;
+    for (int i = 0; i < receivers.length; i++) {
+      Receiver receiver = receivers[i];
+      if (receiver.stripeOffset < 0 || receiver.stripeChecksum < 0) {
+        System.out.println("Stripe " + i + ": no checksum received");
+        passed = false;
+        continue;
+      }
+      long checksum = checksum(output, receiver.stripeOffset, receiver.stripeLength);
+      // 壓縮時收到的是壓縮後的bytes：比對解開後寫出的長度
+      long written = receiver.compression ? receiver.metrics.rawBytes.sum() : receiver.metrics.bytesTransferred.sum();
+      boolean match = checksum == receiver.stripeChecksum && written == receiver.stripeLength;
+      System.out.println("Stripe " + i + ": offset " + receiver.stripeOffset + " length " + receiver.stripeLength
+          + " crc32c " + Long.toHexString(checksum) + (match ? " OK" : " MISMATCH"));
+      passed &= match;
+    }
+    return passed;
+  }
+
+  private static long checksum(FileChannel channel, long offset, long length) throws IOException {
+    CRC32C crc = new CRC32C();
+    long end = Math.min(offset + length, channel.size());
+    for (long position = offset; position < end; position += Sender.MAP_REGION_SIZE) {
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.min(Sender.MAP_REGION_SIZE, end - position));
+      crc.update(region);
+    }
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,73 @@
+// 連線可調整的參數（由TCPend的命令列選項設定）
+public class TCPConfig {
+  public static final String ENGINE_SOCKET = "socket";
+  public static final String ENGINE_NIO = "nio";
+  public static final String ENGINE_MMSG = "mmsg";
+  public static final String READ_MMAP = "mmap";
+  public static final String READ_STREAM = "stream";
+  public static final String FSYNC_NONE = "none";
+  public static final String FSYNC_CLOSE = "close";
+  public static final String FSYNC_ALWAYS = "always";
+  public static final int FEC_OFF = 0;
+  public static final int FEC_AUTO = -1;
+  public static final String CHECKSUM_ONES = "ones";
+  public static final String CHECKSUM_CRC32C = "crc32c";
+
+  // 傳輸engine：socket（blocking DatagramSocket）、nio（DatagramChannel + Selector）或 mmsg（nio + 一批datagram用sendmmsg送出）
+  public String engine = ENGINE_SOCKET;
+  // receiver：同一個port接受多個連線，-f 視為輸出目錄
+  public boolean listen = false;
+  // 擁塞控制演算法：none | newreno | cubic | bbr
+  public String congestionControl = CongestionController.NEWRENO;
+  // 是否使用SACK（雙方的SYN都帶SACK-permitted才會啟用）
+  public boolean sack = true;
+  // receiver緩衝區大小（bytes）：通告給sender的視窗上限，也是receiver端暫存資料的上限
+  public int receiveWindow = 4 << 20;
+  // sender讀檔方式：mmap（segment是檔案mapping的slice，重送時重新從mapping讀）或 stream（每個segment一個byte[]）
+  public String readMode = READ_MMAP;
+  // receiver輸出檔的fsync：none（交給OS）、close（關閉前force一次）或 always（writer每寫一批就force）
+  public String fsync = FSYNC_NONE;
+  // delayed ACK：receiver每ackEvery個in-order包裹ACK一次（1 = 每個都ACK），最多延遲ackDelay毫秒（遠小於最小的RTO）
+  public int ackEvery = 2;
+  public int ackDelay = 10;
+  // sender一次最多送出幾個segment（batch send）；1 = 每個segment各自送出
+  public int sendBatch = 16;
+  // 多個stream時每個stream在路上最多的bytes（per-stream flow control），其餘的視窗留給其他stream
+  public int streamWindow = 1 << 20;
+  // striped transfer：一個檔案分成幾個範圍，各自用一條連線（port、port + 1 ...）平行傳送；1 = 不分
+  public int stripes = 1;
+  // 每個包裹一行的log：text（直接印出）、off（不記錄）或 ring（binary record交給背景thread印出）
+  public String trace = PacketTrace.TEXT;
+  // 每隔幾毫秒印出所有連線的metrics snapshot；0 = 不印（JMX隨時可以讀）
+  public int metricsInterval = 0;
+  // sender的FEC：每幾個資料segment送一個XOR parity segment；FEC_OFF、FEC_AUTO（依遺失率調整）或固定的group大小
+  // 雙方的SYN都帶OPT_FEC_PERMITTED才會啟用，多個stream的連線不使用
+  public int fec = FEC_OFF;
+  // sender的壓縮：Deflater的level（1 = 最快），0 = 不壓縮；receiver在SYN-ACK上echo才會使用，多個stream的連線不使用
+  public int compress = 0;
+  // 續傳：receiver不截斷已經存在的輸出檔，sender跳過其中已經正確的block，FIN帶Merkle root驗證整個檔案
+  // 兩端都要指定；多個stream與striped transfer不使用
+  public boolean resume = false;
+  // 包裹的checksum：ones（header中16-bit的ones'-complement sum）或 crc32c（每個包裹帶32-bit CRC32C的option）
+  // 主動連線的一端在SYN上要求，receiver一律接受；只有一端指定時也會使用
+  public String checksum = CHECKSUM_ONES;
+  // 快速建立連線（sender）：要求receiver的cookie，之後連到同一個peer時SYN直接帶檔案的第一個segment，
+  // 並沿用上一條連線的RTT與cwnd（SessionCache）；receiver一律發cookie、接受cookie正確的SYN data
+  public boolean fastOpen = false;
+  // SessionCache的檔案，每次啟動都能沿用（receiver的cookie secret也存在這裡）；null = 只在process內
+  public String session;
+  // binary trace檔（TraceRecorder）；null = 不記錄
+  public String record;
+
+  // 模擬的網路條件（EmulatedTransport）：只影響這個endpoint送出的datagram；null = 直接使用engine
+  public NetworkConditions network;
+
+  DatagramTransport openTransport(int port, int mtu) throws java.io.IOException {
+    DatagramTransport transport;
+    if (ENGINE_NIO.equals(engine) || ENGINE_MMSG.equals(engine))
+      transport = new ChannelTransport(port, mtu, ENGINE_MMSG.equals(engine));
+    else
+      transport = new SocketTransport(port, mtu);
+    return network == null ? transport : new EmulatedTransport(transport, network, port, mtu);
+  }
+}
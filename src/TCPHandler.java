@@ -1,17 +1,33 @@
 import java.net.InetAddress;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Sender and receiver 共同的功能
-public abstract class TCPHandler extends Thread {
+// 連線不是thread：nio engine的接收由共用的EventLoop驅動，timer與TIME_WAIT都在共用的TimingWheel上
+public abstract class TCPHandler {
   protected static final boolean DE_BUG = false;
+  // endThread可能在共用的EventLoop或TimingWheel上被呼叫：關閉輸出檔（drain、fsync）在這裡做，不卡住其他連線
+  private static final ExecutorService CLOSERS = Executors.newCachedThreadPool(task -> {
+    Thread thread = new Thread(task, "connection-close");
+    thread.setDaemon(true);
+    return thread;
+  });
   // Host 需用用來管理packet的資訊
-  DatagramSocket socket;
+  DatagramTransport transport;
+  // 多個連線共用同一個transport時（ConnectionListener），由listener負責關閉transport
+  boolean ownsTransport = true;
+  Runnable onClose;
+  int connectionId;
+  TCPConfig config;
   InetAddress remoteIP;
   int remotePort;
+  private volatile InetSocketAddress remoteAddress;
   String fileName;
   int mtu;
   int sws;
@@ -22,22 +38,66 @@ public abstract class TCPHandler extends Thread {
   long startTime;
 
   // Flag用來控制thread＝＝＝＝＝＝＝＝＝＝＝＝
-  private boolean needToStop = false;
-  volatile boolean established = false;
+  // volatile：TimerManager在持有packetBuffer時也會讀（不能取handler的lock）
+  private volatile boolean needToStop = false;
+  // handshake完成（sender收到SYN-ACK）或連線在handshake前結束時完成
+  final CompletableFuture<Void> established = new CompletableFuture<>();
+  // endThread之後、檔案關閉並印出統計時完成
+  final CompletableFuture<Void> closed = new CompletableFuture<>();
+  private boolean closing;
   boolean initiatedClose;
   boolean waitingForClose;
   boolean syn_rec;
   boolean timeWait;
+  boolean sackEnabled; // 對方的SYN帶SACK-permitted且本地也開啟
+  // window scale（RFC 7323）：自己通告視窗時右移windowShift，對方通告的視窗左移peerWindowShift
+  int windowShift;
+  int peerWindowShift;
+  boolean windowScaling;
+  // 多個stream共用一個連線（雙方的SYN都帶OPT_STREAMS）：sender要求時設定，receiver依SYN設定
+  boolean multiStream;
+  boolean streamsRefused; // sender要求了stream但SYN-ACK沒有帶OPT_STREAMS
+  int streamsNum;
+  // striped transfer：這條連線只負責檔案的[stripeOffset, stripeOffset + stripeLength)，-1 = 整個檔案
+  // sender在SYN上要求，receiver接受時在SYN-ACK上echo；FIN帶這個範圍的CRC32C（-1 = 還沒收到）
+  long stripeOffset = -1;
+  long stripeLength;
+  long stripeChecksum = -1;
+  boolean stripeRefused; // sender要求了stripe但SYN-ACK沒有帶OPT_STRIPE
+  // FEC（雙方的SYN都帶OPT_FEC_PERMITTED）：receiver依SYN設定；sender在SYN-ACK echo時建立encoder
+  boolean fecEnabled;
+  FecEncoder fec;
+  // 壓縮（雙方的SYN都帶OPT_COMPRESSION）：sender送BlockDeflater的block串，receiver解開後寫出
+  boolean compression;
+  // 續傳（sender的SYN帶OPT_RESUME，receiver在SYN-ACK上回應部分檔案的manifest）：receiver的ResumableFile報告、
+  // sender依它決定跳過哪些subtree；FIN帶整個檔案的Merkle root
+  boolean resume;
+  int resumeBlocks;
+  int resumeShift;
+  long[] resumeDigests;
+  byte[] merkleRoot;
+  // CRC32C（sender的SYN帶OPT_CHECKSUM，receiver在SYN-ACK上echo）：之後每個非SYN包裹帶OPT_CRC32C，沒有帶的包裹丟掉
+  boolean crc32c;
+  // -fastopen（SessionCache）：sender的SYN帶cookie（0 = 要求cookie）時可以帶檔案最前面的synDataLength bytes，
+  // receiver驗證cookie後直接收下，SYN-ACK的ACK就涵蓋它們；receiver的fastOpenCookie是發給這個peer的cookie
+  long fastOpenCookie;
+  int synDataLength;
+  boolean synDataAccepted;
+  SessionCache.Entry session; // sender沿用的上一條連線的參數，沒有時為null
+  long peerWindow;            // 對方最後通告的視窗（bytes），結束時記進SessionCache
 
   TimerManager timerManager;
+  CongestionController congestion;
+  final Pacer pacer = new Pacer();
+  PacketCodec codec;
   // 統計資料使用＝＝＝＝＝＝＝＝＝＝＝＝＝＝＝
-  int dataTransferred;
-  int packetsSent;
-  int packetsReceived;
-  int outOfSeqPackets;
-  int incorrectChecksumNum;
-  int retransNum;
-  int duplicateAcksNum;
+  // counters與histograms：多個thread同時更新，不靠handler的monitor；連線開著時可以從JMX讀取
+  final ConnectionMetrics metrics = MetricsRegistry.shared().create(this);
+  // 每個包裹一行的log（-trace text|off|ring）
+  final PacketTrace trace;
+  // -record：binary trace（沒有指定時為null）與這個連線在檔案裡的編號
+  final TraceRecorder recorder;
+  int recorderId;
 
   //flags for fin
   boolean firstFin = false;
@@ -63,145 +123,371 @@ public abstract class TCPHandler extends Thread {
   }
 
   public TCPHandler(int port, String fileName, int mtu, int sws) {
+    this(port, fileName, mtu, sws, new TCPConfig());
+  }
+
+  public TCPHandler(int port, String fileName, int mtu, int sws, TCPConfig config) {
+    this(openTransport(config, port, mtu), fileName, mtu, sws, config);
+  }
+
+  // 使用已經存在的transport（例如ConnectionListener共用的socket）
+  TCPHandler(DatagramTransport transport, String fileName, int mtu, int sws, TCPConfig config) {
     timerManager = new TimerManager(this);
-    try {
-      this.socket = new DatagramSocket(port);
-    } catch (SocketException e) {
-      System.out.println("debug: Socket could not be created");
-    }
+    this.config = config;
+    this.transport = transport;
     this.mtu = mtu;
     this.sws = sws;
+    this.congestion = CongestionController.create(config.congestionControl, mtu - Sender.HEADER_SIZE);
+    while (windowShift < TCPpacket.MAX_WINDOW_SCALE && (config.receiveWindow >> windowShift) > 0xFFFF)
+      windowShift++;
+    this.codec = new PacketCodec(mtu, transport != null && transport.prefersDirectBuffers());
     this.fileName = fileName;
     this.startTime = System.nanoTime();
+    this.trace = PacketTrace.create(config.trace);
+    this.recorder = config.record == null ? null : TraceRecorder.open(config.record);
+    if (recorder != null)
+      recorderId = recorder.connect(this instanceof Sender ? TraceRecorder.ROLE_SENDER : TraceRecorder.ROLE_RECEIVER);
+    if (config.session != null)
+      SessionCache.shared().open(config.session);
 
   }
 
-  public void run() {
+  private static DatagramTransport openTransport(TCPConfig config, int port, int mtu) {
+    try {
+      return config.openTransport(port, mtu);
+    } catch (IOException e) {
+      System.out.println("debug: Socket could not be created");
+      return null;
+    }
+  }
+
+  // 啟動連線：transport能交給共用的EventLoop時（nio）不需要自己的thread，否則開一個thread跑blocking receive
+  public void start() {
+    MetricsRegistry.shared().register(metrics);
+    // host A 先connect再開始接收：blocking socket的connect會等進行中的receive
+    if (remoteIP != null)
+      connectTransport();
+    if (!transport.register(EventLoop.next(), this::onDatagram))
+      new Thread(this::receiveLoop, getClass().getSimpleName()).start();
     // host A 向 host B 發出第一次握手
     if (remoteIP != null) {
-      this.socket.connect(remoteIP, remotePort);
-      sendTCP(new byte[0], new Boolean[] { true, false, false }); // {S - - }
+      if (config.fastOpen)
+        restoreSession();
+      sendTCP(synPayload(), new Boolean[] { true, false, false }); // {S - - }
     }
-    // 持續接收數據
-    while (running()) {
-      byte[] data = new byte[mtu];
-      DatagramPacket receivedDatagram = new DatagramPacket(data, data.length);
+  }
+
+  // 給Sender overwrite用：SYN上帶的資料（SYN data），預設不帶
+  byte[] synPayload() {
+    return new byte[0];
+  }
 
+  // -fastopen：沿用上一條連到同一個peer的連線留下的RTT與cwnd，以及receiver發的cookie
+  // RTT只作為第一個RTO（第一個量到的RTT仍然直接取代它）；cwnd取一半且不超過對方上次的視窗
+  private void restoreSession() {
+    session = SessionCache.shared().get(remoteAddress());
+    if (session == null)
+      return;
+    fastOpenCookie = session.cookie;
+    if (session.srtt > 0)
+      timerManager.seed(session.srtt, session.rttvar);
+    if (session.cwnd > 0)
+      congestion.restore(session.window > 0 ? Math.min(session.cwnd / 2, session.window) : session.cwnd / 2,
+          session.ssthresh);
+  }
+
+  // sender進入TIME_WAIT時：這條連線量到的參數留給下一條連線
+  private void saveSession() {
+    if (!config.fastOpen || !timerManager.first)
+      return;
+    long cwnd = congestion.getCwnd();
+    SessionCache.shared().putParameters(remoteAddress(), timerManager.ertt, timerManager.edev,
+        cwnd == Long.MAX_VALUE ? 0 : cwnd, congestion.getSsthresh(), peerWindow);
+  }
+
+  // 等到連線關閉
+  public void join() throws InterruptedException {
+    try {
+      closed.get();
+    } catch (ExecutionException e) {
+    }
+  }
+
+  // 持續接收數據：由transport把每個datagram交給onDatagram
+  private void receiveLoop() {
+    while (running()) {
       try {
-        this.socket.receive(receivedDatagram);
-        //===============================收到包裹了===============================
-        packetsReceived += 1;
-        TCPpacket receivedPacket = new TCPpacket();
-        // checksum錯誤 -> 直接不予理會
-        if (receivedPacket.verifyChecksum(receivedDatagram.getData()) == false) {
-          incorrectChecksumNum += 1;
-          System.out.println("debug: Incorrect checksum");
-          return;
+        transport.receive(this::onDatagram);
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  // 處理一個收到的datagram；datagram（以及decode出來的payload）只在這個呼叫內有效
+  void onDatagram(ByteBuffer datagram, InetSocketAddress from) {
+    //===============================收到包裹了===============================
+    metrics.packetsReceived.increment();
+    TCPpacket receivedPacket = codec.decode(datagram, new TCPpacket());
+    // checksum錯誤 -> 直接不予理會
+    if (receivedPacket == null) {
+      metrics.checksumErrors.increment();
+      System.out.println("debug: Incorrect checksum");
+      return;
+    }
+    onPacket(receivedPacket, from);
+  }
+
+  // 處理一個已經通過checksum的包裹（ConnectionListener解碼後直接呼叫這裡）
+  void onPacket(TCPpacket receivedPacket, InetSocketAddress from) {
+    // CRC32C連線上沒有CRC的包裹只有ones'-complement sum的保護，當作checksum錯誤
+    if (crc32c && !receivedPacket.crc32c && !receivedPacket.getSyn()) {
+      metrics.checksumErrors.increment();
+      return;
+    }
+    // 打印數據包
+    hostOutput(receivedPacket, false);
+
+    // 收到ack包
+    if (receivedPacket.getAck()) {
+      //收到ack包的後續處理
+      if (!receivedPacket.getFin() && waitingForClose) {
+        endThread();
+        return;
+      }
+
+      long rtt = System.nanoTime() - receivedPacket.timestamp;
+      // SACK先更新scoreboard，之後的cumulative ACK處理才知道哪些包裹不用重送
+      if (receivedPacket.sackCount > 0)
+        timerManager.onSack(receivedPacket);
+      // SYN上的視窗不做scale；較舊（ackNum比較小）的ACK不更新視窗
+      boolean windowUpdate = false;
+      if (receivedPacket.window >= 0 && receivedPacket.ackNum - lastRecAck >= 0) {
+        peerWindow = (long) receivedPacket.window << (receivedPacket.getSyn() ? 0 : peerWindowShift);
+        windowUpdate = timerManager.updatePeerWindow(receivedPacket.ackNum, peerWindow);
+      }
+      // seq/ack以差值比較，超過2 GB的傳輸在int wrap之後仍然正確
+      if (receivedPacket.ackNum - lastRecAck > 0) {
+        int ackedBytes = receivedPacket.ackNum - lastRecAck;
+        lastRecAck = receivedPacket.ackNum;
+        duplicateAckCount = 0;
+        timerManager.updateTO(receivedPacket);
+        long priorInFlight = timerManager.removePacket(receivedPacket.ackNum);
+        // recovery期間cwnd不成長（RFC 5681/6582）；被sws或應用程式限制時也不成長（RFC 7661）
+        if (!timerManager.isInRecovery() && priorInFlight + (mtu - Sender.HEADER_SIZE) >= congestion.getCwnd())
+          congestion.onAck(ackedBytes, rtt);
+      } else if (receivedPacket.ackNum == lastRecAck && !windowUpdate) {
+        duplicateAckCount += 1;
+        metrics.duplicateAcks.increment();
+        if (duplicateAckCount == 3)
+          timerManager.fastRetransmit(receivedPacket.ackNum);
+      }
+      DeliveryRateSampler.RateSample sample = timerManager.takeRateSample(rtt);
+      if (sample != null)
+        congestion.onRateSample(sample);
+    }
+
+    // 收到ＳＹＮ包
+    if (receivedPacket.getSyn()) {
+      // Set up socket if it isn't connected
+      if (ownsTransport && transport.isConnected() == false) {
+        remoteIP = from.getAddress();
+        remotePort = from.getPort();
+        connectTransport();
+      }
+      // 收到ＳＹＮ包後的後續處理
+      // receiver
+      if (receivedPacket.getAck() == false) {
+        if (syn_rec == false) {
+          sackEnabled = receivedPacket.sackPermitted && config.sack;
+          // 雙方的SYN都帶window scale才啟用，否則視窗最大65535
+          windowScaling = receivedPacket.windowScale >= 0;
+          peerWindowShift = Math.max(receivedPacket.windowScale, 0);
+          if (!windowScaling)
+            windowShift = 0;
+          multiStream = receivedPacket.streams;
+          stripeOffset = receivedPacket.stripeOffset;
+          stripeLength = receivedPacket.stripeLength;
+          fecEnabled = receivedPacket.fecPermitted && !multiStream;
+          compression = receivedPacket.compression == TCPpacket.COMPRESS_DEFLATE && !multiStream;
+          resume = receivedPacket.resume && !multiStream;
+          crc32c = receivedPacket.checksumAlgorithm == TCPpacket.CHECKSUM_CRC32C;
+          if (receivedPacket.fastOpen)
+            fastOpenCookie = SessionCache.shared().cookie(from.getAddress());
+          acceptConnection();
+          //ackNum = receivedPacket.seqNum + 1;
+          setAckNum(receivedPacket.seqNum + 1);
+          // SYN data：cookie正確時當作接在SYN之後的資料包，SYN-ACK的ACK涵蓋它；否則丟掉，sender在handshake後重送
+          if (receivedPacket.isDataPacket() && receivedPacket.fastOpenCookie != 0
+              && receivedPacket.fastOpenCookie == fastOpenCookie)
+            acceptSynData(receivedPacket);
+          if (DE_BUG) System.out.println("handler 134 ack number : " + getAckNum());
+          sendTCP(new byte[0], new Boolean[] { true, false, true }, receivedPacket.timestamp);
+          syn_rec = true;
         }
-        // 打印數據包
-        hostOutput(receivedPacket, "rcv");
-
-        // 收到ack包
-        if (receivedPacket.getAck()) {
-          //收到ack包的後續處理
-          if (!receivedPacket.getFin() && waitingForClose) {
-            endThread();
-            return;
-          }
-
-          if (receivedPacket.ackNum > lastRecAck) {
-            lastRecAck = receivedPacket.ackNum;
-            duplicateAckCount = 0;
-            timerManager.updateTO(receivedPacket);
-            timerManager.removePacket(receivedPacket.ackNum);
-          } else if (receivedPacket.ackNum == lastRecAck) {
-            duplicateAckCount += 1;
-            duplicateAcksNum += 1;
-            if (duplicateAckCount == 3)
-              timerManager.resendPacket(receivedPacket);
-          }
+      }
+      // sender
+      else {
+        peerWindowShift = Math.max(receivedPacket.windowScale, 0);
+        if (multiStream && !receivedPacket.streams)
+          streamsRefused = true;
+        if (stripeOffset >= 0 && receivedPacket.stripeOffset < 0)
+          stripeRefused = true;
+        compression = config.compress > 0 && !multiStream
+            && receivedPacket.compression == TCPpacket.COMPRESS_DEFLATE;
+        crc32c = requestsCrc32c() && receivedPacket.checksumAlgorithm == TCPpacket.CHECKSUM_CRC32C;
+        if (requestsResume() && receivedPacket.resumeDigests != null && !resume) {
+          resume = true;
+          resumeBlocks = receivedPacket.resumeBlocks;
+          resumeShift = receivedPacket.resumeShift;
+          resumeDigests = receivedPacket.resumeDigests;
         }
-
-        // 收到ＳＹＮ包
-        if (receivedPacket.getSyn()) {
-          // Set up socket if it isn't connected
-          if (this.socket.isConnected() == false) {
-            remoteIP = receivedDatagram.getAddress();
-            remotePort = receivedDatagram.getPort();
-            this.socket.connect(remoteIP, remotePort);
-          }
-          // 收到ＳＹＮ包後的後續處理
-          // receiver
-          if (receivedPacket.getAck() == false) {
-            if (syn_rec == false) {
-              //ackNum = receivedPacket.seqNum + 1;
-              setAckNum(receivedPacket.seqNum + 1);
-              if (DE_BUG) System.out.println("handler 134 ack number : " + getAckNum());
-              sendTCP(new byte[0], new Boolean[] { true, false, true }, receivedPacket.timestamp);
-              syn_rec = true;
-            }
-          }
-          // sender
-          else {
-            //ackNum = receivedPacket.seqNum + 1;
-            setAckNum(receivedPacket.seqNum + 1);
-            if(DE_BUG) System.out.println("handler 142 ack number: " + getAckNum());
-            if (established)
-              resendACKtoSYN();
-            else {
-              sendACK(receivedPacket);
-              established = true;
-            }
-          }
+        if (requestsFec() && receivedPacket.fecPermitted && fec == null) {
+          fecEnabled = true;
+          fec = new FecEncoder(mtu - Sender.HEADER_SIZE - TCPpacket.FEC_OPTION_LENGTH - checksumOptionLength(),
+              Math.max(0, config.fec), sws / 2);
+        }
+        //ackNum = receivedPacket.seqNum + 1;
+        setAckNum(receivedPacket.seqNum + 1);
+        if(DE_BUG) System.out.println("handler 142 ack number: " + getAckNum());
+        if (receivedPacket.fastOpenCookie != 0 && config.fastOpen && !established.isDone()) {
+          SessionCache.shared().putCookie(remoteAddress(), receivedPacket.fastOpenCookie);
+          fastOpenCookie = receivedPacket.fastOpenCookie;
+        }
+        if (established.isDone())
+          resendACKtoSYN();
+        else {
+          if (synDataLength > 0)
+            onSynDataAcked(receivedPacket.ackNum);
+          sendACK(receivedPacket);
+          established.complete(null);
+        }
+      }
+    }
+    // 收到ＦＩＮ包
+    else if (receivedPacket.getFin()) {
+      // 更新ＡＣＫＮＵＭ
+      if (receivedPacket.seqNum == getAckNum()) {
+        //ackNum += 1;
+        if(!firstFin) {
+          setAckNum(getAckNum() + 1);
+          firstFin = true;
+          if (receivedPacket.stripeOffset >= 0)
+            stripeChecksum = receivedPacket.stripeChecksum & 0xFFFFFFFFL;
+          if (receivedPacket.merkleRoot != null)
+            merkleRoot = receivedPacket.merkleRoot;
+          if (DE_BUG) System.out.println("handler 157 ack number: " + getAckNum());
+        }
+      }
+      // 接收到ＦＩＮ包後的後續處理
+      // receiver
+      if (initiatedClose == false) {
+        if(!firstReceiverFin){
+          sendFinAck(); // FIN+ACK包{ - F A}
+          waitingForClose = true;
+          firstReceiverFin = true;
         }
-        // 收到ＦＩＮ包
-        else if (receivedPacket.getFin()) {
-          // 更新ＡＣＫＮＵＭ
-          if (receivedPacket.seqNum == getAckNum()) {
-            //ackNum += 1;
-            if(!firstFin) {
-              setAckNum(getAckNum() + 1);
-              firstFin = true;
-              if (DE_BUG) System.out.println("handler 157 ack number: " + getAckNum());
-            }
-          }
-          // 接收到ＦＩＮ包後的後續處理
-          // receiver
-          if (initiatedClose == false) {
-            if(!firstReceiverFin){
-              sendFinAck(); // FIN+ACK包{ - F A}
-              waitingForClose = true;
-              firstReceiverFin = true;
-            }
 //            waitingForClose = true;
 //            firstReceiverFin = true;
-          }
-          // sender
-          else {
-            sendACK(receivedPacket);
-            if (timeWait == false) {
-              WaitClose closeThreadTimer = new WaitClose(this, (int) timerManager.getTO() / 1000000 * 4);
-              closeThreadTimer.start();
-              timeWait = true;
-            }
-          }
-        }
-        // 收到ＤＡＴＡ包
-        else if (receivedPacket.data.length > 0) {
-          timerManager.removePacket(receivedPacket.ackNum);
-          handlePacket(receivedPacket);
-          if(receivedPacket.seqNum <= getAckNum()) sendACK(receivedPacket); //receivedPacket只用來調時間 其他參數照現存的數值回傳
+      }
+      // sender
+      else {
+        sendACK(receivedPacket);
+        if (timeWait == false) {
+          // TIME_WAIT：在共用的TimingWheel上排程關閉，不另外開thread
+          // 只需要等得到對方重送的FIN+ACK（對方的RTO加上一個RTT），不是固定的4 × RTO；
+          // 最後的ACK一直遺失時receiver也不會等滿MAX_RETRANS（TimerManager.LAST_ACK_RETRANS）
+          saveSession();
+          TimingWheel.shared().schedule(this::endThread, timeWaitNanos());
+          timeWait = true;
         }
-      } catch (IOException e) {
       }
     }
+    // 收到parity包：不佔seq，也不ACK
+    else if (receivedPacket.fecCount > 0) {
+      handleParity(receivedPacket);
+    }
+    // 收到ＤＡＴＡ包
+    else if (receivedPacket.isDataPacket()) {
+      timerManager.removePacket(receivedPacket.ackNum);
+      handlePacket(receivedPacket);
+      acknowledge(receivedPacket);
+    }
+  }
+
+  long timeWaitNanos() {
+    return timerManager.getTO() + timerManager.ertt;
+  }
+
+  // sender：SYN-ACK的ACK涵蓋SYN data時從它們之後繼續送，否則SYN（連同它的資料）不再重送，資料在handshake後從頭送
+  private void onSynDataAcked(int ack) {
+    synDataAccepted = ack - getSeqNum() == synDataLength;
+    if (synDataAccepted) {
+      setSeqNum(ack);
+      metrics.bytesTransferred.add(synDataLength);
+    } else {
+      timerManager.removePacket(getSeqNum() - 1 + synDataLength);
+    }
+  }
+
+  private void connectTransport() {
+    try {
+      transport.connect(new InetSocketAddress(remoteIP, remotePort));
+    } catch (IOException e) {
+      System.out.println("debug: transport could not connect");
+    }
   }
+
   //給TCPsender overwrite用：用來處理DATA包
   abstract void handlePacket(TCPpacket packet);
 
+  // 給Receiver overwrite用：FEC的parity segment
+  void handleParity(TCPpacket parity) {
+  }
+
+  // 給Receiver overwrite用：收到第一個SYN、回SYN-ACK之前（已經知道對方的options）
+  void acceptConnection() {
+  }
+
+  // 給Receiver overwrite用：cookie正確的SYN data，接受時更新ackNum
+  void acceptSynData(TCPpacket syn) {
+  }
+
+  // 給Sender overwrite用：包裹被cumulative ACK或SACK確認時（持有TimerManager的lock，不能再取handler的monitor）
+  void onSegmentAcked(TCPpacket tcpPacket) {
+  }
+
+  // 給Receiver overwrite用：資料包的ACK策略，預設每個包裹立刻ACK
+  // 超前的包裹也立刻回重複ACK（RFC 5681），讓sender能由SACK/重複ACK得知遺失
+  void acknowledge(TCPpacket packet) {
+    sendACK(packet); //packet只用來調時間 其他參數照現存的數值回傳
+  }
+
   //===================================傳輸packet的方法=============================================================
   void sendACK(TCPpacket origPacket) {
-    sendTCP(new byte[0], new Boolean[] { false, false, true }, origPacket.timestamp); //{ - - A}
+    sendACK(origPacket.timestamp);
+  }
+
+  // timestamp：回傳給對方計算RTT的時間
+  void sendACK(long timestamp) {
+    TCPpacket ack = new TCPpacket(getSeqNum(), getAckNum(), timestamp, new Boolean[] { false, false, true }, new byte[0]); //{ - - A}
+    addAckOptions(ack);
+    sendTCP(ack);
+  }
+
+  // 給Receiver overwrite用：在ACK上附加SACK等option
+  void addAckOptions(TCPpacket ack) {
+  }
+
+  // 給Receiver overwrite用：header的視窗欄位（已右移），-1 = 不通告視窗
+  int windowField(boolean syn) {
+    return -1;
+  }
+
+  // zero window probe：送1 byte已經被ACK過的資料（seq = 下一個seq - 1），
+  // receiver會當作重複的包裹丟棄，但會回ACK告知目前的視窗
+  void sendWindowProbe() {
+    TCPpacket probe = new TCPpacket(getSeqNum() - 1, getAckNum(), System.nanoTime(), new Boolean[] { false, false, false }, new byte[1]);
+    sendTCP(probe);
   }
 
   void resendACKtoSYN() {
@@ -220,76 +506,317 @@ public abstract class TCPHandler extends Thread {
   }
 
   void sendTCP(byte[] data, Boolean[] flags, long time) {
-    TCPpacket tcpPacket = new TCPpacket(getSeqNum(), getAckNum(), time, flags, data);
-    sendTCP(tcpPacket);
+    sendSegment(new TCPpacket(getSeqNum(), getAckNum(), time, flags, data));
+  }
 
+  private void sendSegment(TCPpacket tcpPacket) {
     //需要等待ＡＣＫ回應的包 -> 加入buffer中等待被ＡＣＫ
-    if (tcpPacket.getSyn() || tcpPacket.getFin() || tcpPacket.data.length > 0) {
+    // 必須在送出前加入：ACK可能在send回傳前就被receive thread處理，之後才加入的包裹會永遠留在buffer裡
+    if (tcpPacket.getSyn() || tcpPacket.getFin() || tcpPacket.isDataPacket()) {
       timerManager.startTimerOnPacket(tcpPacket, 0);
     }
+    sendTCP(tcpPacket);
 
     //需要佔用seqNum的數據包
-    if (tcpPacket.getSyn() || tcpPacket.getFin() || tcpPacket.isDataPacket()) {
-      //seqNum += Math.max(1, data.length); //1 for sys or fin packet
-      setSeqNum(getSeqNum() + Math.max(1, data.length)); //1 for sys or fin packet
+    // SYN data的seq在SYN-ACK之後才確定（receiver可能不接受），SYN本身只佔1
+    if (tcpPacket.getSyn()) {
+      if (!tcpPacket.getAck())
+        synDataLength = tcpPacket.getDataLength();
+      setSeqNum(getSeqNum() + 1);
+    } else if (tcpPacket.getFin() || tcpPacket.isDataPacket()) {
+      setSeqNum(getSeqNum() + Math.max(1, tcpPacket.getDataLength())); //1 for sys or fin packet
+    }
+  }
+
+  // 一次送出count個資料包：segments只需要填好payload（與stream option），seq/ack/timestamp在這裡填上
+  // payload可以是唯讀的view（例如檔案mapping的slice）：不複製，重送時直接從view重新編碼
+  // 每個包裹都先加入timer再編碼，整批交給transport一次送出，一個window的segment不需要每個都走一次send路徑
+  // FEC時group滿了的parity segment接在group最後一個segment後面，一起送出
+  void sendSegments(TCPpacket[] segments, int count) {
+    ByteBuffer[] encoded = new ByteBuffer[fec == null ? count : 2 * count];
+    int n = 0;
+    long time = System.nanoTime();
+    int seq = getSeqNum();
+    int ack = getAckNum();
+    try {
+      for (int i = 0; i < count; i++) {
+        TCPpacket tcpPacket = segments[i];
+        tcpPacket.seqNum = seq;
+        tcpPacket.ackNum = ack;
+        tcpPacket.timestamp = time;
+        if (fec != null)
+          fec.add(tcpPacket);
+        timerManager.startTimerOnPacket(tcpPacket, 0);
+        encoded[n++] = encode(tcpPacket);
+        hostOutput(tcpPacket, true);
+        seq += tcpPacket.getDataLength();
+        if (fec != null && fec.groupFull())
+          encoded[n++] = encodeParity(ack, time);
+      }
+      int sent = transport.send(encoded, n, remoteAddress());
+      metrics.packetsSent.add(sent);
+      // 沒送出的包裹已經在timer裡：跟網路上遺失的一樣由重送處理，但另外計數
+      for (int i = sent; i < n; i++)
+        localDrop(encoded[i]);
+    } catch (IOException e) {
+      System.out.println("debug: send packet not success");
+    } finally {
+      for (ByteBuffer buffer : encoded)
+        codec.release(buffer);
+    }
+    setSeqNum(seq);
+  }
+
+  // 目前FEC group的parity segment：不加入timer（遺失了也不重送），但跟重送一樣算進pacing
+  private ByteBuffer encodeParity(int ack, long time) {
+    TCPpacket parity = fec.parity(ack, time);
+    metrics.paritySent.increment();
+    pacer.charge(parity.getDataLength(), congestion.getPacingRate());
+    ByteBuffer encoded = encode(parity);
+    hostOutput(parity, true);
+    return encoded;
+  }
+
+  // 資料送完：最後一個還沒滿的group也送出parity，尾端的遺失不用等RTO
+  void flushParity() {
+    if (fec == null || !running())
+      return;
+    TCPpacket parity = fec.parity(getAckNum(), System.nanoTime());
+    if (parity == null)
+      return;
+    metrics.paritySent.increment();
+    pacer.charge(parity.getDataLength(), congestion.getPacingRate());
+    sendTCP(parity);
+  }
+
+  // sender：-fec且不是多個stream時在SYN上要求FEC
+  boolean requestsFec() {
+    return config.fec != TCPConfig.FEC_OFF && !multiStream;
+  }
+
+  // sender：-resume且是單一檔案的整個範圍時在SYN上要求續傳
+  boolean requestsResume() {
+    return config.resume && !multiStream && stripeOffset < 0;
+  }
+
+  // 每個非SYN包裹上checksum option佔用的bytes，segment的payload要少這麼多
+  int checksumOptionLength() {
+    return crc32c ? TCPpacket.CRC32C_OPTION_LENGTH : 0;
+  }
+
+  // sender：-checksum crc32c時在SYN上要求CRC32C
+  boolean requestsCrc32c() {
+    return TCPConfig.CHECKSUM_CRC32C.equals(config.checksum);
+  }
+
+  // 填上options後從pool取buffer編碼
+  private ByteBuffer encode(TCPpacket tcpPacket) {
+    addOptions(tcpPacket);
+    return codec.encode(tcpPacket);
+  }
+
+  void addOptions(TCPpacket tcpPacket) {
+    tcpPacket.connectionId = connectionId;
+    if (tcpPacket.getSyn() && config.sack)
+      tcpPacket.sackPermitted = true;
+    // 主動連線的SYN一定帶window scale；SYN-ACK只有在對方也帶的時候才回應
+    if (tcpPacket.getSyn() && (!tcpPacket.getAck() || windowScaling))
+      tcpPacket.windowScale = windowShift;
+    if (tcpPacket.getSyn() && multiStream)
+      tcpPacket.streams = true;
+    if (tcpPacket.getSyn() && (tcpPacket.getAck() ? fecEnabled : requestsFec()))
+      tcpPacket.fecPermitted = true;
+    if (tcpPacket.getSyn() && (tcpPacket.getAck() ? compression : config.compress > 0 && !multiStream))
+      tcpPacket.compression = TCPpacket.COMPRESS_DEFLATE;
+    if (tcpPacket.getSyn() && (tcpPacket.getAck() ? resume : requestsResume())) {
+      tcpPacket.resume = true;
+      if (tcpPacket.getAck()) {
+        tcpPacket.resumeBlocks = resumeBlocks;
+        tcpPacket.resumeShift = resumeShift;
+        tcpPacket.resumeDigests = resumeDigests;
+      }
     }
+    if (tcpPacket.getSyn() && (tcpPacket.getAck() ? crc32c : requestsCrc32c()))
+      tcpPacket.checksumAlgorithm = TCPpacket.CHECKSUM_CRC32C;
+    tcpPacket.crc32c = crc32c && !tcpPacket.getSyn();
+    if (tcpPacket.getFin() && merkleRoot != null)
+      tcpPacket.merkleRoot = merkleRoot;
+    if ((tcpPacket.getSyn() || tcpPacket.getFin()) && stripeOffset >= 0) {
+      tcpPacket.stripeOffset = stripeOffset;
+      tcpPacket.stripeLength = stripeLength;
+      tcpPacket.stripeChecksum = (int) Math.max(0, stripeChecksum);
+    }
+    if (tcpPacket.getSyn() && (tcpPacket.getAck() ? fastOpenCookie != 0 : config.fastOpen)) {
+      tcpPacket.fastOpen = true;
+      tcpPacket.fastOpenCookie = fastOpenCookie;
+    }
+    tcpPacket.window = windowField(tcpPacket.getSyn());
   }
 
-  synchronized void sendTCP(TCPpacket tcpPacket) {
-    byte[] tcpData = tcpPacket.serialize();
-    DatagramPacket packet = new DatagramPacket(tcpData, tcpData.length, remoteIP, remotePort);
+  // 每次送出都從pool取buffer編碼，需要的同步由transport自己處理
+  void sendTCP(TCPpacket tcpPacket) {
+    ByteBuffer encoded = encode(tcpPacket);
     try {
-      hostOutput(tcpPacket, "snd");
-      this.socket.send(packet);
-      packetsSent += 1;
+      hostOutput(tcpPacket, true);
+      if (transport.send(encoded, remoteAddress()))
+        metrics.packetsSent.increment();
+      else
+        localDrop(encoded);
     } catch (IOException e) {
       System.out.println("debug: send packet not success");
+    } finally {
+      codec.release(encoded);
+    }
+  }
+
+  private InetSocketAddress remoteAddress() {
+    InetSocketAddress address = this.remoteAddress;
+    if (address == null || !address.getAddress().equals(remoteIP) || address.getPort() != remotePort) {
+      address = new InetSocketAddress(remoteIP, remotePort);
+      this.remoteAddress = address;
     }
+    return address;
   }
 
-  public void resendTCPPacket(TCPpacket tcpPacket) {
-    retransNum += 1;
+  // cause：TraceRecorder.CAUSE_*
+  public void resendTCPPacket(TCPpacket tcpPacket, int cause) {
+    metrics.retransmissions.increment();
+    if (recorder != null)
+      recorder.packet(recorderId, TraceRecorder.RETRANSMIT, tcpPacket, timerManager.getTO(), cause);
+    pacer.charge(tcpPacket.getDataLength(), congestion.getPacingRate());
     tcpPacket.timestamp = System.nanoTime();
     tcpPacket.ackNum = getAckNum();
 
     sendTCP(tcpPacket);
   }
 
-  void hostOutput(TCPpacket tcpPacket, String sndOrec) {
-    long time = (System.nanoTime() - startTime) / ((long) 1e6);
-    DecimalFormat df = new DecimalFormat("##.###");
+  void hostOutput(TCPpacket tcpPacket, boolean sent) {
+    trace.record(sent, (System.nanoTime() - startTime) / 1_000_000L, tcpPacket);
+    if (recorder != null)
+      recorder.packet(recorderId, sent ? TraceRecorder.SEND : TraceRecorder.RECV, tcpPacket, timerManager.getTO(),
+          sent ? congestion.getCwnd() : tcpPacket.window);
+  }
+
+  // 本地send buffer滿、沒有送出的datagram：seq從編碼好的header讀
+  private void localDrop(ByteBuffer datagram) {
+    metrics.localDrops.increment();
+    recordEvent(TraceRecorder.DROP, datagram.getInt(datagram.position()), 0);
+  }
 
-    System.out.println(sndOrec + " " + df.format((double) time / 1e3) + " " + (tcpPacket.getSyn() ? "S " : "- ")
-        + ((tcpPacket.getAck() || tcpPacket.isDataPacket()) ? "A " : "- ") +
-        (tcpPacket.getFin() ? "F " : "- ") + (tcpPacket.data.length > 0 ? "D " : "- ") + tcpPacket.seqNum +
-        " " + tcpPacket.data.length + " " + tcpPacket.ackNum);
+  // timer事件（TraceRecorder.TIMEOUT、RTT、PROBE、DROP）
+  void recordEvent(int event, int seq, long value) {
+    if (recorder != null)
+      recorder.record(recorderId, event, 0, seq, 0, 0, timerManager.getTO(), (int) Math.min(Integer.MAX_VALUE, value));
   }
 
   public synchronized void endThread() {
+    // 先設flag再清空timer：removeAllPacket的notifyAll喚醒在等視窗的sender，它看到連線已經結束就返回
     this.needToStop = true;
     closeConnection();
 
-    established = true;
-    printStatistics();
+    established.complete(null);
+    if (closing)
+      return;
+    closing = true;
+    MetricsRegistry.shared().unregister(metrics);
+    CLOSERS.execute(() -> {
+      try {
+        closeFiles();
+      } finally {
+        printStatistics();
+        if (recorder != null)
+          recorder.release(recorderId, metrics.bytesTransferred.sum());
+        closed.complete(null);
+      }
+    });
+  }
+
+  // 連線結束後關閉檔案（在CLOSERS的thread上，不持有handler的lock）
+  protected void closeFiles() {
   }
 
-  protected synchronized boolean running() {
+  protected boolean running() {
     return this.needToStop == false ? true : false;
   }
 
   public void closeConnection() {
     timerManager.removeAllPacket();
-    socket.close();
+    if (ownsTransport)
+      transport.close();
+    if (onClose != null)
+      onClose.run();
+  }
+
+  private static String formatWindow(long bytes) {
+    return bytes == Long.MAX_VALUE ? "unlimited" : String.valueOf(bytes);
   }
 
   void printStatistics() {
+    // ring模式的trace先印完，統計在最後
+    trace.flush();
+    long dataTransferred = metrics.bytesTransferred.sum();
+    long packetsSent = metrics.packetsSent.sum();
+    long packetsReceived = metrics.packetsReceived.sum();
     System.out.println("-------------------------------------------");
     System.out.println("Amount of Data transferred: " + dataTransferred);
     System.out.println("Number of packets sent/received: " + packetsSent + "/" + packetsReceived);
-    System.out.println("Number of out of sequence packets: " + outOfSeqPackets);
-    System.out.println("Number of packets discarded due to incorrect checksum: " + incorrectChecksumNum);
-    System.out.println("Number of packets retransmitted: " + retransNum);
-    System.out.println("Number of duplicate ACKs: " + duplicateAcksNum);
+    if (metrics.localDrops.sum() > 0)
+      System.out.println("Number of packets dropped locally (send buffer full): " + metrics.localDrops.sum());
+    System.out.println("Number of out of sequence packets: " + metrics.outOfSequence.sum());
+    System.out.println("Number of packets discarded due to incorrect checksum: " + metrics.checksumErrors.sum()
+        + (crc32c ? " (CRC32C)" : ""));
+    System.out.println("Number of packets retransmitted: " + metrics.retransmissions.sum());
+    System.out.println("Number of duplicate ACKs: " + metrics.duplicateAcks.sum());
+    if (metrics.sacked.sum() > 0)
+      System.out.println("Number of packets SACKed: " + metrics.sacked.sum());
+    if (metrics.windowDrops.sum() > 0)
+      System.out.println("Number of packets dropped outside receive window: " + metrics.windowDrops.sum());
+    if (dataTransferred > 0) {
+      // 每MB資料用掉的datagram數量與從連線開始算的平均throughput
+      double megabytes = dataTransferred / 1048576.0;
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      DecimalFormat df = new DecimalFormat("0.0");
+      System.out.println("Packets per MB sent/received: " + df.format(packetsSent / megabytes) + "/"
+          + df.format(packetsReceived / megabytes) + ", throughput: " + df.format(megabytes / seconds) + " MB/s");
+    }
+    if (metrics.rtt.count() > 0)
+      System.out.println("RTT mean/p50/p99/max: " + metrics.rtt.mean() + "/" + metrics.rtt.percentile(50) + "/"
+          + metrics.rtt.percentile(99) + "/" + metrics.rtt.max() + " us, RTO p99: " + metrics.rto.percentile(99) + " us");
+    if (streamsNum > 0)
+      System.out.println("Number of streams: " + streamsNum);
+    if (metrics.delayedAcks.sum() > 0)
+      System.out.println("Number of delayed ACKs sent by timer: " + metrics.delayedAcks.sum());
+    if (metrics.windowUpdates.sum() > 0)
+      System.out.println("Number of window updates: " + metrics.windowUpdates.sum());
+    if (fec != null)
+      System.out.println("Number of FEC parity segments sent: " + metrics.paritySent.sum() + " (group size "
+          + fec.currentGroupSize() + ", estimated loss " + new DecimalFormat("0.00").format(fec.lossRate() * 100) + "%)");
+    if (metrics.fecRecovered.sum() > 0)
+      System.out.println("Number of segments recovered from FEC parity: " + metrics.fecRecovered.sum());
+    if (metrics.rawBytes.sum() > 0 && compression)
+      System.out.println("Compression: " + metrics.rawBytes.sum() + " file bytes as " + metrics.compressedBytes.sum()
+          + " bytes (" + new DecimalFormat("0.0").format(100.0 * metrics.compressedBytes.sum() / metrics.rawBytes.sum())
+          + "%), blocks deflated/stored: " + metrics.blocksDeflated.sum() + "/" + metrics.blocksStored.sum());
+    if (resume)
+      System.out.println("Resumed: " + metrics.resumedBytes.sum() + " bytes already at the receiver");
+    if (synDataLength > 0)
+      System.out.println("SYN data: " + synDataLength + " bytes " + (synDataAccepted ? "accepted" : "not accepted"));
+    if (session != null)
+      System.out.println("Session reused: cached RTT " + session.srtt / 1000 + " us, cwnd "
+          + (session.cwnd > 0 ? String.valueOf(session.cwnd) : "-") + ", cookie " + (session.cookie != 0 ? "yes" : "no"));
+    if (metrics.windowProbes.sum() > 0)
+      System.out.println("Number of zero window probes: " + metrics.windowProbes.sum());
+    if (trace.dropped() > 0)
+      System.out.println("Number of trace records dropped: " + trace.dropped());
+    if (recorder != null && recorder.dropped() > 0)
+      System.out.println("Number of recorded events dropped: " + recorder.dropped());
+    System.out.println("Congestion control: " + congestion.getName() + " cwnd=" + formatWindow(congestion.getCwnd())
+        + " ssthresh=" + formatWindow(congestion.getSsthresh()));
+    if (congestion instanceof BbrController) {
+      BbrController bbr = (BbrController) congestion;
+      System.out.println("BBR estimate: btlbw=" + bbr.getBtlBw() + " B/s minrtt=" + bbr.getMinRtt() / 1000 + " us"
+          + " pacing=" + bbr.getPacingRate() + " B/s paced sends=" + pacer.pacedNum);
+    }
     System.out.println("-------------------------------------------");
   }
 }
@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -9,6 +10,7 @@ public class TCPend {
     String fileName = null;
     int mtu = 0;
     int sws = 0;
+    TCPConfig config = new TCPConfig();
     for (int i = 0; i < args.length; i++) {
       String arg = args[i];
       switch (arg) {
@@ -34,6 +36,76 @@ public class TCPend {
         case "-c": // SWS_FLAG
           sws = Integer.parseInt(args[++i]);
           break;
+        case "-e": // ENGINE_FLAG: socket | nio | mmsg
+          config.engine = args[++i];
+          break;
+        case "-l": // LISTEN_FLAG: accept many connections on one port
+          config.listen = true;
+          break;
+        case "-cc": // CONGESTION_CONTROL_FLAG: none | newreno | cubic | bbr
+          config.congestionControl = args[++i];
+          break;
+        case "-rwnd": // RECEIVE_WINDOW_FLAG: receiver buffer in bytes
+          config.receiveWindow = Integer.parseInt(args[++i]);
+          break;
+        case "-sack": // SACK_FLAG: on | off
+          config.sack = !"off".equals(args[++i]);
+          break;
+        case "-read": // READ_MODE_FLAG: mmap | stream
+          config.readMode = args[++i];
+          break;
+        case "-fsync": // FSYNC_FLAG: none | close | always
+          config.fsync = args[++i];
+          break;
+        case "-ack": // ACK_EVERY_FLAG: segments per ACK
+          config.ackEvery = Math.max(1, Integer.parseInt(args[++i]));
+          break;
+        case "-ackdelay": // ACK_DELAY_FLAG: milliseconds
+          config.ackDelay = Integer.parseInt(args[++i]);
+          break;
+        case "-batch": // SEND_BATCH_FLAG: segments per send batch
+          config.sendBatch = Math.max(1, Integer.parseInt(args[++i]));
+          break;
+        case "-streamwnd": // STREAM_WINDOW_FLAG: bytes in flight per stream
+          config.streamWindow = Integer.parseInt(args[++i]);
+          break;
+        case "-stripes": // STRIPES_FLAG: parallel connections for one file
+          config.stripes = Math.max(1, Integer.parseInt(args[++i]));
+          break;
+        case "-trace": // TRACE_FLAG: text | off | ring
+          config.trace = args[++i];
+          break;
+        case "-metrics": // METRICS_FLAG: snapshot dump interval in ms
+          config.metricsInterval = Integer.parseInt(args[++i]);
+          break;
+        case "-netem": // NETEM_FLAG: emulated conditions for sent datagrams, e.g. delay=20,loss=1%
+          config.network = NetworkConditions.parse(args[++i]);
+          break;
+        case "-fec": // FEC_FLAG: off | auto | data segments per parity segment
+          String fec = args[++i];
+          config.fec = "off".equals(fec) ? TCPConfig.FEC_OFF : "auto".equals(fec) ? TCPConfig.FEC_AUTO
+              : Math.max(1, Integer.parseInt(fec));
+          break;
+        case "-compress": // COMPRESS_FLAG: off | on | Deflater level 1-9
+          String level = args[++i];
+          config.compress = "off".equals(level) ? 0 : "on".equals(level) ? 1
+              : Math.max(1, Math.min(9, Integer.parseInt(level)));
+          break;
+        case "-resume": // RESUME_FLAG: keep and complete an existing partial output file
+          config.resume = true;
+          break;
+        case "-checksum": // CHECKSUM_FLAG: ones | crc32c
+          config.checksum = args[++i];
+          break;
+        case "-fastopen": // FASTOPEN_FLAG: SYN data and cached session parameters
+          config.fastOpen = true;
+          break;
+        case "-session": // SESSION_FLAG: file that keeps the session cache between runs
+          config.session = args[++i];
+          break;
+        case "-record": // RECORD_FLAG: binary trace file for TraceAnalyzer
+          config.record = args[++i];
+          break;
         default: // Ignore unknown flags
           break;
       }
@@ -44,16 +116,47 @@ public class TCPend {
       return;
     }
 
-    if (args.length == 12 && args[2].equals("-s")) {
-      Sender hostA = new Sender(port, remoteIP, remotePort, fileName, mtu, sws);
+    if (config.metricsInterval > 0)
+      MetricsRegistry.shared().startDump(config.metricsInterval);
+
+    // stream window至少要放得下一個segment（-m是segment的payload），否則多個檔案的傳送送不出任何東西
+    if (mtu > 0 && config.streamWindow < mtu - Sender.HEADER_SIZE)
+      config.streamWindow = mtu - Sender.HEADER_SIZE;
+
+    if (fileName == null || mtu == 0 || sws == 0) {
+      System.out
+          .println("Usage: java TCPend -p <port> -s <remoteIP> -a <remotePort> -f <fileName> -m <mtu> -c <sws> [-e socket|nio|mmsg] [-l] [-cc none|newreno|cubic|bbr] [-sack on|off] [-rwnd <bytes>] [-read mmap|stream] [-fsync none|close|always] [-ack <segments>] [-ackdelay <ms>] [-batch <segments>] [-streamwnd <bytes>] [-stripes <n>] [-trace text|off|ring] [-metrics <ms>] [-record <traceFile>] [-netem <conditions>] [-fec off|auto|<segments>] [-compress off|on|<level>] [-resume] [-checksum ones|crc32c] [-fastopen] [-session <file>]\"");
+    } else if (config.stripes > 1 && !config.listen) {
+      // 兩端的-stripes必須相同：receiver在port ... port + n - 1上各等一條連線
+      if (remoteIP != null && remotePort > 0)
+        StripedTransfer.send(port, remoteIP, remotePort, fileName, mtu, sws, config);
+      else
+        StripedTransfer.receive(port, mtu, sws, fileName, config);
+    } else if (remoteIP != null && remotePort > 0) {
+      Sender hostA = new Sender(port, remoteIP, remotePort, fileName, mtu, sws, config);
       hostA.start();
       hostA.startFileTransmission();
-    } else if (args.length == 8) {
-      Receiver hostB = new Receiver(port, mtu, sws, fileName);
-      hostB.start();
+      awaitClose(hostA);
+    } else if (config.listen) {
+      try {
+        ConnectionListener listener = new ConnectionListener(port, mtu, sws, fileName, config);
+        listener.start();
+      } catch (IOException e) {
+        System.out.println(e.getMessage());
+      }
     } else {
-      System.out
-          .println("Usage: java TCPend -p <port> -s <remoteIP> -a <remotePort> -f <fileName> -m <mtu> -c <sws>\"");
+      Receiver hostB = new Receiver(port, mtu, sws, fileName, config);
+      hostB.start();
+      awaitClose(hostB);
+    }
+  }
+
+  // 共用的I/O與timer thread都是daemon：main等連線關閉才結束
+  private static void awaitClose(TCPHandler host) {
+    try {
+      host.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 }
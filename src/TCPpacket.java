@@ -8,8 +8,76 @@ public class TCPpacket {
   public Boolean[] flags = new Boolean[3]; // {S F A}
   short checksum;
   public static final int headerSize = 24; // 4 * int(4 byte) + 1 * long (8 byte) = 24 byte
+  static final int optionsLengthOffset = 20;
+  static final int checksumOffset = 22;
+  // options：原本保留的16-bit欄位改存options的長度，options接在header後面、data前面
+  // 每個option為 {kind(1) length(1) value}，length包含kind與length本身
+  static final int OPT_CONNECTION_ID = 1;
+  static final int OPT_SACK = 2;           // {2, 2 + 8n, (start, end) * n}：[start, end) 已收到
+  static final int OPT_SACK_PERMITTED = 3; // {3, 2}：只出現在SYN上
+  static final int MAX_SACK_BLOCKS = 4;
+  static final int OPT_WINDOW = 4;       // {4, 4, window(16)}：receiver可再接收的bytes >> window scale
+  static final int OPT_WINDOW_SCALE = 5; // {5, 3, shift(8)}：只出現在SYN上（RFC 7323）
+  static final int MAX_WINDOW_SCALE = 14;
+  static final int OPT_STREAM = 6;  // {6, 15, stream id(32), stream offset(64), flags(8)}：資料包屬於哪個stream
+  static final int OPT_STREAMS = 7; // {7, 2}：只出現在SYN上，表示這個連線會多工多個stream
+  static final int STREAM_OPTION_LENGTH = 15;
+  static final int STREAM_OPEN = 1; // payload是stream的名稱（檔名），不是stream的資料
+  static final int STREAM_FIN = 2;  // stream的最後一個包裹
+  static final int OPT_STRIPE = 8; // {8, 22, offset(64), length(64), crc32c(32)}：SYN/FIN上，這條連線負責檔案的哪個範圍
+  static final int STRIPE_OPTION_LENGTH = 22;
+  static final int OPT_FEC_PERMITTED = 9; // {9, 2}：只出現在SYN/SYN-ACK上，sender會送parity segment
+  static final int OPT_FEC = 10;          // {10, 6, group(32)}：資料包屬於哪個FEC group（group第一個segment的seq）
+  static final int OPT_FEC_PARITY = 11;   // {11, 11, group(32), end(32), count(8)}：parity segment，group為[group, end)的count個segment
+  static final int FEC_OPTION_LENGTH = 6;
+  static final int FEC_PARITY_OPTION_LENGTH = 11;
+  static final int OPT_COMPRESSION = 12; // {12, 3, codec(8)}：只出現在SYN/SYN-ACK上，資料是BlockDeflater的block串
+  static final int COMPRESS_DEFLATE = 1;
+  // {13, 2}：SYN上要求續傳；{13, 7 + 8n, blocks(32), shift(8), digest(64) * n}：SYN-ACK上receiver的manifest，
+  // 部分檔案的前blocks個block每2^shift個一組，各組Merkle subtree hash的前8 bytes
+  static final int OPT_RESUME = 13;
+  static final int OPT_MERKLE_ROOT = 14; // {14, 34, root(256)}：FIN上，整個檔案的Merkle root
+  static final int OPT_CHECKSUM = 15; // {15, 3, algorithm(8)}：只出現在SYN/SYN-ACK上，之後的包裹改用CRC32C
+  static final int CHECKSUM_CRC32C = 1;
+  // {16, 6, crc(32)}：CRC32C連線上每個非SYN包裹的第一個option，整個包裹（不含這4 bytes）的CRC32C，header的checksum為0
+  static final int OPT_CRC32C = 16;
+  static final int CRC32C_OPTION_LENGTH = 6;
+  static final int crcOffset = headerSize + 2;
+  // {17, 2}：SYN上要求fast open cookie；{17, 10, cookie(64)}：SYN上帶cookie（payload是檔案最前面的bytes，接在SYN的seq之後），
+  // 或SYN-ACK上receiver發給sender的cookie
+  static final int OPT_FAST_OPEN = 17;
+  static final int FAST_OPEN_OPTION_LENGTH = 10;
+  public int connectionId; // 0 = 沒有connection id
+  public boolean sackPermitted;
+  public int[] sackBlocks; // start0, end0, start1, end1 ...
+  public int sackCount;
+  public int window = -1;      // -1 = 沒有通告視窗
+  public int windowScale = -1; // -1 = 沒有window scale option
+  public boolean streams;
+  public int streamId = -1;    // -1 = 沒有stream option
+  public long streamOffset;
+  public int streamFlags;
+  public long stripeOffset = -1; // -1 = 沒有stripe option
+  public long stripeLength;
+  public int stripeChecksum;     // 範圍的CRC32C，只有FIN上的有意義
+  public boolean fecPermitted;
+  public long fecGroup = -1;     // -1 = 沒有FEC option，否則是group第一個segment的seq（unsigned）
+  public int fecEnd;
+  public int fecCount;           // > 0：這是parity segment，payload是group中所有segment的XOR
+  public int compression;        // 0 = 沒有compression option
+  public boolean resume;
+  public int resumeBlocks;
+  public int resumeShift;
+  public long[] resumeDigests;   // null = SYN上的要求（沒有manifest）
+  public byte[] merkleRoot;
+  public int checksumAlgorithm;  // 0 = 沒有checksum option
+  public boolean crc32c;
+  public boolean fastOpen;
+  public long fastOpenCookie;    // 0 = 要求cookie
   // payload part
   public byte[] data;
+  // 收到的包裹：payload只是receive buffer的view，buffer被重用前有效（需要保留時呼叫detach）
+  public ByteBuffer payload;
 
   public TCPpacket(int seqNum, int ackNum, long time, Boolean[] flags, byte[] data) {
     this.seqNum = seqNum;
@@ -24,11 +92,11 @@ public class TCPpacket {
   }
 
   public boolean verifyChecksum(byte[] data) {
+    // 一次掃過收到的bytes即可驗證，不需要再serialize一次
+    if (!checksumValid(ByteBuffer.wrap(data)))
+      return false;
     this.deserialize(data);// 透過deserialize會將data的資訊填到此TCPpacket裡
-    short oldCheckSum = this.checksum;
-    this.checksum = 0;
-    this.serialize(); // 透過serialize計算新的checksum
-    return oldCheckSum == this.checksum;
+    return true;
   }
 
   public boolean getSyn() { // {S}
@@ -44,29 +112,276 @@ public class TCPpacket {
   }
 
   public boolean isDataPacket() { // {D}
-    return data.length > 0 ? true : false;
+    return getDataLength() > 0 ? true : false;
+  }
+
+  public int getDataLength() {
+    if (data != null)
+      return data.length;
+    return payload != null ? payload.remaining() : 0;
   }
 
   public int getReturnAck() {
-    return this.seqNum + this.data.length;
+    return this.seqNum + getDataLength();
+  }
+
+  public int encodedLength() {
+    return headerSize + optionsLength() + getDataLength();
+  }
+
+  int optionsLength() {
+    int length = 0;
+    if (crc32c)
+      length += CRC32C_OPTION_LENGTH;
+    if (connectionId != 0)
+      length += 6;
+    if (sackPermitted)
+      length += 2;
+    if (sackCount > 0)
+      length += 2 + 8 * sackCount;
+    if (window >= 0)
+      length += 4;
+    if (windowScale >= 0)
+      length += 3;
+    if (streams)
+      length += 2;
+    if (streamId >= 0)
+      length += STREAM_OPTION_LENGTH;
+    if (stripeOffset >= 0)
+      length += STRIPE_OPTION_LENGTH;
+    if (fecPermitted)
+      length += 2;
+    if (compression > 0)
+      length += 3;
+    if (resume)
+      length += resumeDigests == null ? 2 : 7 + 8 * resumeDigests.length;
+    if (merkleRoot != null)
+      length += 2 + MerkleTree.HASH_LENGTH;
+    if (checksumAlgorithm > 0)
+      length += 3;
+    if (fastOpen)
+      length += fastOpenCookie != 0 ? FAST_OPEN_OPTION_LENGTH : 2;
+    if (fecCount > 0)
+      length += FEC_PARITY_OPTION_LENGTH;
+    else if (fecGroup >= 0)
+      length += FEC_OPTION_LENGTH;
+    return length;
+  }
+
+  private void writeOptions(ByteBuffer dst) {
+    // CRC先填0，writeTo最後填上
+    if (crc32c)
+      dst.put((byte) OPT_CRC32C).put((byte) CRC32C_OPTION_LENGTH).putInt(0);
+    if (connectionId != 0) {
+      dst.put((byte) OPT_CONNECTION_ID).put((byte) 6).putInt(connectionId);
+    }
+    if (sackPermitted)
+      dst.put((byte) OPT_SACK_PERMITTED).put((byte) 2);
+    if (sackCount > 0) {
+      dst.put((byte) OPT_SACK).put((byte) (2 + 8 * sackCount));
+      for (int i = 0; i < 2 * sackCount; i++)
+        dst.putInt(sackBlocks[i]);
+    }
+    if (window >= 0)
+      dst.put((byte) OPT_WINDOW).put((byte) 4).putShort((short) window);
+    if (windowScale >= 0)
+      dst.put((byte) OPT_WINDOW_SCALE).put((byte) 3).put((byte) windowScale);
+    if (streams)
+      dst.put((byte) OPT_STREAMS).put((byte) 2);
+    if (streamId >= 0) {
+      dst.put((byte) OPT_STREAM).put((byte) STREAM_OPTION_LENGTH).putInt(streamId).putLong(streamOffset)
+          .put((byte) streamFlags);
+    }
+    if (stripeOffset >= 0) {
+      dst.put((byte) OPT_STRIPE).put((byte) STRIPE_OPTION_LENGTH).putLong(stripeOffset).putLong(stripeLength)
+          .putInt(stripeChecksum);
+    }
+    if (fecPermitted)
+      dst.put((byte) OPT_FEC_PERMITTED).put((byte) 2);
+    if (compression > 0)
+      dst.put((byte) OPT_COMPRESSION).put((byte) 3).put((byte) compression);
+    if (resume && resumeDigests == null)
+      dst.put((byte) OPT_RESUME).put((byte) 2);
+    if (resume && resumeDigests != null) {
+      dst.put((byte) OPT_RESUME).put((byte) (7 + 8 * resumeDigests.length)).putInt(resumeBlocks).put((byte) resumeShift);
+      for (long digest : resumeDigests)
+        dst.putLong(digest);
+    }
+    if (merkleRoot != null)
+      dst.put((byte) OPT_MERKLE_ROOT).put((byte) (2 + MerkleTree.HASH_LENGTH)).put(merkleRoot);
+    if (checksumAlgorithm > 0)
+      dst.put((byte) OPT_CHECKSUM).put((byte) 3).put((byte) checksumAlgorithm);
+    if (fastOpen && fastOpenCookie == 0)
+      dst.put((byte) OPT_FAST_OPEN).put((byte) 2);
+    if (fastOpen && fastOpenCookie != 0)
+      dst.put((byte) OPT_FAST_OPEN).put((byte) FAST_OPEN_OPTION_LENGTH).putLong(fastOpenCookie);
+    if (fecCount > 0) {
+      dst.put((byte) OPT_FEC_PARITY).put((byte) FEC_PARITY_OPTION_LENGTH).putInt((int) fecGroup).putInt(fecEnd)
+          .put((byte) fecCount);
+    } else if (fecGroup >= 0) {
+      dst.put((byte) OPT_FEC).put((byte) FEC_OPTION_LENGTH).putInt((int) fecGroup);
+    }
+  }
+
+  // 解析options，不認得的option直接跳過
+  private boolean readOptions(ByteBuffer src, int offset, int length) {
+    int end = offset + length;
+    int first = offset;
+    sackPermitted = false;
+    sackCount = 0;
+    window = -1;
+    windowScale = -1;
+    streams = false;
+    streamId = -1;
+    stripeOffset = -1;
+    fecPermitted = false;
+    fecGroup = -1;
+    fecCount = 0;
+    compression = 0;
+    resume = false;
+    resumeDigests = null;
+    merkleRoot = null;
+    checksumAlgorithm = 0;
+    crc32c = false;
+    fastOpen = false;
+    fastOpenCookie = 0;
+    while (offset + 2 <= end) {
+      int kind = src.get(offset) & 0xFF;
+      int optionLength = src.get(offset + 1) & 0xFF;
+      if (optionLength < 2 || offset + optionLength > end)
+        return false;
+      switch (kind) {
+        case OPT_CONNECTION_ID:
+          if (optionLength < 6)
+            return false;
+          connectionId = src.getInt(offset + 2);
+          break;
+        case OPT_SACK_PERMITTED:
+          sackPermitted = true;
+          break;
+        case OPT_SACK:
+          int blocks = Math.min((optionLength - 2) / 8, MAX_SACK_BLOCKS);
+          if (sackBlocks == null)
+            sackBlocks = new int[2 * MAX_SACK_BLOCKS];
+          for (int i = 0; i < 2 * blocks; i++)
+            sackBlocks[i] = src.getInt(offset + 2 + 4 * i);
+          sackCount = blocks;
+          break;
+        case OPT_WINDOW:
+          if (optionLength < 4)
+            return false;
+          window = src.getShort(offset + 2) & 0xFFFF;
+          break;
+        case OPT_WINDOW_SCALE:
+          if (optionLength < 3)
+            return false;
+          windowScale = Math.min(src.get(offset + 2) & 0xFF, MAX_WINDOW_SCALE);
+          break;
+        case OPT_STREAMS:
+          streams = true;
+          break;
+        case OPT_STREAM:
+          if (optionLength < STREAM_OPTION_LENGTH)
+            return false;
+          streamId = src.getInt(offset + 2) & Integer.MAX_VALUE;
+          streamOffset = src.getLong(offset + 6);
+          streamFlags = src.get(offset + 14) & 0xFF;
+          break;
+        case OPT_STRIPE:
+          if (optionLength < STRIPE_OPTION_LENGTH)
+            return false;
+          stripeOffset = Math.max(0, src.getLong(offset + 2));
+          stripeLength = Math.max(0, src.getLong(offset + 10));
+          stripeChecksum = src.getInt(offset + 18);
+          break;
+        case OPT_FEC_PERMITTED:
+          fecPermitted = true;
+          break;
+        case OPT_COMPRESSION:
+          if (optionLength < 3)
+            return false;
+          compression = src.get(offset + 2) & 0xFF;
+          break;
+        case OPT_RESUME:
+          resume = true;
+          if (optionLength < 7)
+            break;
+          resumeBlocks = Math.max(0, src.getInt(offset + 2));
+          resumeShift = src.get(offset + 6) & 0xFF;
+          int digests = (optionLength - 7) / 8;
+          // 組數不能超過bitmap的32 bits，每組的block數不能溢位
+          if (digests > MerkleTree.MAX_GROUPS || resumeShift > 30 || MerkleTree.groups(resumeBlocks, resumeShift) != digests)
+            return false;
+          resumeDigests = new long[digests];
+          for (int i = 0; i < digests; i++)
+            resumeDigests[i] = src.getLong(offset + 7 + 8 * i);
+          break;
+        case OPT_MERKLE_ROOT:
+          if (optionLength < 2 + MerkleTree.HASH_LENGTH)
+            return false;
+          merkleRoot = new byte[MerkleTree.HASH_LENGTH];
+          src.get(offset + 2, merkleRoot);
+          break;
+        case OPT_CHECKSUM:
+          if (optionLength < 3)
+            return false;
+          checksumAlgorithm = src.get(offset + 2) & 0xFF;
+          break;
+        case OPT_CRC32C:
+          // 只有第一個option才是checksumValid驗證過的CRC
+          crc32c = offset == first && optionLength == CRC32C_OPTION_LENGTH;
+          break;
+        case OPT_FAST_OPEN:
+          fastOpen = true;
+          if (optionLength >= FAST_OPEN_OPTION_LENGTH)
+            fastOpenCookie = src.getLong(offset + 2);
+          break;
+        case OPT_FEC:
+          if (optionLength < FEC_OPTION_LENGTH)
+            return false;
+          fecGroup = src.getInt(offset + 2) & 0xFFFFFFFFL;
+          break;
+        case OPT_FEC_PARITY:
+          if (optionLength < FEC_PARITY_OPTION_LENGTH)
+            return false;
+          fecGroup = src.getInt(offset + 2) & 0xFFFFFFFFL;
+          fecEnd = src.getInt(offset + 6);
+          fecCount = src.get(offset + 10) & 0xFF;
+          break;
+        default:
+          break;
+      }
+      offset += optionLength;
+    }
+    return true;
+  }
+
+  // 把payload view複製成自己的data，讓packet在receive buffer被重用後仍然有效
+  public TCPpacket detach() {
+    if (data == null) {
+      data = new byte[getDataLength()];
+      if (payload != null)
+        payload.duplicate().get(data);
+      payload = null;
+    }
+    return this;
   }
 
   // todo:序列化
   public byte[] serialize() {
-    // for none data packet
-    int dataLength = 0;
-    // for data packet
-    if (data != null) {
-      dataLength = this.data.length;
-    }
-    int length = headerSize + dataLength;
+    byte[] serializedPacket = new byte[encodedLength()];
+    writeTo(ByteBuffer.wrap(serializedPacket));
+    return serializedPacket;
+  }
 
-    byte[] serializedPacket = new byte[length];
-    ByteBuffer bytebuffer = ByteBuffer.wrap(serializedPacket);
+  // 直接把header和data編碼到dst目前的position，並填上checksum
+  public void writeTo(ByteBuffer dst) {
+    int start = dst.position();
+    int dataLength = getDataLength();
 
-    bytebuffer.putInt(this.seqNum);
-    bytebuffer.putInt(this.ackNum);
-    bytebuffer.putLong(this.timestamp);
+    dst.putInt(this.seqNum);
+    dst.putInt(this.ackNum);
+    dst.putLong(this.timestamp);
 
     int lengthWithFlags = dataLength;
     // {S0 F1 A2}
@@ -76,83 +391,108 @@ public class TCPpacket {
       lengthWithFlags += flags[i] ? 1 : 0; // 把flags加到最右邊 {length/S/F/A}
       i++;
     }
-    bytebuffer.putInt(lengthWithFlags);
-    bytebuffer.putShort((short) 0); // allZero
+    dst.putInt(lengthWithFlags);
+    dst.putShort((short) optionsLength());
     // checksum先填0
-    this.checksum = 0;
-    bytebuffer.putShort(this.checksum);
+    dst.putShort((short) 0);
+    writeOptions(dst);
     // data
     if (data != null) {
-      bytebuffer.put(this.data);
+      dst.put(this.data);
+    } else if (payload != null) {
+      dst.put(payload.duplicate());
     }
-    // 計算checksum
-    if (this.checksum == 0) {
-      bytebuffer.rewind();
-      int CS = calculateChecksum(bytebuffer.array());
-      this.checksum = (short)CS;
-      bytebuffer.putShort(22, this.checksum);
+    // 計算checksum：CRC32C連線上header的checksum保持0
+    if (crc32c) {
+      this.checksum = 0;
+      dst.putInt(start + crcOffset, Checksum.crc32c(dst, start, dst.position() - start, start + crcOffset));
+      return;
     }
-    return serializedPacket;
+    this.checksum = (short) calculateChecksum(dst, start, dst.position() - start);
+    dst.putShort(start + checksumOffset, this.checksum);
   }
 
   // todo:反序列化 : 將serializedPacket的資訊填到本class中
   public TCPpacket deserialize(byte[] serializedPacket) {
-    ByteBuffer byteBuffer = ByteBuffer.wrap(serializedPacket);
+    if (readFrom(ByteBuffer.wrap(serializedPacket)) == null)
+      return null;
+    // data
+    this.data = null;
+    return detach();
+  }
+
+  // 從src目前的position解析header，payload留在src中以slice呈現（不複製）
+  public TCPpacket readFrom(ByteBuffer src) {
+    int start = src.position();
+    int available = src.remaining();
+    if (available < headerSize)
+      return null;
     // seqNum
-    this.seqNum = byteBuffer.getInt();
+    this.seqNum = src.getInt(start);
     // ackNum
-    this.ackNum = byteBuffer.getInt();
+    this.ackNum = src.getInt(start + 4);
     // timestamp
-    this.timestamp = byteBuffer.getLong();
-    int lengthWithFlags = byteBuffer.getInt();
+    this.timestamp = src.getLong(start + 8);
+    int lengthWithFlags = src.getInt(start + 16);
     // length
-    int dataLength = lengthWithFlags >> 3;
-    if (dataLength > serializedPacket.length - headerSize) {
+    int dataLength = lengthWithFlags >>> 3;
+    int optionsLength = src.getShort(start + optionsLengthOffset) & 0xFFFF;
+    if (dataLength > available - headerSize - optionsLength) {
       System.out.println("debug: dataLength too long");
       return null;
     }
     // flags
     int i = 0;
     while (i < 3) {
-      flags[2 - i] = lengthWithFlags % 2 == 1; // {length/S/F/A}
+      flags[2 - i] = (lengthWithFlags & 1) == 1; // {length/S/F/A}
       lengthWithFlags = lengthWithFlags >> 1;
       i++;
     }
-    // allZero
-    byteBuffer.getShort();
     // checksum
-    this.checksum = byteBuffer.getShort();
+    this.checksum = src.getShort(start + checksumOffset);
+    // options
+    if (!readOptions(src, start + headerSize, optionsLength))
+      return null;
     // data
-    this.data = new byte[dataLength];
-    byteBuffer.get(data);
+    int dataStart = start + headerSize + optionsLength;
+    ByteBuffer view = src.duplicate();
+    view.position(dataStart);
+    view.limit(dataStart + dataLength);
+    this.payload = view.slice();
+    this.data = null;
     return this;
   }
 
+  // 一次掃描驗證：包含checksum欄位一起加總，正確的包裹結果為0
+  // 第一個option是OPT_CRC32C時改為比對CRC32C（連線是否必須使用CRC32C由TCPHandler檢查）
+  public static boolean checksumValid(ByteBuffer src) {
+    int start = src.position();
+    if (src.remaining() < headerSize)
+      return false;
+    int optionsLength = src.getShort(start + optionsLengthOffset) & 0xFFFF;
+    int length = headerSize + optionsLength + (src.getInt(start + 16) >>> 3);
+    if (length > src.remaining() || length < headerSize)
+      return false;
+    if (optionsLength >= CRC32C_OPTION_LENGTH && src.get(start + headerSize) == OPT_CRC32C
+        && src.get(start + headerSize + 1) == CRC32C_OPTION_LENGTH)
+      return Checksum.crc32c(src, start, length, start + crcOffset) == src.getInt(start + crcOffset);
+    return calculateChecksum(src, start, length) == 0;
+  }
+
   // done: checksum
   public static int calculateChecksum(byte[] data) {
-    // 1. 准备数据
-    int length = data.length;
-    // 2. 计算校验和
-    int sum = 0;
-    // 将数据按16位分割并求和
-    for (int i = 0; i < length - 1; i += 2) {
-      int segment = (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
-      sum += segment;
-      // 处理进位
-      if ((sum & 0xFFFF0000) != 0) {
-        sum = (sum & 0xFFFF) + 1;
-      }
-    }
-    // 如果数据长度为奇数，最后一个字节单独处理
-    if (length % 2 != 0) {
-      int lastSegment = (data[length - 1] & 0xFF) << 8;
-      sum += lastSegment;
-      if ((sum & 0xFFFF0000) != 0) {
-        sum = (sum & 0xFFFF) + 1;
-      }
-    }
-    // 3. 求反码
-    int checksum = ~sum & 0xFFFF;
-    return checksum;
+    return calculateChecksum(data, 0, data.length);
+  }
+
+  // ones'-complement sum取補數（Checksum：一次加多個bytes，有Vector API時用SIMD）
+  public static int calculateChecksum(ByteBuffer buffer, int offset, int length) {
+    if (buffer.hasArray())
+      return calculateChecksum(buffer.array(), buffer.arrayOffset() + offset, length);
+    // direct buffer：以absolute get讀取，不複製到heap
+    return ~Checksum.onesSum(buffer, offset, length) & 0xFFFF;
+  }
+
+  public static int calculateChecksum(byte[] data, int offset, int length) {
+    return ~Checksum.onesSum(data, offset, length) & 0xFFFF;
   }
 }
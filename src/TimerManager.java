@@ -1,24 +1,71 @@
-import java.util.PriorityQueue;
-import java.util.Timer;
+import java.util.ArrayDeque;
 
 // Manages timeout packets by adding and removing stored timeout packets
+// 每個連線只有一個重送timer（RFC 6298）：掛在共用的TimingWheel上，ACK時重新啟動
 public class TimerManager {
-	PriorityQueue<TimerPacket> packetBuffer = new PriorityQueue<>();
-	final Timer timer = new Timer();
+	static final long MIN_TO = 200_000_000L;   // 200ms
+	static final long MAX_TO = 60_000_000_000L; // 60s
+	static final int MAX_RETRANS = 16;
+	// receiver的FIN+ACK（LAST_ACK）最多重送幾次：所有資料都已經收到，sender的TIME_WAIT只等得到第一次重送
+	static final int LAST_ACK_RETRANS = 2;
+
+	// 尚未被ACK的包裹，依送出順序（seqNum遞增）排列
+	ArrayDeque<TimerPacket> packetBuffer = new ArrayDeque<>();
+	long inFlightBytes;
+	final DeliveryRateSampler rateSampler = new DeliveryRateSampler();
+	private boolean rateSampleReady;
+	final TimingWheel wheel;
 	TCPHandler tcpHandler;
 	boolean first;
 	long to;  //to
-	long ertt;    // ERTT 
+	long ertt;    // ERTT
 	long edev;    // EDEV
-	
+	int backoff = 1; // timeout後RTO加倍，收到新的ACK後恢復
+	// 遺失之後進入recovery直到recoverSeq被ACK：
+	// timeout -> recoverSeq之前還沒重送過的包裹都當作遺失，隨著ACK回來依序重送（go-back）
+	// 三次重複ACK -> NewReno fast recovery，每個partial ACK重送下一個洞
+	boolean inRecovery;
+	int recoverSeq;
+	int recoveryBurst;
+	boolean fastRecovery;
+	static final int TIMEOUT_RECOVERY_BURST = 2;
+	static final int FAST_RECOVERY_BURST = 1;
+	// SACK scoreboard：被SACK的包裹不算在inFlightBytes中；最前面的洞之上有DUP_THRESH個包裹被SACK就視為遺失（RFC 6675）
+	static final int DUP_THRESH = 3;
+	int sackedNum;
+	boolean hasSacked;
+	int highestSacked;
+	// receiver通告的視窗右緣（seq）；收到第一個通告之前不限制
+	private boolean peerWindowKnown;
+	private int peerWindowEdge;
+	private int neededWindowEdge; // sender等待中的segment需要的右緣
+	// persist timer：視窗不足一個segment且沒有包裹在路上時定期送zero window probe
+	private TimingWheel.Timeout persistTimer;
+	private int persistBackoff = 1;
+	private int unansweredProbes; // 連續沒有換回window update的probe數，到MAX_RETRANS就放棄連線
+	private TimingWheel.Timeout rtoTimer;
+	private int timerGeneration;
+	private long rtoDeadline;
+	private long timerFireAt;
+
 
 	public TimerManager(TCPHandler tcpHander) {
+		this(tcpHander, TimingWheel.shared());
+	}
+
+	public TimerManager(TCPHandler tcpHander, TimingWheel wheel) {
 		this.tcpHandler = tcpHander;
+		this.wheel = wheel;
 		this.to = (long) 1e9;
 	}
+	// SessionCache沿用的RTT：只決定第一個RTO，第一個量到的RTT仍然直接取代它
+	public void seed(long srtt, long rttvar) {
+		to = srtt + 4 * rttvar;
+	}
+
 	//gettrt
 	public long getTO() {
-		return to;
+		return Math.min(MAX_TO, Math.max(MIN_TO, to) * backoff);
 	}
 
 	public void updateTO(TCPpacket packet) {
@@ -27,77 +74,452 @@ public class TimerManager {
 			edev = 0;
 			to = 2 * ertt;
 			first = true;
+			tcpHandler.metrics.rtt.record(ertt / 1000);
+			tcpHandler.recordEvent(TraceRecorder.RTT, packet.seqNum, ertt / 1000);
 		} else {
 			long srtt = System.nanoTime() - packet.timestamp;
 			long sdev = Math.abs(srtt - ertt);
 			ertt = 7 * ertt / 8 + 1 * srtt / 8;
 			edev = 3 * edev / 4 + 1 * sdev / 4;
 			to = ertt + 4 * edev;
+			tcpHandler.metrics.rtt.record(srtt / 1000);
+			tcpHandler.recordEvent(TraceRecorder.RTT, packet.seqNum, srtt / 1000);
 		}
+		tcpHandler.metrics.rto.record(getTO() / 1000);
 	}
 
-	
-	// 為packet增加（包裹）計時器
-	// 將其加到buffer中
+
+	// 把packet加到buffer中；timer沒有在跑的話啟動timer
 	public void startTimerOnPacket(TCPpacket tcpPacket, int curRetransNum) {
 		synchronized (packetBuffer) {
-			TimerPacket timerPacket = new TimerPacket(this, tcpPacket, curRetransNum);
+			TimerPacket timerPacket = new TimerPacket(tcpPacket, curRetransNum);
+			rateSampler.onSent(timerPacket, inFlightBytes, System.nanoTime());
 			packetBuffer.add(timerPacket);
-			timer.schedule(timerPacket, (int) (getTO() / 1000000));
+			inFlightBytes += tcpPacket.getDataLength();
+			if (rtoTimer == null)
+				armTimer();
 		}
 	}
 
-	//三次ACK resend packet
-	public void resendPacket(TCPpacket ackPacket) {
+	// 呼叫時需持有packetBuffer
+	// ACK時只移動deadline，不重新schedule（每個ACK不需配置新的timeout）；timer提早到期時再補排剩下的時間
+	private void armTimer() {
+		long now = System.nanoTime();
+		rtoDeadline = now + getTO();
+		if (rtoTimer != null && rtoTimer.isPending() && timerFireAt - rtoDeadline <= 0)
+			return;
+		scheduleTimer(now);
+	}
+
+	private void scheduleTimer(long now) {
+		if (rtoTimer != null)
+			rtoTimer.cancel();
+		final int generation = ++timerGeneration;
+		timerFireAt = rtoDeadline;
+		rtoTimer = wheel.schedule(() -> onTimeout(generation), rtoDeadline - now);
+	}
+
+	private void cancelTimer() {
+		if (rtoTimer != null) {
+			rtoTimer.cancel();
+			rtoTimer = null;
+		}
+		timerGeneration++;
+	}
+
+	// timer到期：重送最早還沒被ACK的包裹，RTO加倍後重新啟動timer
+	private void onTimeout(int generation) {
+		TimerPacket oldest;
 		synchronized (packetBuffer) {
+			if (generation != timerGeneration)
+				return;
+			long now = System.nanoTime();
+			if (rtoDeadline - now > 0) {
+				scheduleTimer(now);
+				return;
+			}
+			rtoTimer = null;
+			oldest = packetBuffer.peek();
+			if (oldest == null)
+				return;
+			oldest.curNumRetrans += 1;
+			tcpHandler.congestion.onRetransmissionTimeout(inFlightBytes);
+			startRecovery(TIMEOUT_RECOVERY_BURST);
+			oldest.resentInRecovery = true;
+			if (oldest.curNumRetrans < MAX_RETRANS) {
+				backoff = (int) Math.min(backoff * 2L, MAX_TO / MIN_TO);
+				armTimer();
+			}
+			tcpHandler.recordEvent(TraceRecorder.TIMEOUT, oldest.tcpPacket.seqNum, backoff);
+		}
+		resendPacket(oldest, TraceRecorder.CAUSE_TIMEOUT);
+	}
+
+	// 呼叫時需持有packetBuffer
+	private void startRecovery(int burst) {
+		inRecovery = true;
+		fastRecovery = burst == FAST_RECOVERY_BURST;
+		recoveryBurst = burst;
+		recoverSeq = packetBuffer.peekLast().tcpPacket.getReturnAck();
+		for (TimerPacket packet : packetBuffer)
+			packet.resentInRecovery = false;
+	}
+
+	//三次ACK：重送ackNum開始的包裹並進入fast recovery（已經在recovery中就不再降cwnd）
+	public void fastRetransmit(int ackNum) {
+		TimerPacket found = null;
+		synchronized (packetBuffer) {
+			if (inRecovery)
+				return;
 			for (TimerPacket thePacket : packetBuffer) {
-				if (thePacket.tcpPacket.seqNum == ackPacket.ackNum) {
-					resendPacket(thePacket);
-					return;
+				if (thePacket.tcpPacket.seqNum == ackNum) {
+					found = thePacket;
+					break;
+				}
+			}
+			if (found == null || awaitingParity(found))
+				return;
+			startFastRecovery(found);
+		}
+		resendPacket(found, TraceRecorder.CAUSE_DUPACK);
+	}
+
+	// 呼叫時需持有packetBuffer
+	private void startFastRecovery(TimerPacket lost) {
+		tcpHandler.congestion.onCongestionEvent(inFlightBytes);
+		startRecovery(FAST_RECOVERY_BURST);
+		lost.resentInRecovery = true;
+		lost.curNumRetrans += 1;
+	}
+
+	// ACK帶著SACK blocks：更新scoreboard，必要時進入fast recovery或重送下一個洞
+	// 會讓ackNum前進的ACK由之後的removePacket負責重送，這裡只處理重複ACK
+	public void onSack(TCPpacket ack) {
+		TimerPacket[] resend = null;
+		synchronized (packetBuffer) {
+			long now = System.nanoTime();
+			boolean newlySacked = false;
+			for (TimerPacket packet : packetBuffer) {
+				if (packet.sacked || !packet.tcpPacket.isDataPacket())
+					continue;
+				int start = packet.tcpPacket.seqNum;
+				int end = packet.tcpPacket.getReturnAck();
+				for (int i = 0; i < ack.sackCount; i++) {
+					if (start - ack.sackBlocks[2 * i] >= 0 && end - ack.sackBlocks[2 * i + 1] <= 0) {
+						if (!newlySacked && !rateSampleReady)
+							rateSampler.begin();
+						packet.sacked = true;
+						newlySacked = true;
+						sackedNum += 1;
+						tcpHandler.metrics.sacked.increment();
+						inFlightBytes -= packet.tcpPacket.getDataLength();
+						rateSampler.onAcked(packet, now);
+						tcpHandler.onSegmentAcked(packet.tcpPacket);
+						if (!hasSacked || end - highestSacked > 0)
+							highestSacked = end;
+						hasSacked = true;
+						break;
+					}
 				}
 			}
+			if (!newlySacked)
+				return;
+			if (tcpHandler.fec != null)
+				markMissing();
+			rateSampler.generate(inFlightBytes);
+			rateSampleReady = true;
+			packetBuffer.notifyAll();
+			TimerPacket head = packetBuffer.peek();
+			if (head == null || ack.ackNum - head.tcpPacket.seqNum > 0)
+				return;
+			if (!inRecovery) {
+				if (head.sacked || sackedNum < DUP_THRESH || awaitingParity(head))
+					return;
+				startFastRecovery(head);
+				resend = new TimerPacket[] { head };
+			} else {
+				resend = nextRecoveryPackets(ack.ackNum);
+			}
+		}
+		if (resend != null) {
+			for (TimerPacket packet : resend) {
+				if (packet != null)
+					resendPacket(packet, TraceRecorder.CAUSE_SACK);
+			}
 		}
 	}
 
-	//重新發送包裹
-	public void resendPacket(TimerPacket packet) {
-		if (packet.curNumRetrans >= 16) {
+	// 呼叫時需持有packetBuffer
+	// 最高SACK之下沒被SACK的包裹（洞）：每個只算一次
+	private void markMissing() {
+		for (TimerPacket packet : packetBuffer) {
+			if (packet.tcpPacket.getReturnAck() - highestSacked > 0)
+				break;
+			if (!packet.sacked && !packet.missing && packet.tcpPacket.isDataPacket()) {
+				packet.missing = true;
+				tcpHandler.fec.onLoss();
+			}
+		}
+	}
+
+	// 呼叫時需持有packetBuffer
+	// FEC：洞是它的group中唯一的洞，而且之後的group被SACK的不到DUP_THRESH個（parity可能還在路上或group還沒送完），
+	// receiver還可能用parity補回，先不當作遺失；補不回來時之後的SACK或RTO會開始recovery
+	private boolean awaitingParity(TimerPacket hole) {
+		long group = hole.tcpPacket.fecGroup;
+		if (group < 0 || !hasSacked)
+			return false;
+		int later = 0;
+		for (TimerPacket packet : packetBuffer) {
+			if (packet == hole)
+				continue;
+			long other = packet.tcpPacket.fecGroup;
+			if (other == group) {
+				if (!packet.sacked && highestSacked - packet.tcpPacket.getReturnAck() >= 0)
+					return false; // 同一個group有第二個洞
+			} else if (packet.sacked && (int) other - (int) group > 0 && ++later >= DUP_THRESH) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//重新發送包裹（cause：TraceRecorder.CAUSE_*）
+	public void resendPacket(TimerPacket packet, int cause) {
+		if (packet.curNumRetrans >= MAX_RETRANS) {
 			System.out.println("debug: Erorr: max retransmissions reached ... closing connection");
 			tcpHandler.endThread();
 			return;
 		}
-
-		synchronized (packetBuffer) {
-			packetBuffer.remove(packet);
-			startTimerOnPacket(packet.tcpPacket, packet.curNumRetrans);
-			tcpHandler.resendTCPPacket(packet.tcpPacket);
+		if (packet.tcpPacket.getFin() && tcpHandler.waitingForClose && packet.curNumRetrans > LAST_ACK_RETRANS) {
+			tcpHandler.endThread();
+			return;
 		}
+		// 送出時會拿handler的lock，不能在持有packetBuffer時呼叫（endThread的順序相反，會deadlock）
+		tcpHandler.resendTCPPacket(packet.tcpPacket, cause);
 	}
 
 	//把buffer中 < ackNum 的包裹移除： 能收到大於包裹的ackNum 代表小於的包裹已被收到所以才能有更大數字的ackNum
-	public void removePacket(int ackNum) {
+	// 回傳ACK之前的in-flight bytes（判斷是否被cwnd限制）
+	public long removePacket(int ackNum) {
+		TimerPacket[] resend = null;
+		long priorInFlight;
 		synchronized (packetBuffer) {
-			while (!packetBuffer.isEmpty() && packetBuffer.peek().tcpPacket.getReturnAck() <= ackNum) {
-				TimerPacket timerPacket = packetBuffer.poll();
-				timerPacket.cancel();
+			priorInFlight = inFlightBytes;
+			boolean acked = false;
+			long now = System.nanoTime();
+			if (!rateSampleReady)
+				rateSampler.begin();
+			while (!packetBuffer.isEmpty() && packetBuffer.peek().tcpPacket.getReturnAck() - ackNum <= 0) {
+				TimerPacket packet = packetBuffer.poll();
+				if (packet.sacked) {
+					// 已經在SACK時從in-flight扣除並取樣過
+					sackedNum -= 1;
+					acked = true;
+					continue;
+				}
+				inFlightBytes -= packet.tcpPacket.getDataLength();
+				rateSampler.onAcked(packet, now);
+				tcpHandler.onSegmentAcked(packet.tcpPacket);
+				acked = true;
+			}
+			if (sackedNum == 0)
+				hasSacked = false;
+			if (acked) {
+				rateSampler.generate(inFlightBytes);
+				rateSampleReady = true;
+				backoff = 1;
+				// RFC 6298 5.2/5.3：全部ACK完就停掉timer，否則重新啟動
+				if (packetBuffer.isEmpty())
+					cancelTimer();
+				else
+					armTimer();
+				if (inRecovery)
+					resend = nextRecoveryPackets(ackNum);
+			}
+			packetBuffer.notifyAll();
+		}
+		if (resend != null) {
+			for (TimerPacket packet : resend) {
+				if (packet != null)
+					resendPacket(packet, TraceRecorder.CAUSE_RECOVERY);
 			}
-			timer.purge();
-			packetBuffer.notify();
 		}
+		return priorInFlight;
+	}
+
+	// 呼叫時需持有packetBuffer
+	private TimerPacket[] nextRecoveryPackets(int ackNum) {
+		if (ackNum - recoverSeq >= 0 || packetBuffer.isEmpty()) {
+			inRecovery = false;
+			return null;
+		}
+		TimerPacket[] resend = new TimerPacket[recoveryBurst];
+		int count = 0;
+		// fast recovery有SACK資訊時只重送最高SACK之下的洞；timeout recovery把沒被SACK的都重送
+		int limit = fastRecovery && hasSacked && highestSacked - recoverSeq < 0 ? highestSacked : recoverSeq;
+		for (TimerPacket packet : packetBuffer) {
+			if (count == recoveryBurst || packet.tcpPacket.seqNum - limit >= 0)
+				break;
+			if (!packet.resentInRecovery && !packet.sacked) {
+				packet.resentInRecovery = true;
+				packet.curNumRetrans += 1;
+				resend[count++] = packet;
+			}
+		}
+		return resend;
 	}
 
 	public void removeAllPacket() {
 		synchronized (packetBuffer) {
-			timer.cancel();
+			cancelTimer();
+			if (persistTimer != null) {
+				persistTimer.cancel();
+				persistTimer = null;
+			}
+			inRecovery = false;
 			packetBuffer.clear();
-			packetBuffer.notify();
+			inFlightBytes = 0;
+			sackedNum = 0;
+			hasSacked = false;
+			packetBuffer.notifyAll();
+		}
+	}
+	// 上一次removePacket產生的delivery rate sample，RTT由呼叫者依ACK的timestamp echo填入；沒有新的sample時回傳null
+	public DeliveryRateSampler.RateSample takeRateSample(long rttNanos) {
+		synchronized (packetBuffer) {
+			if (!rateSampleReady)
+				return null;
+			rateSampleReady = false;
+			rateSampler.sample.rttNanos = rttNanos;
+			return rateSampler.sample;
 		}
 	}
+
+	// sender沒有新資料可送（檔案送完）
+	public void markAppLimited() {
+		synchronized (packetBuffer) {
+			rateSampler.markAppLimited(inFlightBytes);
+		}
+	}
+
+	public boolean isInRecovery() {
+		synchronized (packetBuffer) {
+			return inRecovery;
+		}
+	}
+
+	// 收到ACK上的視窗通告，回傳視窗右緣是否有改變（window update不算重複ACK）
+	public boolean updatePeerWindow(int ackNum, long window) {
+		synchronized (packetBuffer) {
+			int edge = ackNum + (int) Math.min(window, Integer.MAX_VALUE / 2);
+			boolean changed = !peerWindowKnown || edge != peerWindowEdge;
+			peerWindowEdge = edge;
+			peerWindowKnown = true;
+			unansweredProbes = 0;
+			if (edge - neededWindowEdge >= 0) {
+				if (persistTimer != null) {
+					persistTimer.cancel();
+					persistTimer = null;
+				}
+				persistBackoff = 1;
+			}
+			if (changed)
+				packetBuffer.notifyAll();
+			return changed;
+		}
+	}
+
+	// 呼叫時需持有packetBuffer
+	private boolean blockedByPeerWindow(int nextSeq, int segmentBytes) {
+		neededWindowEdge = nextSeq + segmentBytes;
+		return peerWindowKnown && neededWindowEdge - peerWindowEdge > 0;
+	}
+
+	// 呼叫時需持有packetBuffer
+	private void armPersistTimer() {
+		long delay = Math.min(MAX_TO, getTO() * persistBackoff);
+		persistTimer = wheel.schedule(this::onPersistTimeout, delay);
+	}
+
+	private void onPersistTimeout() {
+		boolean giveUp;
+		synchronized (packetBuffer) {
+			persistTimer = null;
+			// 視窗夠大時updatePeerWindow會取消timer；有包裹在路上時由它們的ACK帶回視窗
+			if (!tcpHandler.running() || !peerWindowKnown || !packetBuffer.isEmpty() || peerWindowEdge - neededWindowEdge >= 0)
+				return;
+			giveUp = ++unansweredProbes > MAX_RETRANS;
+			if (!giveUp) {
+				persistBackoff = (int) Math.min(persistBackoff * 2L, MAX_TO / MIN_TO);
+				tcpHandler.metrics.windowProbes.increment();
+				tcpHandler.recordEvent(TraceRecorder.PROBE, neededWindowEdge, persistBackoff);
+				armPersistTimer();
+			}
+		}
+		// endThread會拿handler的lock，跟resendPacket一樣在放掉packetBuffer之後才呼叫
+		if (giveUp) {
+			System.out.println("debug: Error: max window probes reached ... closing connection");
+			tcpHandler.endThread();
+		} else {
+			tcpHandler.sendWindowProbe();
+		}
+	}
+
+	// sliding window、cwnd與receiver的視窗同時管控：包裹數不超過sws，in-flight bytes加上這次要送的不超過cwnd，
+	// 送完的seq不超過receiver通告的右緣（沒有任何包裹在路上時cwnd一定可以送，避免cwnd小於一個segment時卡住）
+	public void waitForSendWindow(int sws, int segmentBytes, int nextSeq) {
+		synchronized (packetBuffer) {
+			try {
+				// 被sws而不是cwnd擋住時，這段期間的rate sample不代表網路頻寬
+				if (packetBuffer.size() >= sws && inFlightBytes + segmentBytes <= tcpHandler.congestion.getCwnd())
+					rateSampler.markAppLimited(inFlightBytes);
+				// 連線結束時（endThread -> removeAllPacket會notifyAll）不再等，也不再重新arm persist timer
+				while (tcpHandler.running() && (packetBuffer.size() >= sws
+						|| (!packetBuffer.isEmpty() && inFlightBytes + segmentBytes > tcpHandler.congestion.getCwnd())
+						|| blockedByPeerWindow(nextSeq, segmentBytes))) {
+					// 視窗關閉而且沒有包裹在路上：沒有ACK會再回來，靠probe得知視窗重新打開
+					if (packetBuffer.isEmpty() && persistTimer == null && blockedByPeerWindow(nextSeq, segmentBytes))
+						armPersistTimer();
+					packetBuffer.wait();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// batch版本：等到至少可以送一個segment後，回傳現在可以連續送出的segment數（最多maxSegments）
+	// 第一個之後的segment都以segmentBytes估計，最後一批可能因此少送一個，不會卡住
+	public int waitForSendWindow(int sws, int segmentBytes, int nextSeq, int maxSegments) {
+		synchronized (packetBuffer) {
+			waitForSendWindow(sws, segmentBytes, nextSeq);
+			long cwnd = tcpHandler.congestion.getCwnd();
+			long inFlight = inFlightBytes + segmentBytes;
+			int end = nextSeq + segmentBytes;
+			int count = 1;
+			while (count < maxSegments && packetBuffer.size() + count < sws && inFlight + segmentBytes <= cwnd
+					&& !(peerWindowKnown && (end + segmentBytes) - peerWindowEdge > 0)) {
+				count += 1;
+				inFlight += segmentBytes;
+				end += segmentBytes;
+			}
+			return count;
+		}
+	}
+
+	// 還沒被ACK的包裹數
+	public int outstandingPackets() {
+		synchronized (packetBuffer) {
+			return packetBuffer.size();
+		}
+	}
+
 	//silde window 管控控制 buffer
 	public void waitForMoreBufferSpace(int num) {
 		synchronized (packetBuffer) {
 			try {
-				while (packetBuffer.size() > num)
+				while (packetBuffer.size() > num && tcpHandler.running())
 					packetBuffer.wait();
 			} catch (InterruptedException ex) {
 				Thread.currentThread().interrupt();
@@ -1,26 +1,21 @@
-import java.util.TimerTask;
 
-//為每一個packet製造timer(per thread)
-public class TimerPacket extends TimerTask implements Comparable<TimerPacket>{
+//還沒被ACK的packet與它的重送次數（timer本身由TimerManager統一管理）
+public class TimerPacket {
 
 	public int curNumRetrans;
 	public TCPpacket tcpPacket;
-	private TimerManager timerManager;
+	boolean resentInRecovery;
+	boolean sacked; // receiver已經以SACK回報收到，不需要重送
+	boolean missing; // 之後的包裹被SACK而它沒有：FEC估計遺失率用
+	// delivery rate取樣用：送出時的狀態（DeliveryRateSampler）
+	long sentTime;
+	long delivered;
+	long deliveredTime;
+	long firstSentTime;
+	boolean appLimited;
 
-	public TimerPacket(TimerManager timemanager, TCPpacket tcpPacket, int curNumRetrans){
-		this.timerManager = timemanager;
+	public TimerPacket(TCPpacket tcpPacket, int curNumRetrans){
 		this.tcpPacket = tcpPacket;
 		this.curNumRetrans = curNumRetrans;
 	}
-
-	// Thread for timer packet
-	public void run(){
-		curNumRetrans += 1;
-		timerManager.resendPacket(this);
-	}
-
-	@Override
-	public int compareTo(TimerPacket other) {
-		return this.tcpPacket.seqNum - other.tcpPacket.seqNum;
-	}
 }
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+
+// Hashed timing wheel：所有連線共用一個timer thread，arm/cancel都是O(1)
+// 每個slot是一個雙向linked list；超過一圈的timeout用rounds記錄還要轉幾圈
+public class TimingWheel {
+  private static final TimingWheel SHARED = new TimingWheel(1_000_000L, 512);
+
+  private final long tickNanos;
+  private final Timeout[] wheel;
+  private final int mask;
+  private final Thread worker;
+  private long tick;
+  private volatile boolean stopped;
+
+  public static TimingWheel shared() {
+    return SHARED;
+  }
+
+  public TimingWheel(long tickNanos, int slots) {
+    int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+    this.tickNanos = tickNanos;
+    this.wheel = new Timeout[size];
+    this.mask = size - 1;
+    this.worker = new Thread(this::runWorker, "timing-wheel");
+    this.worker.setDaemon(true);
+    this.worker.start();
+  }
+
+  public final class Timeout {
+    private final Runnable task;
+    private long rounds;
+    private int slot = -1;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task) {
+      this.task = task;
+    }
+
+    // 已經到期或已取消時回傳false
+    public boolean cancel() {
+      synchronized (TimingWheel.this) {
+        if (slot < 0)
+          return false;
+        unlink(this);
+        return true;
+      }
+    }
+
+    public boolean isPending() {
+      synchronized (TimingWheel.this) {
+        return slot >= 0;
+      }
+    }
+  }
+
+  public Timeout schedule(Runnable task, long delayNanos) {
+    Timeout timeout = new Timeout(task);
+    long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+    synchronized (this) {
+      long target = tick + ticks;
+      timeout.rounds = (ticks - 1) / wheel.length;
+      timeout.slot = (int) (target & mask);
+      Timeout head = wheel[timeout.slot];
+      timeout.next = head;
+      if (head != null)
+        head.prev = timeout;
+      wheel[timeout.slot] = timeout;
+    }
+    return timeout;
+  }
+
+  public void stop() {
+    stopped = true;
+    worker.interrupt();
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.prev != null)
+      timeout.prev.next = timeout.next;
+    else
+      wheel[timeout.slot] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.prev = timeout.prev;
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.slot = -1;
+  }
+
+  private void runWorker() {
+    long start = System.nanoTime();
+    ArrayList<Timeout> expired = new ArrayList<>();
+    while (!stopped) {
+      long deadline = start + (tick + 1) * tickNanos;
+      long sleep = deadline - System.nanoTime();
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+      synchronized (this) {
+        tick += 1;
+        int slot = (int) (tick & mask);
+        Timeout timeout = wheel[slot];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.rounds > 0) {
+            timeout.rounds -= 1;
+          } else {
+            unlink(timeout);
+            expired.add(timeout);
+          }
+          timeout = next;
+        }
+      }
+      // 在lock外執行，task裡可以再schedule/cancel
+      for (Timeout timeout : expired) {
+        try {
+          timeout.task.run();
+        } catch (RuntimeException e) {
+          System.out.println("debug: timer task failed: " + e);
+        }
+      }
+      expired.clear();
+    }
+  }
+}
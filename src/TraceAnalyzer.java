@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+// 讀取TraceRecorder（-record）寫的binary trace，離線重建每個連線的傳輸過程
+// java -cp bin TraceAnalyzer <traceFile> [summary | intervals <ms> | tsg | rtt] [-c <connection>]
+//   summary：每個連線的傳送量、throughput、重送（依原因）、timeout、RTT分佈
+//   intervals：每個時間區間的throughput、送出/重送的segment、RTT、RTO與cwnd
+//   tsg：time-sequence graph的CSV（time_ms,connection,event,offset,end），offset從連線的第一個data byte算
+//   rtt：RTT sample與RTO的CSV（time_ms,connection,rtt_us,rto_us）
+public class TraceAnalyzer {
+  private static final String[] CAUSES = { "", "timeout", "dupack", "sack", "recovery" };
+
+  private final ByteBuffer records;
+  private final long count;
+  private final long epochMillis;
+  private final long droppedNum;
+  private final boolean complete; // header帶record數：最後一個連線有正常結束
+  // 目前讀到的record
+  private long time;
+  private int connection;
+  private int event;
+  private int flags;
+  private int seq;
+  private int ack;
+  private int length;
+  private int rto;
+  private int value;
+
+  TraceAnalyzer(String fileName) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      if (channel.size() < TraceRecorder.HEADER_SIZE)
+        throw new IOException("Not a trace file: " + fileName);
+      MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      file.order(ByteOrder.LITTLE_ENDIAN);
+      byte[] magic = new byte[TraceRecorder.MAGIC.length];
+      file.get(magic);
+      if (!Arrays.equals(magic, TraceRecorder.MAGIC) || file.getInt() != TraceRecorder.VERSION
+          || file.getInt() != TraceRecorder.RECORD_SIZE)
+        throw new IOException("Not a trace file: " + fileName);
+      epochMillis = file.getLong();
+      long written = file.getLong();
+      droppedNum = file.getLong();
+      // header的record數在最後一個連線結束時才寫入：process中途結束時掃描整個檔案
+      long available = (channel.size() - TraceRecorder.HEADER_SIZE) / TraceRecorder.RECORD_SIZE;
+      complete = written > 0;
+      count = complete ? Math.min(written, available) : available;
+      file.position(TraceRecorder.HEADER_SIZE);
+      records = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  // 讀第index個record；沒有寫完的record回傳false
+  private boolean read(long index) {
+    int at = (int) (index * TraceRecorder.RECORD_SIZE);
+    int word = records.getInt(at + 8);
+    event = word >>> 16 & 0xFF;
+    if (event == 0)
+      return false;
+    connection = word & 0xFFFF;
+    flags = word >>> 24 & 0xFF;
+    time = records.getLong(at);
+    seq = records.getInt(at + 12);
+    ack = records.getInt(at + 16);
+    length = records.getInt(at + 20);
+    rto = records.getInt(at + 24);
+    value = records.getInt(at + 28);
+    return true;
+  }
+
+  // 一個連線的狀態與統計
+  private static final class Flow {
+    final int id;
+    int role = -1;
+    long records;
+    long firstTime = -1;
+    long lastTime;
+    boolean hasBase;
+    int base; // 第一個data byte的seq
+    long progress; // sender：被ACK的bytes；receiver：收到的最高offset
+    long progressTime; // progress最後一次前進的時間（throughput不算TIME_WAIT）
+    long finOffset = Long.MAX_VALUE; // FIN佔的seq不算在progress裡
+    long dataSegments;
+    long paritySegments;
+    long dataBytes;
+    long[] retransmits = new long[CAUSES.length];
+    long retransmittedBytes;
+    long timeouts;
+    long probes;
+    long localDrops;
+    long duplicateData;
+    long receivedSegments;
+    int maxBackoff;
+    long lastCwnd;
+    long maxCwnd;
+    int lastRto;
+    int maxRto;
+    final Histogram rtt = new Histogram();
+
+    Flow(int id) {
+      this.id = id;
+    }
+
+    String name() {
+      return "connection " + id + (role == TraceRecorder.ROLE_SENDER ? " (sender)"
+          : role == TraceRecorder.ROLE_RECEIVER ? " (receiver)" : "");
+    }
+
+    long offset(int seq) {
+      return (seq - base) & 0xFFFFFFFFL;
+    }
+
+    void advance(long offset, long time) {
+      if (offset > progress) {
+        progress = offset;
+        progressTime = time;
+      }
+    }
+
+    long retransmitted() {
+      long sum = 0;
+      for (long n : retransmits)
+        sum += n;
+      return sum;
+    }
+  }
+
+  // 一個時間區間的統計（intervals）
+  private static final class Interval {
+    long progress = -1; // 區間結束時的progress
+    long sent;
+    long retransmitted;
+    long timeouts;
+    long rttSum;
+    long rttNum;
+    int rto;
+    long cwnd;
+  }
+
+  // 讀完所有record；每個record之後呼叫onRecord（可以是null）
+  private TreeMap<Integer, Flow> scan(int only, BiConsumer<Flow, TraceAnalyzer> onRecord) {
+    TreeMap<Integer, Flow> flows = new TreeMap<>();
+    for (long i = 0; i < count; i++) {
+      if (!read(i) || (only >= 0 && connection != only))
+        continue;
+      Flow flow = flows.computeIfAbsent(connection, Flow::new);
+      update(flow);
+      if (onRecord != null)
+        onRecord.accept(flow, this);
+    }
+    return flows;
+  }
+
+  private void update(Flow flow) {
+    flow.records += 1;
+    if (flow.firstTime < 0)
+      flow.firstTime = time;
+    flow.lastTime = Math.max(flow.lastTime, time);
+    boolean sent = event == TraceRecorder.SEND;
+    boolean received = event == TraceRecorder.RECV;
+    // SYN佔一個seq：data從ISN + 1開始
+    if (!flow.hasBase && (sent || received) && ((flags & TraceRecorder.SYN) != 0 || (flags & TraceRecorder.DATA) != 0)
+        && sent == (flow.role != TraceRecorder.ROLE_RECEIVER)) {
+      flow.base = (flags & TraceRecorder.SYN) != 0 ? seq + 1 : seq;
+      flow.hasBase = true;
+    }
+    switch (event) {
+      case TraceRecorder.OPEN:
+        flow.role = value;
+        break;
+      case TraceRecorder.SEND:
+        if ((flags & TraceRecorder.DATA) != 0) {
+          flow.dataSegments += 1;
+          flow.dataBytes += length;
+        }
+        if ((flags & TraceRecorder.PARITY) != 0)
+          flow.paritySegments += 1;
+        if ((flags & TraceRecorder.FIN) != 0 && flow.hasBase)
+          flow.finOffset = flow.offset(seq);
+        flow.lastCwnd = value & 0xFFFFFFFFL;
+        flow.maxCwnd = Math.max(flow.maxCwnd, flow.lastCwnd);
+        break;
+      case TraceRecorder.RECV:
+        flow.receivedSegments += 1;
+        if (!flow.hasBase)
+          break;
+        if (flow.role == TraceRecorder.ROLE_SENDER && (flags & TraceRecorder.ACK) != 0
+            && (flags & TraceRecorder.SYN) == 0) {
+          long acked = flow.offset(ack);
+          if (acked < 1L << 31)
+            flow.advance(Math.min(acked, flow.finOffset), time);
+        } else if (flow.role == TraceRecorder.ROLE_RECEIVER && (flags & TraceRecorder.DATA) != 0) {
+          long end = flow.offset(seq) + length;
+          if (end <= flow.progress)
+            flow.duplicateData += 1;
+          flow.advance(end, time);
+        }
+        break;
+      case TraceRecorder.RETRANSMIT:
+        if (value > 0 && value < CAUSES.length)
+          flow.retransmits[value] += 1;
+        flow.retransmittedBytes += length;
+        break;
+      case TraceRecorder.TIMEOUT:
+        flow.timeouts += 1;
+        flow.maxBackoff = Math.max(flow.maxBackoff, value);
+        break;
+      case TraceRecorder.RTT:
+        flow.rtt.record(value);
+        break;
+      case TraceRecorder.PROBE:
+        flow.probes += 1;
+        break;
+      case TraceRecorder.DROP:
+        flow.localDrops += 1;
+        break;
+      default:
+        break;
+    }
+    if (event != TraceRecorder.OPEN && event != TraceRecorder.CLOSE) {
+      flow.lastRto = rto;
+      flow.maxRto = Math.max(flow.maxRto, rto);
+    }
+  }
+
+  void summary(int only) {
+    TreeMap<Integer, Flow> flows = scan(only, null);
+    long total = 0;
+    for (Flow flow : flows.values())
+      total += flow.records;
+    System.out.println("Trace started " + new Date(epochMillis) + ", " + total + " records"
+        + (droppedNum > 0 ? ", " + droppedNum + " dropped" : "") + (complete ? "" : " (recording did not finish)"));
+    for (Flow flow : flows.values()) {
+      double seconds = (flow.lastTime - flow.firstTime) / 1e9;
+      System.out.println("-------------------------------------------");
+      System.out.println(flow.name() + ": " + flow.records + " records, " + String.format("%.3f", seconds) + " s");
+      if (flow.role == TraceRecorder.ROLE_SENDER) {
+        System.out.println("Data segments sent: " + flow.dataSegments + " (" + flow.dataBytes + " bytes, including retransmissions), acked: "
+            + flow.progress + " bytes");
+        StringBuilder causes = new StringBuilder();
+        for (int cause = 1; cause < CAUSES.length; cause++)
+          causes.append(cause == 1 ? "" : ", ").append(CAUSES[cause]).append(' ').append(flow.retransmits[cause]);
+        System.out.println("Retransmissions: " + flow.retransmitted() + " (" + causes + "), "
+            + flow.retransmittedBytes + " bytes");
+        System.out.println("Timeouts: " + flow.timeouts + ", max backoff: " + Math.max(1, flow.maxBackoff)
+            + ", zero window probes: " + flow.probes);
+        if (flow.paritySegments > 0)
+          System.out.println("FEC parity segments sent: " + flow.paritySegments);
+        if (flow.localDrops > 0)
+          System.out.println("Dropped locally (send buffer full): " + flow.localDrops);
+        System.out.println("cwnd last/max: " + formatCwnd(flow.lastCwnd) + "/" + formatCwnd(flow.maxCwnd));
+      } else {
+        System.out.println("Packets received: " + flow.receivedSegments + ", highest offset: " + flow.progress
+            + ", duplicate data segments: " + flow.duplicateData);
+      }
+      double active = (flow.progressTime - flow.firstTime) / 1e9;
+      if (active > 0 && flow.progress > 0)
+        System.out.println("Throughput: " + String.format("%.1f", flow.progress / 1048576.0 / active) + " MB/s");
+      if (flow.rtt.count() > 0)
+        System.out.println("RTT samples: " + flow.rtt.count() + ", mean/p50/p99/max: " + flow.rtt.mean() + "/"
+            + flow.rtt.percentile(50) + "/" + flow.rtt.percentile(99) + "/" + flow.rtt.max() + " us");
+      System.out.println("RTO last/max: " + flow.lastRto + "/" + flow.maxRto + " us");
+    }
+  }
+
+  void intervals(int only, long intervalMillis) {
+    long interval = Math.max(1, intervalMillis) * 1_000_000L;
+    TreeMap<Integer, List<Interval>> rows = new TreeMap<>();
+    TreeMap<Integer, Flow> flows = scan(only, (flow, record) -> {
+      List<Interval> list = rows.computeIfAbsent(flow.id, id -> new ArrayList<>());
+      int index = (int) ((record.time - flow.firstTime) / interval);
+      while (list.size() <= index)
+        list.add(new Interval());
+      Interval row = list.get(index);
+      row.progress = Math.max(row.progress, flow.progress);
+      row.rto = flow.lastRto;
+      row.cwnd = flow.lastCwnd;
+      if (record.event == TraceRecorder.SEND && (record.flags & TraceRecorder.DATA) != 0)
+        row.sent += 1;
+      else if (record.event == TraceRecorder.RETRANSMIT)
+        row.retransmitted += 1;
+      else if (record.event == TraceRecorder.TIMEOUT)
+        row.timeouts += 1;
+      else if (record.event == TraceRecorder.RTT) {
+        row.rttSum += record.value;
+        row.rttNum += 1;
+      }
+    });
+    for (Flow flow : flows.values()) {
+      System.out.println(flow.name());
+      System.out.println(String.format("%9s %9s %7s %7s %8s %9s %9s %10s", "time(s)", "MB/s", "sent", "retrans",
+          "timeouts", "rtt(us)", "rto(us)", "cwnd"));
+      long previous = 0;
+      int rto = 0;
+      long cwnd = 0;
+      List<Interval> list = rows.get(flow.id);
+      for (int i = 0; i < list.size(); i++) {
+        Interval row = list.get(i);
+        // 沒有record的區間沿用上一個區間的狀態
+        long progress = row.progress < 0 ? previous : row.progress;
+        if (row.progress >= 0) {
+          rto = row.rto;
+          cwnd = row.cwnd;
+        }
+        System.out.println(String.format("%9.3f %9.2f %7d %7d %8d %9s %9d %10s", (double) i * interval / 1e9,
+            (progress - previous) / 1048576.0 / (interval / 1e9), row.sent, row.retransmitted, row.timeouts,
+            row.rttNum == 0 ? "-" : String.valueOf(row.rttSum / row.rttNum), rto,
+            flow.role == TraceRecorder.ROLE_SENDER ? formatCwnd(cwnd) : "-"));
+        previous = progress;
+      }
+    }
+  }
+
+  void timeSequence(int only) {
+    System.out.println("time_ms,connection,event,offset,end");
+    scan(only, (flow, record) -> {
+      if (!flow.hasBase)
+        return;
+      String kind = null;
+      long offset = 0;
+      long end = 0;
+      boolean sender = flow.role == TraceRecorder.ROLE_SENDER;
+      boolean data = (record.flags & TraceRecorder.DATA) != 0;
+      if (record.event == TraceRecorder.SEND && sender && data) {
+        kind = "send";
+        offset = flow.offset(record.seq);
+        end = offset + record.length;
+      } else if (record.event == TraceRecorder.RETRANSMIT && sender) {
+        kind = "retransmit";
+        offset = flow.offset(record.seq);
+        end = offset + record.length;
+      } else if (record.event == TraceRecorder.TIMEOUT && sender) {
+        kind = "timeout";
+        offset = end = flow.offset(record.seq);
+      } else if ((record.flags & TraceRecorder.ACK) != 0 && (record.flags & TraceRecorder.SYN) == 0 && !data
+          && (record.event == (sender ? TraceRecorder.RECV : TraceRecorder.SEND))) {
+        kind = "ack";
+        offset = end = flow.offset(record.ack);
+      } else if (record.event == TraceRecorder.RECV && !sender && data) {
+        kind = "data";
+        offset = flow.offset(record.seq);
+        end = offset + record.length;
+      }
+      if (kind != null && offset < 1L << 31)
+        System.out.println(String.format("%.3f", record.time / 1e6) + "," + flow.id + "," + kind + "," + offset
+            + "," + end);
+    });
+  }
+
+  void rtt(int only) {
+    System.out.println("time_ms,connection,rtt_us,rto_us");
+    scan(only, (flow, record) -> {
+      if (record.event == TraceRecorder.RTT)
+        System.out.println(String.format("%.3f", record.time / 1e6) + "," + flow.id + "," + record.value + ","
+            + record.rto);
+    });
+  }
+
+  private static String formatCwnd(long cwnd) {
+    return cwnd >= Integer.MAX_VALUE ? "unlimited" : String.valueOf(cwnd);
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.out.println("Usage: java TraceAnalyzer <traceFile> [summary | intervals <ms> | tsg | rtt] [-c <connection>]");
+      return;
+    }
+    String mode = "summary";
+    long intervalMillis = 100;
+    int only = -1;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-c"))
+        only = Integer.parseInt(args[++i]);
+      else if (args[i].equals("intervals") && i + 1 < args.length && !args[i + 1].startsWith("-")) {
+        mode = args[i];
+        intervalMillis = Long.parseLong(args[++i]);
+      } else
+        mode = args[i];
+    }
+    try {
+      TraceAnalyzer analyzer = new TraceAnalyzer(args[0]);
+      switch (mode) {
+        case "intervals":
+          analyzer.intervals(only, intervalMillis);
+          break;
+        case "tsg":
+          analyzer.timeSequence(only);
+          break;
+        case "rtt":
+          analyzer.rtt(only);
+          break;
+        default:
+          analyzer.summary(only);
+          break;
+      }
+    } catch (IOException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// -record：把每個送出/收到/重送的包裹與timer事件寫成固定32 bytes的binary record，之後用TraceAnalyzer離線分析
+// 檔案用memory mapping寫：記錄的thread只CAS取得一個位置再把幾個欄位放進mapping，不經過System.out也不拿lock
+// 同一個process裡寫同一個檔案的連線共用一個recorder，record裡帶連線的編號
+//
+// 檔案格式（little endian）：
+//   header 64 bytes：magic "TCPTRACE"、version(4)、record size(4)、開始時間epoch ms(8)、record數(8)、丟掉的record數(8)
+//   record 32 bytes：time ns(8，從開始時間算)、connection(2)、event(1)、flags(1)、seq(4)、ack(4)、length(4)、rto us(4)、value(4)
+// record數在最後一個連線結束時寫入；process中途結束時TraceAnalyzer會跳過沒有寫完（event = 0）的record
+public class TraceRecorder {
+  static final byte[] MAGIC = { 'T', 'C', 'P', 'T', 'R', 'A', 'C', 'E' };
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int RECORD_SIZE = 32;
+  // event
+  static final int OPEN = 1;       // value = ROLE_*
+  static final int SEND = 2;       // value = 送出時的cwnd（bytes）
+  static final int RECV = 3;       // value = 包裹通告的視窗欄位（-1 = 沒有）
+  static final int RETRANSMIT = 4; // value = CAUSE_*；之後還有同一個包裹的SEND record
+  static final int TIMEOUT = 5;    // RTO到期：seq = 最早沒被ACK的包裹，value = 加倍後的backoff
+  static final int RTT = 6;        // value = RTT sample（us），rto = 更新後的RTO
+  static final int PROBE = 7;      // persist timer到期：value = backoff
+  static final int CLOSE = 8;      // value = 傳送的bytes（capped）
+  static final int DROP = 9;       // 本地send buffer滿、沒有送出的包裹（前面已經有它的SEND record）
+  static final int ROLE_SENDER = 0;
+  static final int ROLE_RECEIVER = 1;
+  // 重送的原因
+  static final int CAUSE_TIMEOUT = 1;
+  static final int CAUSE_DUPACK = 2;   // 三次重複ACK
+  static final int CAUSE_SACK = 3;     // SACK scoreboard判斷遺失
+  static final int CAUSE_RECOVERY = 4; // recovery中的partial ACK
+  // flags（與PacketTrace相同的bit）
+  static final int SYN = PacketTrace.SYN;
+  static final int ACK = PacketTrace.ACK;
+  static final int FIN = PacketTrace.FIN;
+  static final int DATA = PacketTrace.DATA;
+  static final int PARITY = PacketTrace.PARITY;
+
+  // 每次map 8 MB，用到才map（檔案隨著增長）；最多1 GB，之後的record丟掉並計數
+  private static final int SEGMENT_SHIFT = 18;
+  private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+  private static final int MAX_SEGMENTS = 128;
+  private static final ConcurrentHashMap<String, TraceRecorder> OPEN_FILES = new ConcurrentHashMap<>();
+
+  private final FileChannel channel;
+  private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+  private final long base = System.nanoTime();
+  private final long epochMillis = System.currentTimeMillis();
+  private final AtomicLong next = new AtomicLong();
+  private final LongAdder droppedNum = new LongAdder();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger users = new AtomicInteger();
+
+  private TraceRecorder(String fileName) throws IOException {
+    channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    writeHeader();
+  }
+
+  // 同一個檔案只開一次；無法建立時回傳null（連線照常進行，只是不記錄）
+  static TraceRecorder open(String fileName) {
+    try {
+      return OPEN_FILES.computeIfAbsent(fileName, name -> {
+        try {
+          return new TraceRecorder(name);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      System.out.println("debug: trace file could not be created: " + fileName);
+      return null;
+    }
+  }
+
+  // 新的連線：回傳record裡用的連線編號
+  int connect(int role) {
+    users.incrementAndGet();
+    int connection = connections.getAndIncrement();
+    record(connection, OPEN, 0, 0, 0, 0, 0, role);
+    return connection;
+  }
+
+  // 連線結束；最後一個連線結束時把record數寫進header並force到檔案
+  void release(int connection, long bytes) {
+    record(connection, CLOSE, 0, 0, 0, 0, 0, (int) Math.min(Integer.MAX_VALUE, bytes));
+    if (users.decrementAndGet() > 0)
+      return;
+    try {
+      for (int i = 0; i < MAX_SEGMENTS && segments.get(i) != null; i++)
+        segments.get(i).force();
+      writeHeader();
+      channel.force(false);
+    } catch (IOException e) {
+      System.out.println("debug: trace file could not be written");
+    }
+  }
+
+  void packet(int connection, int event, TCPpacket packet, long rtoNanos, long value) {
+    int flags = (packet.getSyn() ? SYN : 0) | (packet.getAck() ? ACK : 0) | (packet.getFin() ? FIN : 0)
+        | PacketTrace.flag(packet);
+    record(connection, event, flags, packet.seqNum, packet.ackNum, packet.getDataLength(), rtoNanos,
+        (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+  }
+
+  void record(int connection, int event, int flags, int seq, int ack, int length, long rtoNanos, int value) {
+    long time = System.nanoTime() - base;
+    long index = next.getAndIncrement();
+    MappedByteBuffer segment = segment((int) (index >>> SEGMENT_SHIFT));
+    if (segment == null) {
+      droppedNum.increment();
+      return;
+    }
+    // 不同的thread寫不同的位置；absolute put不改變buffer的position
+    int at = (int) (index & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+    segment.putLong(at, time);
+    segment.putInt(at + 12, seq);
+    segment.putInt(at + 16, ack);
+    segment.putInt(at + 20, length);
+    segment.putInt(at + 24, (int) Math.min(Integer.MAX_VALUE, rtoNanos / 1000));
+    segment.putInt(at + 28, value);
+    // event最後寫：event = 0的record代表還沒寫完
+    segment.putInt(at + 8, (connection & 0xFFFF) | (event & 0xFF) << 16 | (flags & 0xFF) << 24);
+  }
+
+  private MappedByteBuffer segment(int number) {
+    if (number >= MAX_SEGMENTS)
+      return null;
+    MappedByteBuffer segment = segments.get(number);
+    if (segment != null)
+      return segment;
+    synchronized (this) {
+      segment = segments.get(number);
+      if (segment == null) {
+        try {
+          segment = channel.map(FileChannel.MapMode.READ_WRITE,
+              HEADER_SIZE + (long) number * SEGMENT_RECORDS * RECORD_SIZE, (long) SEGMENT_RECORDS * RECORD_SIZE);
+        } catch (IOException e) {
+          return null;
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segments.set(number, segment);
+      }
+      return segment;
+    }
+  }
+
+  private synchronized void writeHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(epochMillis)
+        .putLong(Math.min(next.get(), (long) MAX_SEGMENTS * SEGMENT_RECORDS)).putLong(droppedNum.sum());
+    header.clear();
+    channel.write(header, 0);
+  }
+
+  long dropped() {
+    return droppedNum.sum();
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Receiver的write-behind輸出：network thread只把in-order的bytes複製到staging chunks就回去收包裹，
+// 真正的檔案寫入由共用的writer pool完成；writer每次把累積的chunks用一個gathering write寫出，
+// disk比網路慢時自然合併成整個chunk（檔案offset對齊CHUNK_SIZE）的大寫入
+// staging的大小不另外設上限：還沒寫出的bytes會從通告的視窗扣除，所以不會超過receiver的緩衝區
+public class WriteBehindFile implements WritableByteChannel {
+  static final int CHUNK_SIZE = 128 * 1024;
+  private static final int MAX_FREE_CHUNKS = 4;
+  private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+        Thread thread = new Thread(task, "write-behind");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final FileChannel channel;
+  private final boolean ownsChannel;
+  private final String fsync;
+  // 共用的channel（striped transfer）：下一個寫入的檔案位置，用positional write；-1 = 依channel的position循序寫
+  private long position = -1;
+  private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<>();
+  // writer寫完一批之後呼叫（在writer thread上，不持有任何lock）
+  Runnable onDrain;
+  private long pendingBytes;
+  private boolean scheduled;
+  private boolean writing; // writer正在寫檔（不包含onDrain callback）
+  private boolean closed;
+  private boolean closeRequested; // closeLater：寫完之後由writer關閉
+  private Runnable onClosed;
+  private IOException failure;
+  // 統計
+  long writesNum;
+  long bytesWritten;
+
+  public WriteBehindFile(String fileName, String fsync) throws IOException {
+    this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    this.ownsChannel = true;
+    this.fsync = fsync;
+  }
+
+  // 多個WriteBehindFile寫同一個檔案的不同範圍：從position開始寫，close時不關閉channel
+  public WriteBehindFile(FileChannel channel, long position, String fsync) {
+    this.channel = channel;
+    this.ownsChannel = false;
+    this.position = position;
+    this.fsync = fsync;
+  }
+
+  private static final class Chunk {
+    final ByteBuffer buffer; // [0, flushed) 已寫到檔案；[flushed, position) 等待writer
+    int flushed;
+
+    Chunk(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  // 已經交給writer但還沒寫到檔案的bytes
+  public synchronized long pendingBytes() {
+    return pendingBytes;
+  }
+
+  // 複製src的內容後立刻回傳，不等待disk
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    synchronized (this) {
+      if (failure != null)
+        throw failure;
+      if (closed)
+        throw new ClosedChannelException();
+      while (src.hasRemaining()) {
+        Chunk tail = chunks.peekLast();
+        if (tail == null || !tail.buffer.hasRemaining()) {
+          tail = new Chunk(freeChunks.isEmpty() ? ByteBuffer.allocateDirect(CHUNK_SIZE) : freeChunks.poll());
+          chunks.add(tail);
+        }
+        int n = Math.min(src.remaining(), tail.buffer.remaining());
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        tail.buffer.put(part);
+        src.position(src.position() + n);
+      }
+      pendingBytes += length;
+      if (!scheduled) {
+        scheduled = true;
+        WRITERS.execute(this::drain);
+      }
+    }
+    return length;
+  }
+
+  @Override
+  public synchronized boolean isOpen() {
+    return !closed;
+  }
+
+  // 停止writer後把剩下的staging在呼叫者的thread上寫完，依fsync設定force，再關閉檔案
+  // 不等writer的onDrain callback：callback可能正在等呼叫者持有的lock
+  @Override
+  public void close() throws IOException {
+    ByteBuffer[] rest;
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      while (writing) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      rest = failure == null && pendingBytes > 0 ? snapshot() : null;
+    }
+    try {
+      if (rest != null)
+        completed(rest, writeFully(rest));
+      if (failure == null && !TCPConfig.FSYNC_NONE.equals(fsync))
+        channel.force(true);
+    } finally {
+      if (ownsChannel)
+        channel.close();
+      // 關閉之後不再需要staging：連線物件還被參考時（例如統計）direct chunks也能被回收
+      synchronized (this) {
+        chunks.clear();
+        freeChunks.clear();
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  // 不阻塞呼叫者（例如network thread）的close：staging寫完之後由writer task關閉檔案，再呼叫onClosed
+  // 不在pool thread上等待另一個task，pool的thread不會全部卡在close裡
+  public void closeLater(Runnable onClosed) {
+    synchronized (this) {
+      if (closed || closeRequested)
+        return;
+      closeRequested = true;
+      this.onClosed = onClosed;
+      if (scheduled)
+        return; // 正在跑的drain結束時會關閉
+      scheduled = true;
+    }
+    WRITERS.execute(this::drain);
+  }
+
+  // writer pool上的task：同一個檔案同時只有一個task在跑
+  private void drain() {
+    while (true) {
+      ByteBuffer[] batch;
+      synchronized (this) {
+        if (pendingBytes == 0 || failure != null || closed) {
+          scheduled = false;
+          if (!closeRequested || closed)
+            return;
+          batch = null;
+        } else {
+          batch = snapshot();
+          writing = true;
+        }
+      }
+      if (batch == null) {
+        try {
+          close();
+        } catch (IOException e) {
+          System.out.println(e.getMessage());
+        }
+        if (onClosed != null)
+          onClosed.run();
+        return;
+      }
+      try {
+        long written = writeFully(batch);
+        if (TCPConfig.FSYNC_ALWAYS.equals(fsync))
+          channel.force(false);
+        completed(batch, written);
+      } catch (IOException e) {
+        synchronized (this) {
+          failure = e;
+        }
+      } finally {
+        synchronized (this) {
+          writing = false;
+          notifyAll();
+        }
+      }
+      Runnable callback = onDrain;
+      if (callback != null)
+        callback.run();
+    }
+  }
+
+  // 呼叫時需持有this：每個chunk中還沒寫出的部分
+  private ByteBuffer[] snapshot() {
+    ByteBuffer[] batch = new ByteBuffer[chunks.size()];
+    int i = 0;
+    for (Chunk chunk : chunks) {
+      ByteBuffer view = chunk.buffer.duplicate();
+      view.flip();
+      view.position(chunk.flushed);
+      batch[i++] = view;
+    }
+    return batch;
+  }
+
+  private long writeFully(ByteBuffer[] batch) throws IOException {
+    long written = 0;
+    if (position >= 0) {
+      // FileChannel沒有positional的gathering write：每個chunk各寫一次
+      for (ByteBuffer buffer : batch) {
+        while (buffer.hasRemaining()) {
+          int n = channel.write(buffer, position);
+          position += n;
+          written += n;
+        }
+      }
+      return written;
+    }
+    for (int i = 0; i < batch.length;) {
+      written += channel.write(batch, i, batch.length - i);
+      while (i < batch.length && !batch[i].hasRemaining())
+        i++;
+    }
+    return written;
+  }
+
+  private synchronized void completed(ByteBuffer[] batch, long written) {
+    writesNum += 1;
+    bytesWritten += written;
+    pendingBytes -= written;
+    // 寫滿且寫完的chunk回收，最後一個chunk可能還在被network thread填入
+    for (ByteBuffer view : batch) {
+      Chunk chunk = chunks.peek();
+      chunk.flushed = view.position();
+      if (chunk.flushed < CHUNK_SIZE)
+        break;
+      chunks.poll();
+      if (freeChunks.size() < MAX_FREE_CHUNKS)
+        freeChunks.add(chunk.buffer.clear());
+    }
+  }
+}